@@ -0,0 +1,87 @@
+package ch.uzh.csg.comm.benchmark;
+
+import java.nio.charset.Charset;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * One message exchange (handshake, request, echoed reply) over an AID_2 link
+ * (53 bytes), with and without compression. The frames counter shows the
+ * number of frames per exchange, which is what costs time on a real link.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CompressionBenchmark {
+
+	@Param({ "true", "false" })
+	private boolean compression;
+
+	// a transaction like message, or random bytes that don't compress
+	@Param({ "transaction", "random" })
+	private String content;
+
+	@Param({ "512", "4096" })
+	private int size;
+
+	private Loopback loopback;
+	private byte[] message;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Frames {
+		public long frames;
+
+		@Setup(Level.Iteration)
+		public void clean() {
+			frames = 0;
+		}
+	}
+
+	@Setup
+	public void setup() {
+		loopback = new Loopback(53);
+		loopback.initiator().setCompression(compression);
+		if ("random".equals(content)) {
+			message = new byte[size];
+			new Random(42).nextBytes(message);
+		} else {
+			final StringBuilder sb = new StringBuilder();
+			final Random random = new Random(42);
+			while (sb.length() < size) {
+				sb.append("{\"amount\":").append(random.nextInt(100000))
+					.append(",\"currency\":\"CHF\",\"timestamp\":").append(1420070400000L + random.nextInt())
+					.append(",\"payee\":\"payee-").append(random.nextInt(100)).append("\"}");
+			}
+			message = sb.substring(0, size).getBytes(Charset.forName("UTF-8"));
+		}
+	}
+
+	@Benchmark
+	public byte[] exchange(final Frames frames) {
+		final long before = loopback.frames();
+		final byte[] reply = loopback.exchange(message);
+		frames.frames += loopback.frames() - before;
+		return reply;
+	}
+}
@@ -0,0 +1,90 @@
+package ch.uzh.csg.comm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.uzh.csg.comm.FragmentSource;
+import ch.uzh.csg.comm.NfcMessage;
+import ch.uzh.csg.comm.NfcMessageSplitter;
+
+/**
+ * Splitting a message into encoded frames and reassembling it from the
+ * frames, as the two sides of a transfer do, at the 53, 245 and 512 byte
+ * MTU.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FragmentationBenchmark {
+
+	@Param({ "53", "245", "512" })
+	private int mtu;
+
+	@Param({ "1024", "16384" })
+	private int size;
+
+	private NfcMessageSplitter splitter;
+	private byte[] payload;
+	private byte[] buffer;
+	private byte[][] frames;
+	private final NfcMessage flyweight = new NfcMessage(NfcMessage.Type.FRAGMENT);
+
+	@Setup
+	public void setup() throws Exception {
+		payload = new byte[size];
+		for (int i = 0; i < size; i++) {
+			payload[i] = (byte) i;
+		}
+		splitter = new NfcMessageSplitter().lengthHint(true);
+		splitter.maxTransceiveLength(mtu);
+		buffer = new byte[mtu];
+
+		final FragmentSource source = splitter.fragments(payload);
+		frames = new byte[source.remaining()][];
+		NfcMessage previous = null;
+		for (int i = 0; i < frames.length; i++) {
+			final NfcMessage fragment = source.next().sequenceNumber(previous);
+			frames[i] = fragment.bytes();
+			previous = fragment;
+		}
+	}
+
+	@Benchmark
+	public int fragment() throws Exception {
+		final FragmentSource source = splitter.fragments(payload);
+		NfcMessage fragment;
+		NfcMessage previous = null;
+		int bytes = 0;
+		while ((fragment = source.next()) != null) {
+			bytes += fragment.sequenceNumber(previous).encodeInto(buffer, 0);
+			previous = fragment;
+		}
+		return bytes;
+	}
+
+	@Benchmark
+	public byte[] reassemble() {
+		splitter.clear();
+		for (int i = 0; i < frames.length; i++) {
+			splitter.reassemble(flyweight.wrap(frames[i], 0, frames[i].length));
+		}
+		return splitter.data();
+	}
+}
@@ -0,0 +1,126 @@
+package ch.uzh.csg.comm.benchmark;
+
+import ch.uzh.csg.btlib.BTLEController;
+import ch.uzh.csg.comm.NfcInitiator;
+import ch.uzh.csg.comm.NfcInitiatorHandler;
+import ch.uzh.csg.comm.NfcResponder;
+import ch.uzh.csg.comm.NfcResponseHandler;
+import ch.uzh.csg.comm.ResponseLater;
+import ch.uzh.csg.comm.SimulatedNfcTransceiver;
+
+/**
+ * An initiator and a responder connected by a {@link SimulatedNfcTransceiver}
+ * without delays or losses. The initiator sends one message per
+ * {@link #exchange(byte[])}, the responder echoes it back. The MTU is 53 or
+ * 245 bytes (AID_2, AID_3), or any other value the responder announces over
+ * AID_1.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class Loopback {
+
+	private final NfcInitiator initiator;
+	private final NfcResponder responder;
+	private final SimulatedNfcTransceiver transceiver;
+
+	private byte[] message;
+	private byte[] received;
+	private boolean sent;
+	private String failed;
+
+	public Loopback(final int maxLen) {
+		responder = new NfcResponder(new NfcResponseHandler() {
+			@Override
+			public byte[] handleMessageReceived(byte[] message, ResponseLater responseLater) {
+				return message;
+			}
+			@Override
+			public void handleFailed(String message) {
+				failed = message;
+			}
+			@Override
+			public void handleStatus(String message) {}
+			@Override
+			public byte[] getUUID() {
+				return new byte[16];
+			}
+			@Override
+			public void nfcTagLost() {}
+			@Override
+			public void btTagFound() {}
+			@Override
+			public void btTagLost() {}
+			@Override
+			public void nfcTagFound() {}
+		}, maxLen);
+
+		initiator = new NfcInitiator(new NfcInitiatorHandler() {
+			@Override
+			public void handleMessageReceived(byte[] message) {
+				received = message;
+			}
+			@Override
+			public void handleFailed(String message) {
+				failed = message;
+			}
+			@Override
+			public void handleStatus(String message) {}
+			@Override
+			public boolean hasMoreMessages() {
+				return !sent;
+			}
+			@Override
+			public byte[] nextMessage() {
+				sent = true;
+				return message;
+			}
+			@Override
+			public void setUUID(byte[] uuid, boolean first) {}
+			@Override
+			public void btTagFound(BTLEController btleController) {}
+			@Override
+			public void nfcTagLost() {}
+			@Override
+			public void nfcTagFound() {}
+			@Override
+			public void btTagLost() {}
+			@Override
+			public void protocolDone() {}
+		});
+
+		// the initiator only knows the MTU classes of the AIDs, other
+		// MTUs are selected with AID_1 and limited by the responder
+		transceiver = new SimulatedNfcTransceiver(responder, 0)
+				.maxLen(maxLen == 53 || maxLen == 245 ? maxLen : Integer.MAX_VALUE);
+	}
+
+	public NfcInitiator initiator() {
+		return initiator;
+	}
+
+	public NfcResponder responder() {
+		return responder;
+	}
+
+	/**
+	 * Runs the handshake and sends the message, returns the echo.
+	 */
+	public byte[] exchange(final byte[] message) {
+		this.message = message;
+		this.received = null;
+		this.sent = false;
+		initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+		if (failed != null) {
+			throw new IllegalStateException(failed);
+		}
+		return received;
+	}
+
+	/**
+	 * Returns the number of frames written so far, including the handshake.
+	 */
+	public long frames() {
+		return transceiver.frames();
+	}
+}
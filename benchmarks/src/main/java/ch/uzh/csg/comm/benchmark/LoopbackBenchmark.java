@@ -0,0 +1,57 @@
+package ch.uzh.csg.comm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * A full exchange between NfcInitiator and NfcResponder (handshake, request,
+ * echoed reply) at the 53, 245 and 512 byte MTU. Reports the throughput and
+ * the latency percentiles of an exchange; compression is disabled, see
+ * {@link CompressionBenchmark} for that.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode({ Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LoopbackBenchmark {
+
+	@Param({ "53", "245", "512" })
+	private int mtu;
+
+	@Param({ "64", "1024", "16384" })
+	private int size;
+
+	private Loopback loopback;
+	private byte[] message;
+
+	@Setup
+	public void setup() {
+		loopback = new Loopback(mtu);
+		loopback.initiator().setCompression(false);
+		message = new byte[size];
+		for (int i = 0; i < size; i++) {
+			message[i] = (byte) i;
+		}
+	}
+
+	@Benchmark
+	public byte[] exchange() {
+		return loopback.exchange(message);
+	}
+}
@@ -0,0 +1,76 @@
+package ch.uzh.csg.comm.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.uzh.csg.comm.NfcMessage;
+import ch.uzh.csg.comm.NfcMessage.Type;
+
+/**
+ * Encoding and decoding of a single frame, the payload fills a frame of the
+ * 53, 245 and 512 byte MTU. The allocating variants (bytes(), the decoding
+ * constructor) are compared with the flyweight ones (encodeInto, wrap), run
+ * with -prof gc to see the difference in allocation.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class NfcMessageBenchmark {
+
+	@Param({ "53", "245", "512" })
+	private int mtu;
+
+	private NfcMessage message;
+	private NfcMessage flyweight;
+	private byte[] frame;
+	private byte[] buffer;
+
+	@Setup
+	public void setup() {
+		final byte[] payload = new byte[mtu - NfcMessage.HEADER_LENGTH];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+		message = new NfcMessage(Type.FRAGMENT).payload(payload).sequenceNumber(null);
+		flyweight = new NfcMessage(Type.FRAGMENT);
+		frame = message.bytes();
+		buffer = new byte[mtu];
+	}
+
+	@Benchmark
+	public byte[] encode() {
+		return message.bytes();
+	}
+
+	@Benchmark
+	public int encodeInto() {
+		return message.encodeInto(buffer, 0);
+	}
+
+	@Benchmark
+	public NfcMessage decode() {
+		return new NfcMessage(frame);
+	}
+
+	@Benchmark
+	public NfcMessage wrap() {
+		return flyweight.wrap(frame, 0, frame.length);
+	}
+}
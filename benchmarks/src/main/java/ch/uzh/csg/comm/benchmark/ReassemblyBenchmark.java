@@ -0,0 +1,65 @@
+package ch.uzh.csg.comm.benchmark;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import ch.uzh.csg.comm.NfcMessage;
+import ch.uzh.csg.comm.NfcMessageSplitter;
+
+/**
+ * Reassembly of a fragmented message at the smallest NFC MTU (53 bytes). The
+ * time per operation should grow linearly with the payload size, with and
+ * without the length hint.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ReassemblyBenchmark {
+
+	@Param({ "1024", "4096", "16384", "65536", "262144" })
+	private int size;
+
+	@Param({ "false", "true" })
+	private boolean lengthHint;
+
+	private NfcMessageSplitter splitter;
+	private List<NfcMessage> fragments;
+
+	@Setup
+	public void setup() {
+		final byte[] payload = new byte[size];
+		for (int i = 0; i < size; i++) {
+			payload[i] = (byte) i;
+		}
+		splitter = new NfcMessageSplitter().lengthHint(lengthHint);
+		splitter.maxTransceiveLength(53);
+		fragments = splitter.getFragments(payload);
+	}
+
+	@Benchmark
+	public byte[] reassemble() {
+		splitter.clear();
+		for (int i = 0; i < fragments.size(); i++) {
+			splitter.reassemble(fragments.get(i));
+		}
+		return splitter.data();
+	}
+}
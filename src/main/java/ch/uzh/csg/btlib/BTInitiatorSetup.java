@@ -1,12 +1,15 @@
 package ch.uzh.csg.btlib;
 
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -17,7 +20,9 @@ import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothSocket;
 import android.bluetooth.le.BluetoothLeScanner;
 import android.bluetooth.le.ScanCallback;
 import android.bluetooth.le.ScanFilter;
@@ -25,18 +30,25 @@ import android.bluetooth.le.ScanResult;
 import android.bluetooth.le.ScanSettings;
 import android.os.Handler;
 import android.os.ParcelUuid;
+import ch.uzh.csg.comm.AsyncNfcTransceiver;
+import ch.uzh.csg.comm.Batch;
 import ch.uzh.csg.comm.Config;
 import ch.uzh.csg.comm.NfcInitiator;
 import ch.uzh.csg.comm.NfcInitiatorHandler;
+import ch.uzh.csg.comm.NfcLibException;
 import ch.uzh.csg.comm.NfcMessage;
 import ch.uzh.csg.comm.NfcMessage.Type;
-import ch.uzh.csg.comm.NfcTransceiver;
+import ch.uzh.csg.comm.PipelinedNfcTransceiver;
+import ch.uzh.csg.comm.StreamNfcTransceiver;
+import ch.uzh.csg.comm.TransceiveCallback;
 
 public class BTInitiatorSetup {
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(BTInitiatorSetup.class);
 	// Stops scanning after 10 seconds.
 	final private static long SCAN_PERIOD = 10 * 1000;
+	// a frame without answer after 10 seconds is lost
+	final private static long TIMEOUT = 10 * 1000;
 	
 	final private Handler mHandler;
 	final private BluetoothAdapter bluetoothAdapter;
@@ -51,13 +63,17 @@ public class BTInitiatorSetup {
 	public static final int POLLING_RESPONSE = 0x51;//BluetoothGatt.GATT_INVALID_OFFSET;
 	public static final int POLLING_REQUEST = 0x52;//BluetoothGatt.GATT_REQUEST_NOT_SUPPORTED;
 	
-	public static final int INITIAL_SIZE = 517;
-	public static final int BT_OVERHEAD = 3;
+	public static final int INITIAL_SIZE = MtuNegotiation.MAX_MTU;
+	public static final int BT_OVERHEAD = MtuNegotiation.ATT_OVERHEAD;
+	// the best MTU of the devices seen, shared by all links
+	final private static MtuNegotiation MTU_NEGOTIATION = new MtuNegotiation(64);
 	final private AtomicInteger mtu = new AtomicInteger(INITIAL_SIZE);
+	final private ConnectionPriorityPolicy priorityPolicy = new ConnectionPriorityPolicy();
     
     private static BTInitiatorSetup instance = null;
     
     private BluetoothGatt gatt;
+    private volatile StreamNfcTransceiver l2cap;
     
     private boolean running = false;
     
@@ -66,6 +82,14 @@ public class BTInitiatorSetup {
     	return new BTInitiatorSetup(initiator, bluetoothAdapter);
     }
 	
+	/**
+	 * The GATT client can be used blocking, or with callbacks, which is what
+	 * the initiator does. Then the next frame is written from the GATT
+	 * callback, no thread waits for the other side.
+	 */
+	private interface BTTransceiver extends PipelinedNfcTransceiver, AsyncNfcTransceiver {
+	}
+	
 	private BTInitiatorSetup(final NfcInitiator initiator, BluetoothAdapter bluetoothAdapter) {
 		this.initiatorHandler = initiator.getInitiatorHandler();
 		this.initiator = initiator;
@@ -73,21 +97,74 @@ public class BTInitiatorSetup {
 		this.mHandler = new Handler();
 	}
 	
-	private void btleDiscovered(final NfcTransceiver nfcTransceiver) {
+	/**
+	 * Runs the transaction over GATT. The capabilities are negotiated with
+	 * the extended handshake, unless its frames don't fit the default MTU.
+	 * A window needs the blocking transceiver, so with a window the
+	 * transaction runs on its own thread, otherwise from the GATT callbacks.
+	 */
+	private void btleDiscovered(final BTTransceiver nfcTransceiver) {
 		initiatorHandler.btTagFound(new BTLEController() {
 			@Override
 			public void startBTLE() {
 				if(Config.DEBUG) {
 					LOGGER.debug( "start BT");
 				}
-				initiator.setmaxTransceiveLength(mtu.get() - BT_OVERHEAD);
-				initiator.tagDiscoverHandler().tagDiscovered(nfcTransceiver, false, false);
+				final boolean handshake = mtu.get() > MtuNegotiation.DEFAULT_MTU;
+				initiator.setmaxTransceiveLength(MtuNegotiation.maxFrameLength(mtu.get()));
+				if(!handshake || initiator.getWindowSize() <= 1) {
+					initiator.tagDiscoverHandler().tagDiscovered((AsyncNfcTransceiver) nfcTransceiver, handshake, false);
+				} else {
+					final Thread thread = new Thread(new Runnable() {
+						@Override
+						public void run() {
+							initiator.tagDiscoverHandler().tagDiscovered((PipelinedNfcTransceiver) nfcTransceiver, 
+									true, false);
+						}
+					}, "nfc-gatt");
+					thread.setDaemon(true);
+					thread.start();
+				}
 				running = true;
 			}
 		});
 		
 	}
 	
+	/**
+	 * Returns the policy for the connection priority, to configure it and to
+	 * read the round trips of the frames.
+	 */
+	public ConnectionPriorityPolicy connectionPriorityPolicy() {
+		return priorityPolicy;
+	}
+	
+	/**
+	 * Runs the transaction over the L2CAP channel, with the extended handshake,
+	 * on its own thread, as the stream is blocking.
+	 */
+	private void l2capDiscovered(final StreamNfcTransceiver nfcTransceiver) {
+		l2cap = nfcTransceiver;
+		initiatorHandler.btTagFound(new BTLEController() {
+			@Override
+			public void startBTLE() {
+				if(Config.DEBUG) {
+					LOGGER.debug( "start BT over L2CAP");
+				}
+				initiator.setmaxTransceiveLength(nfcTransceiver.maxLen());
+				final Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						initiator.tagDiscoverHandler().tagDiscovered(nfcTransceiver, true, false);
+					}
+				}, "nfc-l2cap");
+				thread.setDaemon(true);
+				thread.start();
+				running = true;
+			}
+		});
+	}
+	
 	public boolean isOpen() {
 		return gatt!=null;
 	}
@@ -105,6 +182,11 @@ public class BTInitiatorSetup {
 		if(Config.DEBUG) {
 			LOGGER.debug( "try close device");
 		}
+		final StreamNfcTransceiver l2cap = this.l2cap;
+		if(l2cap != null) {
+			l2cap.close();
+			this.l2cap = null;
+		}
 		if(gatt!=null) {
 			gatt.close();
 			if(Config.DEBUG) {
@@ -153,33 +235,74 @@ public class BTInitiatorSetup {
 	}
 	
 	//we must scan and cannot call connect directly
-	private void connect(Activity activity, BluetoothDevice device, final UUID remoteUUID) {
-		//this is currently the max value on Android
+	private void connect(Activity activity, final BluetoothDevice device, final UUID remoteUUID) {
+		//repeat customers start at their best MTU
+		mtu.set(MTU_NEGOTIATION.first(device.getAddress(), remoteUUID));
 		final AtomicInteger seq = new AtomicInteger(0);
 		device.connectGatt(activity, false, new BluetoothGattCallback() {
 			
-			private BlockingQueue<byte[]> msg = new SynchronousQueue<>();
+			// in streaming mode, the answer may arrive before the writer waits for it
+			private BlockingQueue<byte[]> msg = new LinkedBlockingQueue<byte[]>();
+			// the confirmations of the writes of windowed fragments, never an answer
+			private final BlockingQueue<Boolean> written = new LinkedBlockingQueue<Boolean>();
+			// the callback of the frame on the air, if written with callback
+			private final AtomicReference<TransceiveCallback> pending = new AtomicReference<TransceiveCallback>();
+			private Runnable timeout;
+			// false for windowed fragments, where only the write is confirmed
+			private final AtomicBoolean readBack = new AtomicBoolean(true);
 			private BluetoothGattCharacteristic carClassic = null;
 			private BluetoothGattCharacteristic carFastRead = null;
+			private BluetoothGattCharacteristic carStream = null;
+			private BluetoothGattCharacteristic carBulkRead = null;
+			private BluetoothGattCharacteristic carL2capPsm = null;
+			// frames of the last bulk read, the answers to the next requests for a fragment
+			private final BulkFrames prefetched = new BulkFrames();
+			// when the frame on the air was sent, 0 if it was answered locally
+			private volatile long sentNanos = 0;
+			// streaming mode, a frame written before the previous write is confirmed
+			private boolean streaming = false;
+			private byte[] deferred = null;
+			// whether the deferred frame, and the frame on the air, wait for their confirmation
+			private boolean deferredUnacknowledged = false;
+			private boolean unacknowledgedOnAir = false;
 			
 			@Override
 			public void onMtuChanged(BluetoothGatt gatt, int mtu2, int status) {
 				if(status != BluetoothGatt.GATT_SUCCESS) {
-					mtu.set(mtu.get() / 2);
+					MTU_NEGOTIATION.failed(device.getAddress(), remoteUUID, mtu.get());
+					mtu.set(MtuNegotiation.next(mtu.get()));
 					if(Config.DEBUG) {
 						LOGGER.debug( "mtu was *not* set to: {} go for: {}", mtu2, mtu.get());
 					}
+					if(requestMtu(gatt)) {
+						return;
+					}
 				} else {
-					//continue
+					//continue, the other side may have agreed on less
 					if(Config.DEBUG) {
 						LOGGER.debug( "mtu was set to: {}", mtu2);
 					}
 					mtu.set(mtu2);
+					MTU_NEGOTIATION.succeeded(device.getAddress(), remoteUUID, mtu2);
 				}
 				gatt.discoverServices();
 				
 			}
 			
+			/**
+			 * Requests the current step of the ladder, returns false if the
+			 * default MTU is reached, which needs no request.
+			 */
+			private boolean requestMtu(BluetoothGatt gatt) {
+				while(mtu.get() > MtuNegotiation.DEFAULT_MTU) {
+					if(gatt.requestMtu(mtu.get())) {
+						return true;
+					}
+					mtu.set(MtuNegotiation.next(mtu.get()));
+				}
+				return false;
+			}
+			
 			@Override
 			public void onConnectionStateChange(BluetoothGatt gatt, int status,
 					int newState) {
@@ -188,7 +311,11 @@ public class BTInitiatorSetup {
 						LOGGER.debug( "connected");
 					}
 					BTInitiatorSetup.this.gatt = gatt;
-					gatt.requestMtu(mtu.get());
+					// the setup runs at high priority
+					priorityPolicy.connected(gatt, mHandler);
+					if(!requestMtu(gatt)) {
+						gatt.discoverServices();
+					}
 			    } else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
 			    	if(Config.DEBUG) {
 						LOGGER.debug( "disconnected");
@@ -196,6 +323,10 @@ public class BTInitiatorSetup {
 			    	initiatorHandler.btTagLost();
 			    	BTInitiatorSetup.this.gatt = null;
 			    	running = false;
+			    	final TransceiveCallback callback = pending.getAndSet(null);
+			    	if (callback != null) {
+			    		callback.failed(new NfcLibException("tag lost"));
+			    	}
 			    }
 			}
 			
@@ -249,67 +380,321 @@ public class BTInitiatorSetup {
 						LOGGER.debug( "read fast characteristic init: {}", carFastRead);
 					}
 					
-					btleDiscovered(new NfcTransceiver() {
-
-						@Override
-						public byte[] write(byte[] input) throws Exception {
-							seq.set(NfcMessage.sequence(input));
-							if(carFastRead != null && NfcMessage.type(input) == Type.FRAGMENT && NfcMessage.isEmpty(input)) {
-								if(Config.DEBUG) {
-									LOGGER.debug( "read fast characteristic");
-								}
-								boolean read = gatt.readCharacteristic(carFastRead);
-								if(Config.DEBUG) {
-									LOGGER.debug( "read fast characteristic: {}", read);
-								}
-								if(!read) {
-									initiatorHandler.btTagLost();
-									return null;
-								}
-							} else {
-								carClassic.setValue(input);
-								if(Config.DEBUG) {
-									LOGGER.debug( "wrote characteristic");
+					//optional, only worth it if at least two frames fit into a long read
+					carBulkRead = ser.getCharacteristic(BTResponderSetup.COINBLESK_CHARACTERISTIC_UUID_BULK_READ);
+					if(carBulkRead != null && Batch.ENVELOPE_LENGTH + 2 * (Batch.ENTRY_HEADER_LENGTH + MtuNegotiation.maxFrameLength(mtu.get()))
+							> MtuNegotiation.MAX_ATTRIBUTE_LENGTH) {
+						carBulkRead = null;
+					}
+					if(Config.DEBUG) {
+						LOGGER.debug( "bulk read characteristic init: {}", carBulkRead);
+					}
+					
+					//optional, the answers come back as notifications once subscribed
+					carStream = ser.getCharacteristic(BTResponderSetup.COINBLESK_CHARACTERISTIC_UUID_STREAM);
+					
+					//optional, read the PSM of the L2CAP channel first, GATT is the fall back
+					carL2capPsm = ser.getCharacteristic(BTResponderSetup.COINBLESK_CHARACTERISTIC_UUID_L2CAP_PSM);
+					if(carL2capPsm != null && BTUtils.l2capSupport() 
+							&& gatt.readCharacteristic(carL2capPsm)) {
+						return;
+					}
+					carL2capPsm = null;
+					gattTransport(gatt);
+				} else {		       
+					initiator.getInitiatorHandler().handleFailed("Characteristic not discovered: " + status);
+				}
+			}
+			
+			private void gattTransport(final BluetoothGatt gatt) {
+				if(carStream != null && subscribe(gatt)) {
+					return;
+				}
+				carStream = null;
+				discovered(gatt);
+			}
+			
+			/**
+			 * Connects the L2CAP channel, which blocks, so not on the GATT
+			 * callback thread. If that fails, the transaction runs over GATT.
+			 */
+			private void openL2cap(final BluetoothGatt gatt, final int psm) {
+				final Thread thread = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						BluetoothSocket socket = null;
+						try {
+							socket = BTUtils.createInsecureL2capChannel(device, psm);
+							socket.connect();
+							if(Config.DEBUG) {
+								LOGGER.debug( "L2CAP channel on PSM {} connected", psm);
+							}
+							l2capDiscovered(new StreamNfcTransceiver(socket.getInputStream(), socket.getOutputStream(), 
+									socket, StreamNfcTransceiver.DEFAULT_FRAME_LENGTH));
+						} catch (IOException e) {
+							LOGGER.error("L2CAP channel failed, use GATT", e);
+							if(socket != null) {
+								try {
+									socket.close();
+								} catch (IOException e1) {
+									LOGGER.error("could not close L2CAP channel", e1);
 								}
-								boolean write = gatt.writeCharacteristic(carClassic);
-								if(Config.DEBUG) {
-									LOGGER.debug( "wrote characteristic: {}", write);
+							}
+							gattTransport(gatt);
+						}
+					}
+				}, "nfc-l2cap-connect");
+				thread.setDaemon(true);
+				thread.start();
+			}
+			
+			private boolean subscribe(final BluetoothGatt gatt) {
+				final BluetoothGattDescriptor descriptor = carStream.getDescriptor(BTResponderSetup.CLIENT_CHARACTERISTIC_CONFIG);
+				if(descriptor == null || !gatt.setCharacteristicNotification(carStream, true)) {
+					return false;
+				}
+				descriptor.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+				final boolean write = gatt.writeDescriptor(descriptor);
+				if(Config.DEBUG) {
+					LOGGER.debug( "subscribe stream characteristic: {}", write);
+				}
+				return write;
+			}
+			
+			@Override
+			public void onDescriptorWrite(final BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+				if(Config.DEBUG) {
+					LOGGER.debug( "subscription request done: {}", status);
+				}
+				if(status != BluetoothGatt.GATT_SUCCESS) {
+					// fall back to the classic characteristic
+					gatt.setCharacteristicNotification(carStream, false);
+					carStream = null;
+				} else {
+					carStream.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+				}
+				discovered(gatt);
+			}
+			
+			private void discovered(final BluetoothGatt gatt) {
+				btleDiscovered(new BTTransceiver() {
+
+					@Override
+					public byte[] write(byte[] input) throws Exception {
+						readBack.set(true);
+						msg.clear();
+						if (!send(input)) {
+							return null;
+						}
+						return msg.poll(TIMEOUT, TimeUnit.MILLISECONDS);
+					}
+					
+					@Override
+					public void write(final byte[] input, final TransceiveCallback callback) {
+						readBack.set(true);
+						pending.set(callback);
+						if (!send(input)) {
+							if (pending.compareAndSet(callback, null)) {
+								callback.failed(new NfcLibException("tag lost"));
+							}
+							return;
+						}
+						final Runnable timeout = new Runnable() {
+							@Override
+							public void run() {
+								if (pending.compareAndSet(callback, null)) {
+									LOGGER.error("no answer from the other side");
+									callback.failed(new NfcLibException("tag lost"));
 								}
-								if(!write) {
-									initiatorHandler.btTagLost();
-									return null;
+							}
+						};
+						mHandler.postDelayed(timeout, TIMEOUT);
+						setTimeout(timeout);
+					}
+					
+					/**
+					 * Starts the GATT operation for the frame, the answer is
+					 * read in the callback.
+					 */
+					private boolean send(byte[] input) {
+						seq.set(NfcMessage.sequence(input));
+						// a request that does not match the prefetched frames, e.g., sent again,
+						// is written, so the other side sees its sequence number and answers it again
+						final boolean replay = !prefetched.isEmpty();
+						final byte[] frame = prefetched.take(input);
+						if(frame != null) {
+							// answered by the last bulk read, after write returned
+							sentNanos = 0;
+							mHandler.post(new Runnable() {
+								@Override
+								public void run() {
+									received(frame);
 								}
+							});
+							return true;
+						}
+						priorityPolicy.busy(gatt, mHandler);
+						sentNanos = System.nanoTime();
+						if(carStream != null) {
+							// also the requests for the next fragment, no read needed
+							return stream(input, false);
+						} else if(carFastRead != null && !replay && NfcMessage.type(input) == Type.FRAGMENT 
+								&& NfcMessage.isEmpty(input)) {
+							final BluetoothGattCharacteristic car = carBulkRead != null ? carBulkRead : carFastRead;
+							if(Config.DEBUG) {
+								LOGGER.debug( "read fast characteristic");
+							}
+							boolean read = gatt.readCharacteristic(car);
+							if(Config.DEBUG) {
+								LOGGER.debug( "read fast characteristic: {}", read);
+							}
+							if(!read) {
+								initiatorHandler.btTagLost();
+								return false;
+							}
+						} else {
+							carClassic.setValue(input);
+							if(Config.DEBUG) {
+								LOGGER.debug( "wrote characteristic");
+							}
+							boolean write = gatt.writeCharacteristic(carClassic);
+							if(Config.DEBUG) {
+								LOGGER.debug( "wrote characteristic: {}", write);
+							}
+							if(!write) {
+								initiatorHandler.btTagLost();
+								return false;
 							}
-				
-							return msg.poll(10, TimeUnit.SECONDS);
 						}
-
-						@Override
-						public int maxLen() {
-							//not used, as we don't do a handshake
-							return mtu.get();
+						return true;
+					}
+					
+					/**
+					 * Writes without response, the answer comes as
+					 * notification. The local stack confirms the write
+					 * in onCharacteristicWrite, only then the next frame
+					 * can be written.
+					 */
+					private boolean stream(byte[] input, boolean unacknowledged) {
+						synchronized (carStream) {
+							if (streaming) {
+								// the answer came before the confirmation of the write
+								deferred = input;
+								deferredUnacknowledged = unacknowledged;
+								return true;
+							}
+							streaming = true;
+							unacknowledgedOnAir = unacknowledged;
 						}
+						return writeStream(gatt, input);
+					}
+					
+					@Override
+					public void writeUnacknowledged(byte[] input) throws Exception {
+						readBack.set(false);
+						written.clear();
+						priorityPolicy.busy(gatt, mHandler);
+						boolean write;
+						if(carStream != null) {
+							write = stream(input, true);
+						} else {
+							carClassic.setValue(input);
+							write = gatt.writeCharacteristic(carClassic);
+						}
+						if(Config.DEBUG) {
+							LOGGER.debug( "wrote characteristic unacknowledged: {}", write);
+						}
+						if(!write) {
+							initiatorHandler.btTagLost();
+							throw new NfcLibException("tag lost");
+						}
+						// only one GATT operation at a time, wait for the write to complete,
+						// which is also the flow control of the streaming mode
+						if(written.poll(TIMEOUT, TimeUnit.MILLISECONDS) == null) {
+							throw new NfcLibException("tag lost");
+						}
+					}
 
-						@Override
-						public void close() {
-							gatt.close();
-						}		
-						
-					});		
+					@Override
+					public int maxLen() {
+						return MtuNegotiation.maxFrameLength(mtu.get());
+					}
+
+					@Override
+					public void close() {
+						gatt.close();
+					}		
 					
-				} else {		       
-					initiator.getInitiatorHandler().handleFailed("Characteristic not discovered: " + status);
-				}
+				});		
 			}
 			
-			/*@Override
-			public void onDescriptorWrite(final BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+			private boolean writeStream(final BluetoothGatt gatt, final byte[] input) {
+				carStream.setValue(input);
+				boolean write = gatt.writeCharacteristic(carStream);
 				if(Config.DEBUG) {
-					LOGGER.debug( "subscribtion request done: {}", status);
+					LOGGER.debug( "wrote stream characteristic: {}", write);
 				}
-				//car.setValue(NfcMessage.BTLE_INIT);
-				
-			}*/
+				if(!write) {
+					synchronized (carStream) {
+						streaming = false;
+					}
+					initiatorHandler.btTagLost();
+				}
+				return write;
+			}
+			
+			/**
+			 * The local stack took the frame written without response. Confirms
+			 * the write if it was a windowed fragment, and writes the deferred
+			 * frame, if any.
+			 */
+			private void streamed(final BluetoothGatt gatt) {
+				final byte[] next;
+				final boolean confirm;
+				synchronized (carStream) {
+					confirm = unacknowledgedOnAir;
+					next = deferred;
+					deferred = null;
+					streaming = next != null;
+					unacknowledgedOnAir = next != null && deferredUnacknowledged;
+				}
+				if(confirm) {
+					written.offer(Boolean.TRUE);
+				}
+				if(next != null && !writeStream(gatt, next)) {
+					final TransceiveCallback callback = pending.getAndSet(null);
+					if (callback != null) {
+						callback.failed(new NfcLibException("tag lost"));
+					}
+				}
+			}
+			
+			private synchronized void setTimeout(final Runnable timeout) {
+				this.timeout = timeout;
+			}
+			
+			/**
+			 * Hands the answer to the waiting write, or to the callback.
+			 */
+			private void received(final byte[] value) {
+				final long sent = sentNanos;
+				if (sent != 0) {
+					sentNanos = 0;
+					priorityPolicy.roundTrip(System.nanoTime() - sent);
+				}
+				final TransceiveCallback callback = pending.getAndSet(null);
+				if (callback == null) {
+					msg.offer(value);
+					return;
+				}
+				synchronized (this) {
+					if (timeout != null) {
+						mHandler.removeCallbacks(timeout);
+						timeout = null;
+					}
+				}
+				callback.completed(value);
+			}
 			
 			@Override
 			public void onCharacteristicWrite(BluetoothGatt gatt,
@@ -330,7 +715,13 @@ public class BTInitiatorSetup {
 					NfcMessage m = new NfcMessage(Type.POLLING_REQUEST);
 					m.sequenceNumber(seq.get());
 					msg.offer(m.bytes());
-				} else*/ {
+				} else*/ if(characteristic == carStream) {
+					// the answer comes as notification, a windowed fragment has none
+					streamed(gatt);
+				} else if(!readBack.get()) {
+					// windowed fragment, there is no answer to read
+					written.offer(Boolean.TRUE);
+				} else {
 					boolean retVal = gatt.readCharacteristic(carClassic);
 					LOGGER.debug( "read characteristic: {}", retVal);
 				}
@@ -341,16 +732,41 @@ public class BTInitiatorSetup {
 				if(Config.DEBUG) {
 					LOGGER.debug("on read: "+characteristic.getValue().length);
 				}
-				msg.offer(characteristic.getValue());
+				if(characteristic == carL2capPsm) {
+					final byte[] value = characteristic.getValue();
+					if(status != BluetoothGatt.GATT_SUCCESS || value == null || value.length != 2) {
+						gattTransport(gatt);
+						return;
+					}
+					openL2cap(gatt, ((value[0] & 0xFF) << 8) | (value[1] & 0xFF));
+					return;
+				}
+				if(characteristic != carBulkRead) {
+					received(characteristic.getValue());
+					return;
+				}
+				final List<byte[]> frames;
+				try {
+					frames = Batch.unpack(characteristic.getValue());
+				} catch (IOException e) {
+					LOGGER.error("invalid bulk read", e);
+					final TransceiveCallback callback = pending.getAndSet(null);
+					if (callback != null) {
+						callback.failed(e);
+					}
+					return;
+				}
+				prefetched.set(frames.subList(1, frames.size()));
+				received(frames.get(0));
 			}
 			
-			/*@Override
+			@Override
 			public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
 				if(Config.DEBUG) {
-					LOGGER.debug( "got reply back characteristic: {}", Arrays.toString(characteristic.getValue()));
+					LOGGER.debug( "on notification: {}", characteristic.getValue().length);
 				}
-				msg.offer(characteristic.getValue());
-			}*/
+				received(characteristic.getValue());
+			}
 		});
 	}
 	
@@ -1,9 +1,16 @@
 package ch.uzh.csg.btlib;
 
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
@@ -14,19 +21,25 @@ import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattServer;
 import android.bluetooth.BluetoothGattServerCallback;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
 import android.bluetooth.le.AdvertiseCallback;
 import android.bluetooth.le.AdvertiseData;
 import android.bluetooth.le.AdvertiseSettings;
 import android.bluetooth.le.BluetoothLeAdvertiser;
 import android.os.ParcelUuid;
+import ch.uzh.csg.comm.Batch;
 import ch.uzh.csg.comm.Config;
 import ch.uzh.csg.comm.NfcMessage;
 import ch.uzh.csg.comm.NfcResponder;
 import ch.uzh.csg.comm.NfcMessage.Type;
+import ch.uzh.csg.comm.StreamNfcTransceiver;
+import ch.uzh.csg.comm.StreamResponder;
 
 public class BTResponderSetup {
 	
@@ -34,8 +47,31 @@ public class BTResponderSetup {
 	
 	final public static UUID COINBLESK_CHARACTERISTIC_UUID_CLASSIC = UUID.fromString("90b26ed7-7200-40ee-9707-5becce10aac8");
 	final public static UUID COINBLESK_CHARACTERISTIC_UUID_FAST_READ = UUID.fromString("90b26ed7-7200-40ee-9707-5becce10aac9");
-	
-	final private AtomicInteger mtu = new AtomicInteger(0);
+	/**
+	 * Streaming mode: the central writes frames without response, the answers
+	 * are sent back as notifications. A frame and its answer need no extra
+	 * read, both fit into one connection event. Optional, older centrals use
+	 * the classic characteristic.
+	 */
+	final public static UUID COINBLESK_CHARACTERISTIC_UUID_STREAM = UUID.fromString("90b26ed7-7200-40ee-9707-5becce10aaca");
+	/**
+	 * Bulk download: like the fast read, but the value holds as many of the
+	 * following fragments as fit, in a {@link Batch} envelope. The value is
+	 * longer than the MTU, so the central reads it with a long read, which
+	 * the stack sends back to back, without a round trip through the
+	 * initiator for every fragment. Optional, older centrals use the fast
+	 * read.
+	 */
+	final public static UUID COINBLESK_CHARACTERISTIC_UUID_BULK_READ = UUID.fromString("90b26ed7-7200-40ee-9707-5becce10aacb");
+	/**
+	 * The PSM of the L2CAP connection-oriented channel (2 bytes), if the
+	 * peripheral offers one. Over the channel, the frames are sent as a
+	 * stream, see {@link StreamNfcTransceiver}, which is much faster than
+	 * GATT for large messages. Only there from Android 10.
+	 */
+	final public static UUID COINBLESK_CHARACTERISTIC_UUID_L2CAP_PSM = UUID.fromString("90b26ed7-7200-40ee-9707-5becce10aacc");
+	// the client characteristic configuration, to subscribe to notifications
+	final public static UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
 	
 	private final UUID localUUID;
 	
@@ -52,6 +88,8 @@ public class BTResponderSetup {
 	};
 	
 	private BluetoothGattServer server;
+	private BluetoothServerSocket l2capServer;
+	private int l2capPsm;
 	
 	final private BluetoothAdapter bluetoothAdapter;
 	final private BluetoothManager bluetoothManager;
@@ -59,6 +97,48 @@ public class BTResponderSetup {
 	
 	private static BTResponderSetup instance = null;
 	
+	/**
+	 * The link to one connected central. Every central has its own session in
+	 * the responder, see {@link NfcResponder#processIncomingData(Object, NfcMessage)},
+	 * so several customers can be served in parallel.
+	 */
+	private static class Central {
+		final private BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(1);
+		final private AtomicInteger seq = new AtomicInteger(0);
+		// until the central changes it, the default MTU applies
+		final private AtomicInteger mtu = new AtomicInteger(MtuNegotiation.DEFAULT_MTU);
+		// streaming mode, only one notification may be on the air, the others wait here
+		final private Queue<byte[]> notifications = new ArrayDeque<byte[]>();
+		private boolean notifying = false;
+		private volatile boolean subscribed = false;
+		// the value of the current long read of the bulk download
+		private volatile byte[] bulk;
+		// its frames, answered again if the central asks for one of them
+		final private BulkFrames bulkFrames = new BulkFrames();
+		
+		/**
+		 * Returns the next notification to send, or null if one is on the air
+		 * or there is none.
+		 */
+		private synchronized byte[] offer(byte[] notification) {
+			notifications.offer(notification);
+			if (notifying) {
+				return null;
+			}
+			notifying = true;
+			return notifications.poll();
+		}
+		
+		/**
+		 * The notification on the air was sent, returns the next one or null.
+		 */
+		private synchronized byte[] sent() {
+			final byte[] next = notifications.poll();
+			notifying = next != null;
+			return next;
+		}
+	}
+	
 	public static BTResponderSetup init(UUID localUUID, BluetoothManager bluetoothManager, 
     		BluetoothAdapter bluetoothAdapter) {
     	if(instance == null) {
@@ -79,30 +159,63 @@ public class BTResponderSetup {
 	
 	
 	public void advertise(final NfcResponder responder, final Activity activity) {
+		final BluetoothGattCharacteristic characteristicStream = new BluetoothGattCharacteristic(
+				COINBLESK_CHARACTERISTIC_UUID_STREAM, BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE | BluetoothGattCharacteristic.PROPERTY_NOTIFY,
+				BluetoothGattCharacteristic.PERMISSION_WRITE);
+		characteristicStream.addDescriptor(new BluetoothGattDescriptor(CLIENT_CHARACTERISTIC_CONFIG,
+				BluetoothGattDescriptor.PERMISSION_WRITE | BluetoothGattDescriptor.PERMISSION_READ));
+		
 		server = bluetoothManager.openGattServer(activity, new BluetoothGattServerCallback() {
 			
-			final private BlockingQueue<byte[]> queue = new ArrayBlockingQueue<byte[]>(1);
-			final AtomicInteger seq = new AtomicInteger(0);
+			final private ConcurrentMap<String, Central> centrals = new ConcurrentHashMap<String, Central>();
+			
+			private Central central(BluetoothDevice device) {
+				final Central central = centrals.get(device.getAddress());
+				if (central != null) {
+					return central;
+				}
+				final Central created = new Central();
+				final Central existing = centrals.putIfAbsent(device.getAddress(), created);
+				return existing == null ? created : existing;
+			}
 			
 			@Override
 			public void onCharacteristicReadRequest(BluetoothDevice device, int requestId, int offset,
 					BluetoothGattCharacteristic characteristic) {
+				final Central central = central(device);
 				if(characteristic.getUuid().equals(BTResponderSetup.COINBLESK_CHARACTERISTIC_UUID_FAST_READ)) {
 					
-					responder.setMtu(mtu.get() - BTInitiatorSetup.BT_OVERHEAD); 
+					responder.setMtu(device.getAddress(), MtuNegotiation.maxFrameLength(central.mtu.get())); 
 					
-					NfcMessage input = new NfcMessage(Type.FRAGMENT);
-					input.sequenceNumber(seq.get() + 1);
-					NfcMessage output = responder.processIncomingData(input);
-					seq.set(output.sequenceNumber());
+					final byte[] output = nextFragment(device, central);
 					if(Config.DEBUG) {
-						LOGGER.debug( "got request fast read, send back: {}", output);
+						LOGGER.debug( "got request fast read, send back: {}", Arrays.toString(output));
 					}
-					server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, output.bytes());
+					server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, output);
 					
+				} else if(characteristic.getUuid().equals(BTResponderSetup.COINBLESK_CHARACTERISTIC_UUID_L2CAP_PSM)) {
+					final int psm = l2capPsm;
+					if(l2capServer == null) {
+						server.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, 0, new byte[0]);
+						return;
+					}
+					server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, new byte[] {(byte) (psm >>> 8), (byte) psm});
+				} else if(characteristic.getUuid().equals(BTResponderSetup.COINBLESK_CHARACTERISTIC_UUID_BULK_READ)) {
+					if(offset == 0) {
+						central.bulk = bulk(device, central);
+					}
+					final byte[] bulk = central.bulk;
+					if(bulk == null || offset > bulk.length) {
+						server.sendResponse(device, requestId, BluetoothGatt.GATT_FAILURE, offset, new byte[0]);
+						return;
+					}
+					if(Config.DEBUG) {
+						LOGGER.debug( "got request bulk read at {}, length {}", offset, bulk.length);
+					}
+					server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, offset, Arrays.copyOfRange(bulk, offset, bulk.length));
 				} else if(characteristic.getUuid().equals(BTResponderSetup.COINBLESK_CHARACTERISTIC_UUID_CLASSIC)) {
 					try {
-						byte[] response = queue.take();
+						byte[] response = central.queue.take();
 						if(Config.DEBUG) {
 							LOGGER.debug( "got request classic read, send back: {}", response);
 						}
@@ -117,6 +230,47 @@ public class BTResponderSetup {
 				}
 			}
 			
+			/**
+			 * Answers the request for the next fragment that comes as a read, which
+			 * has no sequence number. If the central asks again for a frame of the
+			 * last bulk read, it is answered from there.
+			 */
+			private byte[] nextFragment(BluetoothDevice device, Central central) {
+				final NfcMessage input = new NfcMessage(Type.FRAGMENT);
+				input.sequenceNumber(central.seq.get() + 1);
+				final byte[] replayed = central.bulkFrames.answer(input.bytes());
+				if(replayed != null) {
+					central.seq.set(NfcMessage.sequence(replayed));
+					return replayed;
+				}
+				final NfcMessage output = responder.processIncomingData(device.getAddress(), input);
+				central.seq.set(output.sequenceNumber());
+				return output.bytes();
+			}
+			
+			/**
+			 * Pulls fragments of the outgoing message from the responder, as if
+			 * the central had asked for each, as long as another frame fits.
+			 */
+			private byte[] bulk(BluetoothDevice device, Central central) {
+				final int maxLen = MtuNegotiation.maxFrameLength(central.mtu.get());
+				responder.setMtu(device.getAddress(), maxLen);
+				final List<byte[]> frames = new ArrayList<byte[]>();
+				int length = Batch.ENVELOPE_LENGTH;
+				byte[] frame;
+				do {
+					frame = nextFragment(device, central);
+					frames.add(frame);
+					length += Batch.entryLength(frame);
+				} while(NfcMessage.type(frame) == Type.FRAGMENT && !NfcMessage.isEmpty(frame) && frames.size() < Batch.MAX_MESSAGES
+						&& length + Batch.ENTRY_HEADER_LENGTH + maxLen <= MtuNegotiation.MAX_ATTRIBUTE_LENGTH);
+				if(Config.DEBUG) {
+					LOGGER.debug( "bulk read of {} frames, {} bytes", frames.size(), length);
+				}
+				central.bulkFrames.set(frames);
+				return Batch.pack(frames);
+			}
+			
 			@Override
 			public void onCharacteristicWriteRequest(final BluetoothDevice device,
 					final int requestId, BluetoothGattCharacteristic characteristic,
@@ -126,12 +280,48 @@ public class BTResponderSetup {
 					LOGGER.debug( "got request write: {}", Arrays.toString(value));
 				}
 				
-				responder.setMtu(mtu.get() - BTInitiatorSetup.BT_OVERHEAD); 
+				final Central central = central(device);
+				responder.setMtu(device.getAddress(), MtuNegotiation.maxFrameLength(central.mtu.get())); 
+				
+				// the session is past the frames of the last bulk read, a request for one of them is answered from there
+				final byte[] replayed = central.bulkFrames.answer(value);
+				if(characteristic.getUuid().equals(BTResponderSetup.COINBLESK_CHARACTERISTIC_UUID_STREAM)) {
+					if(responseNeeded) {
+						server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, new byte[0]);
+					}
+					if(replayed != null) {
+						central.seq.set(NfcMessage.sequence(replayed));
+						notify(device, central, replayed);
+						return;
+					}
+					final NfcMessage output = responder.processIncomingData(device.getAddress(), new NfcMessage(value));
+					if(output == null) {
+						// windowed fragment, acknowledged later
+						return;
+					}
+					central.seq.set(output.sequenceNumber());
+					notify(device, central, output.bytes());
+					return;
+				}
 				
+				if(replayed != null) {
+					if(Config.DEBUG) {
+						LOGGER.debug( "answer again from the bulk read: {}", NfcMessage.sequence(replayed));
+					}
+					central.seq.set(NfcMessage.sequence(replayed));
+					central.queue.offer(replayed);
+					server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, new byte[0]);
+					return;
+				}
 				NfcMessage input = new NfcMessage(value);
 				//byte[] response = responder.processIncomingData(value);
-				NfcMessage output = responder.processIncomingData(input);
-				seq.set(output.sequenceNumber());
+				NfcMessage output = responder.processIncomingData(device.getAddress(), input);
+				if(output == null) {
+					// windowed fragment, acknowledged later
+					server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, new byte[0]);
+					return;
+				}
+				central.seq.set(output.sequenceNumber());
 				
 				/*if(output.isGetNextFragment()) {
 					server.sendResponse(device, requestId, BTInitiatorSetup.GET_NEXT_FRAGMENT, 0, new byte[0]);
@@ -149,7 +339,7 @@ public class BTResponderSetup {
 						LOGGER.debug( "indicate polling request");
 					}
 				} else*/ {
-					queue.offer(output.bytes());
+					central.queue.offer(output.bytes());
 					server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, new byte[0]);
 					if(Config.DEBUG) {
 						LOGGER.debug( "send back: {}", output);
@@ -158,12 +348,67 @@ public class BTResponderSetup {
 					
 			}
 			
+			/**
+			 * Sends the answer as notification, or queues it if the previous one
+			 * is still on the air.
+			 */
+			private void notify(BluetoothDevice device, Central central, byte[] answer) {
+				if(!central.subscribed) {
+					LOGGER.error("stream write from {} without subscription", device.getAddress());
+					return;
+				}
+				send(device, central, central.offer(answer));
+			}
+			
+			private void send(BluetoothDevice device, Central central, byte[] next) {
+				while(next != null) {
+					final boolean notified;
+					// the value of the characteristic is shared by all centrals
+					synchronized (characteristicStream) {
+						characteristicStream.setValue(next);
+						notified = server.notifyCharacteristicChanged(device, characteristicStream, false);
+					}
+					if(Config.DEBUG) {
+						LOGGER.debug( "notify {}: {}", device.getAddress(), notified);
+					}
+					if(notified) {
+						return;
+					}
+					// the other side will run into its timeout, try the next one
+					LOGGER.error("could not notify {}", device.getAddress());
+					next = central.sent();
+				}
+			}
+			
+			@Override
+			public void onNotificationSent(BluetoothDevice device, int status) {
+				final Central central = centrals.get(device.getAddress());
+				if(central == null) {
+					return;
+				}
+				send(device, central, central.sent());
+			}
+			
+			@Override
+			public void onDescriptorWriteRequest(BluetoothDevice device, int requestId,
+					BluetoothGattDescriptor descriptor, boolean preparedWrite, boolean responseNeeded,
+					int offset, byte[] value) {
+				final boolean subscribe = Arrays.equals(value, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+				if(Config.DEBUG) {
+					LOGGER.debug( "subscription of {}: {}", device.getAddress(), subscribe);
+				}
+				central(device).subscribed = subscribe;
+				if(responseNeeded) {
+					server.sendResponse(device, requestId, BluetoothGatt.GATT_SUCCESS, 0, new byte[0]);
+				}
+			}
+			
 			@Override
 			public void onMtuChanged(BluetoothDevice device, int mtu2) {
 				if(Config.DEBUG) {
-					LOGGER.debug( "MTU changed to {}", mtu);
+					LOGGER.debug( "MTU of {} changed to {}", device.getAddress(), mtu2);
 				}
-				mtu.set(mtu2);
+				central(device).mtu.set(mtu2);
 			}
 			
 			
@@ -176,6 +421,8 @@ public class BTResponderSetup {
 				if (newState == BluetoothGatt.STATE_CONNECTED) {
 					responder.getResponseHandler().btTagFound();
 				} else if (newState == BluetoothGatt.STATE_DISCONNECTED) {
+					centrals.remove(device.getAddress());
+					responder.removePeer(device.getAddress());
 					responder.getResponseHandler().btTagLost();
 				}
 			}
@@ -190,14 +437,93 @@ public class BTResponderSetup {
 				COINBLESK_CHARACTERISTIC_UUID_FAST_READ, BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ);
 		service.addCharacteristic(characteristicClassic);
 		service.addCharacteristic(characteristicFastRead);
+		service.addCharacteristic(characteristicStream);
+		service.addCharacteristic(new BluetoothGattCharacteristic(
+				COINBLESK_CHARACTERISTIC_UUID_BULK_READ, BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ));
+		if(listenL2cap(responder)) {
+			service.addCharacteristic(new BluetoothGattCharacteristic(
+					COINBLESK_CHARACTERISTIC_UUID_L2CAP_PSM, BluetoothGattCharacteristic.PROPERTY_READ, BluetoothGattCharacteristic.PERMISSION_READ));
+		}
 		server.addService(service);
 		
 		startLeAdvertising(bluetoothAdapter, localUUID);
 		
 	}
 	
+	/**
+	 * Opens the L2CAP channel, if supported, and serves every central that
+	 * connects on its own thread. Returns false if there is no channel, then
+	 * the centrals use GATT.
+	 */
+	private boolean listenL2cap(final NfcResponder responder) {
+		if(!BTUtils.l2capSupport()) {
+			return false;
+		}
+		final BluetoothServerSocket serverSocket;
+		try {
+			serverSocket = BTUtils.listenUsingInsecureL2capChannel(bluetoothAdapter);
+			l2capPsm = BTUtils.getPsm(serverSocket);
+		} catch (IOException e) {
+			LOGGER.error("could not open L2CAP channel", e);
+			return false;
+		}
+		l2capServer = serverSocket;
+		if(Config.DEBUG) {
+			LOGGER.debug( "L2CAP channel on PSM {}", l2capPsm);
+		}
+		final Thread accept = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				while(true) {
+					final BluetoothSocket socket;
+					try {
+						socket = serverSocket.accept();
+					} catch (IOException e) {
+						// closed by stopAdvertise
+						return;
+					}
+					serveL2cap(responder, socket);
+				}
+			}
+		}, "nfc-l2cap-accept");
+		accept.setDaemon(true);
+		accept.start();
+		return true;
+	}
+	
+	private static void serveL2cap(final NfcResponder responder, final BluetoothSocket socket) {
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// the same key as over GATT, a central can continue its session
+					new StreamResponder(responder, socket.getRemoteDevice().getAddress(), socket.getInputStream(), 
+							socket.getOutputStream(), StreamNfcTransceiver.DEFAULT_FRAME_LENGTH).run();
+				} catch (IOException e) {
+					LOGGER.error("L2CAP channel lost", e);
+				} finally {
+					try {
+						socket.close();
+					} catch (IOException e) {
+						LOGGER.error("could not close L2CAP channel", e);
+					}
+				}
+			}
+		}, "nfc-l2cap");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
 	public void stopAdvertise() {
 		stopLeAdvertising(bluetoothAdapter);
+		if(l2capServer != null) {
+			try {
+				l2capServer.close();
+			} catch (IOException e) {
+				LOGGER.error("could not close L2CAP channel", e);
+			}
+			l2capServer = null;
+		}
 	}
 	
 	public UUID getLocalUUID() {
@@ -1,17 +1,78 @@
 package ch.uzh.csg.btlib;
 
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+
 import android.app.Activity;
 import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageManager;
+import android.os.Build;
 import android.util.Pair;
 
 public class BTUtils {
 	
+	// Android 10 (Q), the first with L2CAP connection-oriented channels. The
+	// library builds against an older SDK, so the calls go through reflection.
+	public static final int L2CAP_SDK_INT = 29;
+	
 	private BTUtils(){}
 	
+	public static boolean l2capSupport() {
+		return Build.VERSION.SDK_INT >= L2CAP_SDK_INT;
+	}
+	
+	/**
+	 * Calls BluetoothAdapter.listenUsingInsecureL2capChannel(), only if
+	 * {@link #l2capSupport()}.
+	 */
+	public static BluetoothServerSocket listenUsingInsecureL2capChannel(final BluetoothAdapter adapter) 
+			throws IOException {
+		return (BluetoothServerSocket) invoke(adapter, "listenUsingInsecureL2capChannel");
+	}
+	
+	/**
+	 * Calls BluetoothDevice.createInsecureL2capChannel(int), only if
+	 * {@link #l2capSupport()}.
+	 */
+	public static BluetoothSocket createInsecureL2capChannel(final BluetoothDevice device, final int psm) 
+			throws IOException {
+		return (BluetoothSocket) invoke(device, "createInsecureL2capChannel", psm);
+	}
+	
+	/**
+	 * Calls BluetoothServerSocket.getPsm(), only if {@link #l2capSupport()}.
+	 */
+	public static int getPsm(final BluetoothServerSocket serverSocket) throws IOException {
+		return (Integer) invoke(serverSocket, "getPsm");
+	}
+	
+	private static Object invoke(final Object target, final String name, final int... args) throws IOException {
+		final Class<?>[] types = new Class<?>[args.length];
+		final Object[] values = new Object[args.length];
+		for (int i = 0; i < args.length; i++) {
+			types[i] = int.class;
+			values[i] = args[i];
+		}
+		try {
+			return target.getClass().getMethod(name, types).invoke(target, values);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(name + " failed", e.getCause());
+		} catch (ReflectiveOperationException e) {
+			throw new IOException(name + " not available", e);
+		} catch (RuntimeException e) {
+			throw new IOException(name + " failed", e);
+		}
+	}
+	
 	public static boolean btleSupport(final Activity activity) {
 		return activity.getPackageManager().hasSystemFeature(PackageManager.FEATURE_BLUETOOTH_LE);
 	}
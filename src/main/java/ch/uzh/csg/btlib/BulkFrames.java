@@ -0,0 +1,84 @@
+package ch.uzh.csg.btlib;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.List;
+
+import ch.uzh.csg.comm.NfcMessage;
+import ch.uzh.csg.comm.NfcMessage.Type;
+
+/**
+ * The frames of the last bulk read, the answers to the next requests for a
+ * fragment. The responder answers the requests ahead of time when the
+ * central reads the bulk characteristic, so these frames are gone from its
+ * session. Both sides keep them until the central asked for all of them: the
+ * central answers its requests from here, and the peripheral answers a
+ * request for one of them again, e.g., if the central dropped its copy.
+ *
+ * A frame answers the request for the next fragment with the same sequence
+ * number. The frames before it were received, they are dropped. Thread-safe.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public final class BulkFrames {
+
+	private final Deque<byte[]> frames = new ArrayDeque<byte[]>();
+
+	/**
+	 * Replaces the frames with the frames of a new bulk read.
+	 */
+	public synchronized void set(final List<byte[]> bulk) {
+		frames.clear();
+		frames.addAll(bulk);
+	}
+
+	/**
+	 * Returns the frame that answers the request and keeps it, the request
+	 * may come again. Returns null if there is none, then all frames are
+	 * dropped, the transfer moved past them, or it is over.
+	 */
+	public synchronized byte[] answer(final byte[] request) {
+		final byte[] frame = find(request);
+		if (frame == null) {
+			frames.clear();
+		}
+		return frame;
+	}
+
+	/**
+	 * Returns the frame that answers the request and removes it, see
+	 * {@link #answer(byte[])}.
+	 */
+	public synchronized byte[] take(final byte[] request) {
+		final byte[] frame = answer(request);
+		if (frame != null) {
+			frames.poll();
+		}
+		return frame;
+	}
+
+	private byte[] find(final byte[] request) {
+		if (NfcMessage.type(request) != Type.FRAGMENT || !NfcMessage.isEmpty(request)) {
+			return null;
+		}
+		final int sequence = NfcMessage.sequence(request);
+		for (byte[] frame : frames) {
+			if (NfcMessage.sequence(frame) == sequence) {
+				while (frames.peek() != frame) {
+					frames.poll();
+				}
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	public synchronized boolean isEmpty() {
+		return frames.isEmpty();
+	}
+
+	public synchronized void clear() {
+		frames.clear();
+	}
+}
@@ -0,0 +1,174 @@
+package ch.uzh.csg.btlib;
+
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Handler;
+import ch.uzh.csg.comm.Config;
+
+/**
+ * Sets the connection priority of the GATT client. With the default
+ * connection interval, every frame waits for the next connection event,
+ * which is too slow for a payment. From the connection until the services
+ * are discovered, and while frames are sent, the policy asks for
+ * {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH}. If no frame was sent for
+ * the idle delay, it goes back to the idle priority, balanced by default, to
+ * save power.
+ *
+ * The round trip of every frame is recorded for the priority it ran at, to
+ * verify the effect of the policy.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class ConnectionPriorityPolicy {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(ConnectionPriorityPolicy.class);
+	// the priorities are 0 to 2, see BluetoothGatt
+	private static final int PRIORITIES = 3;
+
+	private volatile boolean enabled = true;
+	private volatile int idlePriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+	private volatile long idleDelayNanos = TimeUnit.SECONDS.toNanos(1);
+
+	// state, guarded by this
+	private int priority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+	private long lastActivity = 0;
+	private boolean idleCheck = false;
+
+	// statistics
+	private final long[] roundTrips = new long[PRIORITIES];
+	private final long[] roundTripNanos = new long[PRIORITIES];
+
+	/**
+	 * Disables the policy, the connection keeps the priority Android chose.
+	 */
+	public ConnectionPriorityPolicy enabled(final boolean enabled) {
+		this.enabled = enabled;
+		return this;
+	}
+
+	/**
+	 * Sets the priority when idle, balanced or low power.
+	 */
+	public ConnectionPriorityPolicy idlePriority(final int idlePriority) {
+		if (idlePriority != BluetoothGatt.CONNECTION_PRIORITY_BALANCED
+				&& idlePriority != BluetoothGatt.CONNECTION_PRIORITY_LOW_POWER) {
+			throw new IllegalArgumentException("idle priority must be balanced or low power: " + idlePriority);
+		}
+		this.idlePriority = idlePriority;
+		return this;
+	}
+
+	/**
+	 * Sets the time without frames after which the connection is idle.
+	 */
+	public ConnectionPriorityPolicy idleDelay(final long idleDelay, final TimeUnit unit) {
+		this.idleDelayNanos = unit.toNanos(idleDelay);
+		return this;
+	}
+
+	/**
+	 * Called when the connection is established, the setup until the first
+	 * frame runs at high priority.
+	 */
+	void connected(final BluetoothGatt gatt, final Handler handler) {
+		synchronized (this) {
+			priority = idlePriority;
+			idleCheck = false;
+		}
+		busy(gatt, handler);
+	}
+
+	/**
+	 * Called before a frame is sent.
+	 */
+	void busy(final BluetoothGatt gatt, final Handler handler) {
+		if (!enabled) {
+			return;
+		}
+		final boolean request;
+		final boolean schedule;
+		synchronized (this) {
+			lastActivity = System.nanoTime();
+			request = priority != BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+			schedule = !idleCheck;
+			idleCheck = true;
+		}
+		if (request) {
+			request(gatt, BluetoothGatt.CONNECTION_PRIORITY_HIGH);
+		}
+		if (schedule) {
+			scheduleIdleCheck(gatt, handler, idleDelayNanos);
+		}
+	}
+
+	private void scheduleIdleCheck(final BluetoothGatt gatt, final Handler handler, final long delayNanos) {
+		handler.postDelayed(new Runnable() {
+			@Override
+			public void run() {
+				final long remaining;
+				synchronized (ConnectionPriorityPolicy.this) {
+					remaining = lastActivity + idleDelayNanos - System.nanoTime();
+					idleCheck = remaining > 0;
+				}
+				if (remaining > 0) {
+					scheduleIdleCheck(gatt, handler, remaining);
+				} else {
+					request(gatt, idlePriority);
+				}
+			}
+		}, Math.max(1, TimeUnit.NANOSECONDS.toMillis(delayNanos)));
+	}
+
+	private void request(final BluetoothGatt gatt, final int newPriority) {
+		final boolean requested = gatt.requestConnectionPriority(newPriority);
+		if (Config.DEBUG) {
+			LOGGER.debug("connection priority {}: {}, round trips so far: {}", newPriority, requested, this);
+		}
+		if (requested) {
+			synchronized (this) {
+				priority = newPriority;
+			}
+		}
+	}
+
+	/**
+	 * Records the round trip of a frame, from the write until the answer.
+	 */
+	synchronized void roundTrip(final long nanos) {
+		roundTrips[priority]++;
+		roundTripNanos[priority] += nanos;
+	}
+
+	/**
+	 * Returns the number of round trips recorded at the priority.
+	 */
+	public synchronized long roundTrips(final int priority) {
+		return roundTrips[priority];
+	}
+
+	/**
+	 * Returns the mean round trip at the priority in nanoseconds, 0 if there
+	 * was none.
+	 */
+	public synchronized long meanRoundTripNanos(final int priority) {
+		return roundTrips[priority] == 0 ? 0 : roundTripNanos[priority] / roundTrips[priority];
+	}
+
+	@Override
+	public synchronized String toString() {
+		final StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < PRIORITIES; i++) {
+			if (i > 0) {
+				sb.append(", ");
+			}
+			sb.append(i).append(": ").append(roundTrips[i]).append(" x ")
+					.append(TimeUnit.NANOSECONDS.toMicros(meanRoundTripNanos(i))).append("us");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,115 @@
+package ch.uzh.csg.btlib;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Picks the MTU to request from a peripheral. The first request uses the
+ * best MTU of the last connection to the same device, or to the same service
+ * UUID, as the address of a phone may change between connections. Without
+ * such an entry, the request starts at the top of the ladder. If a request
+ * fails, the next lower step of the ladder is requested, down to the default
+ * MTU, which needs no request.
+ *
+ * The steps are the MTUs phones commonly end up with: 517 (the maximum on
+ * Android), 247 (a 251 byte link layer packet with data length extension),
+ * 185 (iOS) and 158. The ATT header of a write or a notification takes
+ * {@link #ATT_OVERHEAD} bytes of the MTU, and no attribute value is longer
+ * than {@link #MAX_ATTRIBUTE_LENGTH} bytes, so the top step carries 512 bytes
+ * per frame, not 514.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public final class MtuNegotiation {
+
+	public static final int DEFAULT_MTU = 23;
+	public static final int MAX_MTU = 517;
+	public static final int ATT_OVERHEAD = 3;
+	// the longest value of an attribute, which also bounds a long read
+	public static final int MAX_ATTRIBUTE_LENGTH = 512;
+	private static final int[] LADDER = { MAX_MTU, 247, 185, 158, DEFAULT_MTU };
+
+	private final Map<String, Integer> best;
+
+	/**
+	 * @param size
+	 *            the number of devices and service UUIDs remembered
+	 */
+	public MtuNegotiation(final int size) {
+		this.best = new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(final Map.Entry<String, Integer> eldest) {
+				return size() > size;
+			}
+		};
+	}
+
+	/**
+	 * Returns the MTU to request first.
+	 */
+	public synchronized int first(final String address, final UUID remoteUUID) {
+		Integer mtu = best.get(address);
+		if (mtu == null && remoteUUID != null) {
+			mtu = best.get(remoteUUID.toString());
+		}
+		return mtu == null ? MAX_MTU : mtu;
+	}
+
+	/**
+	 * Returns the MTU to request after a request for mtu failed, the default
+	 * MTU if there is no lower step.
+	 */
+	public static int next(final int mtu) {
+		for (int step : LADDER) {
+			if (step < mtu) {
+				return step;
+			}
+		}
+		return DEFAULT_MTU;
+	}
+
+	/**
+	 * Remembers the negotiated MTU, which may be lower than requested. A
+	 * lower MTU than remembered, e.g., of a bad connection, does not replace
+	 * the best one, only a failed request does.
+	 */
+	public synchronized void succeeded(final String address, final UUID remoteUUID, final int mtu) {
+		remember(address, mtu);
+		if (remoteUUID != null) {
+			remember(remoteUUID.toString(), mtu);
+		}
+	}
+
+	private void remember(final String key, final int mtu) {
+		final Integer remembered = best.get(key);
+		best.put(key, remembered == null ? mtu : Math.max(remembered, mtu));
+	}
+
+	/**
+	 * Forgets a remembered MTU the device no longer accepts.
+	 */
+	public synchronized void failed(final String address, final UUID remoteUUID, final int mtu) {
+		remove(address, mtu);
+		if (remoteUUID != null) {
+			remove(remoteUUID.toString(), mtu);
+		}
+	}
+
+	private void remove(final String key, final int mtu) {
+		final Integer remembered = best.get(key);
+		if (remembered != null && remembered >= mtu) {
+			best.remove(key);
+		}
+	}
+
+	/**
+	 * Returns the largest frame that fits into a write or a notification.
+	 */
+	public static int maxFrameLength(final int mtu) {
+		return Math.min(Math.max(DEFAULT_MTU, mtu) - ATT_OVERHEAD, MAX_ATTRIBUTE_LENGTH);
+	}
+}
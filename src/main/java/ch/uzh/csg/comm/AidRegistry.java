@@ -0,0 +1,195 @@
+package ch.uzh.csg.comm;
+
+import ch.uzh.csg.comm.NfcMessage.Type;
+
+/**
+ * Registry of the application identifiers (AIDs) this library answers to. Each
+ * AID stands for one MTU class ({@link Type#AID_1}, {@link Type#AID_2} or
+ * {@link Type#AID_3}) and may be marked as the "first" variant, which resets
+ * the other side.
+ *
+ * The built-in AID_COINBLESK_x AIDs are always registered. Applications can
+ * register their own AIDs (they also have to be listed as aid-filter in the
+ * manifest). Lookups are done on the raw APDU with an open addressing hash
+ * table, so they neither allocate nor get slower with more registered AIDs.
+ * Registration copies the table, it is meant to be done once at startup.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public final class AidRegistry {
+
+	public static final int NOT_FOUND = -1;
+
+	//encoding of the lookup result: bit 0-3 type ordinal, bit 4 first flag, bit 5 extended handshake
+	public static final int TYPE_MASK = 0x0F;
+	public static final int FIRST = 0x10;
+	public static final int EXTENDED = 0x20;
+
+	//CLA INS P1 P2 Lc
+	private static final int SELECT_HEADER_LENGTH = 5;
+
+	private static volatile Table table = new Table(16);
+
+	static {
+		register(NfcMessage.AID_COINBLESK_1, Type.AID_1);
+		register(NfcMessage.AID_COINBLESK_2, Type.AID_2);
+		register(NfcMessage.AID_COINBLESK_3, Type.AID_3);
+		registerExtended(NfcMessage.AID_COINBLESK_EXT_1, Type.AID_1);
+		registerExtended(NfcMessage.AID_COINBLESK_EXT_2, Type.AID_2);
+		registerExtended(NfcMessage.AID_COINBLESK_EXT_3, Type.AID_3);
+	}
+
+	private AidRegistry() {}
+
+	/**
+	 * Registers an AID and its "first" variant, where the byte at
+	 * {@link NfcMessage#AID_COINBLESK_FIRST_POS} of the SELECT APDU is replaced
+	 * by {@link NfcMessage#AID_COINBLESK_FIRST}.
+	 *
+	 * @param aid
+	 *            the AID, at least 6 bytes
+	 * @param mtuClass
+	 *            one of AID_1, AID_2 or AID_3
+	 */
+	public static void register(final byte[] aid, final Type mtuClass) {
+		registerPair(aid, mtuClass, 0);
+	}
+	
+	/**
+	 * Same as {@link #register(byte[], Type)}, but selecting the AID starts
+	 * the extended handshake, where capabilities are negotiated.
+	 */
+	public static void registerExtended(final byte[] aid, final Type mtuClass) {
+		registerPair(aid, mtuClass, EXTENDED);
+	}
+	
+	private static void registerPair(final byte[] aid, final Type mtuClass, final int flags) {
+		final int firstPos = NfcMessage.AID_COINBLESK_FIRST_POS - SELECT_HEADER_LENGTH;
+		if (aid.length <= firstPos) {
+			throw new IllegalArgumentException("AID too short, need at least " + (firstPos + 1) + " bytes");
+		}
+		final byte[] firstAid = aid.clone();
+		firstAid[firstPos] = NfcMessage.AID_COINBLESK_FIRST;
+		register(aid, mtuClass, flags);
+		register(firstAid, mtuClass, flags | FIRST);
+	}
+
+	/**
+	 * Registers a single AID.
+	 *
+	 * @param aid
+	 *            the AID, 1 to 16 bytes
+	 * @param mtuClass
+	 *            one of AID_1, AID_2 or AID_3
+	 * @param flags
+	 *            {@link #FIRST} if selecting this AID resets the other side,
+	 *            {@link #EXTENDED} for the extended handshake
+	 */
+	public static synchronized void register(final byte[] aid, final Type mtuClass, final int flags) {
+		if (mtuClass != Type.AID_1 && mtuClass != Type.AID_2 && mtuClass != Type.AID_3) {
+			throw new IllegalArgumentException("not an MTU class: " + mtuClass);
+		}
+		if (aid.length == 0 || aid.length > 16) {
+			throw new IllegalArgumentException("invalid AID length: " + aid.length);
+		}
+		final Table old = table;
+		// keep the load factor below 0.5
+		final Table next = new Table(old.size * 4 >= old.aids.length ? old.aids.length * 2 : old.aids.length);
+		for (int i = 0; i < old.aids.length; i++) {
+			if (old.aids[i] != null) {
+				next.put(old.aids[i], old.values[i]);
+			}
+		}
+		next.put(aid.clone(), mtuClass.ordinal() | (flags & (FIRST | EXTENDED)));
+		table = next;
+	}
+
+	/**
+	 * Looks up the AID of a SELECT APDU.
+	 *
+	 * @return {@link #NOT_FOUND} if the APDU is not a SELECT of a registered
+	 *         AID, otherwise the type ordinal, with {@link #FIRST} set for the
+	 *         first variant and {@link #EXTENDED} for the extended handshake
+	 */
+	public static int lookupSelect(final byte[] input, final int offset, final int len) {
+		if (len <= SELECT_HEADER_LENGTH) {
+			return NOT_FOUND;
+		}
+		final byte[] cla = NfcMessage.CLA_INS_P1_P2;
+		if (input[offset] != cla[0] || input[offset + 1] != cla[1]
+				|| input[offset + 2] != cla[2] || input[offset + 3] != cla[3]) {
+			return NOT_FOUND;
+		}
+		final int lc = input[offset + 4] & 0xFF;
+		// the AID is followed by Le, only the extended handshake appends data after Le
+		final int selectLength = SELECT_HEADER_LENGTH + lc + 1;
+		if (len < selectLength) {
+			return NOT_FOUND;
+		}
+		final int value = table.get(input, offset + SELECT_HEADER_LENGTH, lc);
+		if (value != NOT_FOUND && len != selectLength && (value & EXTENDED) == 0) {
+			return NOT_FOUND;
+		}
+		return value;
+	}
+
+	private static final class Table {
+		private final byte[][] aids;
+		private final int[] values;
+		private int size = 0;
+
+		private Table(final int capacity) {
+			aids = new byte[capacity][];
+			values = new int[capacity];
+		}
+
+		private void put(final byte[] aid, final int value) {
+			final int mask = aids.length - 1;
+			int i = hash(aid, 0, aid.length) & mask;
+			while (aids[i] != null) {
+				if (equals(aids[i], aid, 0, aid.length)) {
+					values[i] = value;
+					return;
+				}
+				i = (i + 1) & mask;
+			}
+			aids[i] = aid;
+			values[i] = value;
+			size++;
+		}
+
+		private int get(final byte[] input, final int offset, final int len) {
+			final int mask = aids.length - 1;
+			int i = hash(input, offset, len) & mask;
+			byte[] aid;
+			while ((aid = aids[i]) != null) {
+				if (equals(aid, input, offset, len)) {
+					return values[i];
+				}
+				i = (i + 1) & mask;
+			}
+			return NOT_FOUND;
+		}
+
+		private static int hash(final byte[] input, final int offset, final int len) {
+			int h = len;
+			for (int i = 0; i < len; i++) {
+				h = 31 * h + input[offset + i];
+			}
+			return h ^ (h >>> 16);
+		}
+
+		private static boolean equals(final byte[] aid, final byte[] input, final int offset, final int len) {
+			if (aid.length != len) {
+				return false;
+			}
+			for (int i = 0; i < len; i++) {
+				if (aid[i] != input[offset + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,99 @@
+package ch.uzh.csg.comm;
+
+import ch.uzh.csg.comm.NfcMessage.Type;
+
+/**
+ * Produces the fragments of a message that is in memory. Each fragment is a
+ * view into the original payload, nothing is copied except the first fragment
+ * if it carries the length hint. The payload must not be modified until the
+ * last fragment has been sent.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class ArrayFragmentSource implements FragmentSource {
+
+	private final byte[] payload;
+	private final int fragmentLength;
+	private final boolean lengthHint;
+	private int position = 0;
+	private boolean started = false;
+
+	/**
+	 * @param payload
+	 *            the whole message
+	 * @param fragmentLength
+	 *            the maximum payload length of one fragment
+	 * @param lengthHint
+	 *            true if the first fragment of a fragmented message starts
+	 *            with the total length
+	 */
+	public ArrayFragmentSource(final byte[] payload, final int fragmentLength, final boolean lengthHint) {
+		this(payload, fragmentLength, lengthHint, 0);
+	}
+
+	/**
+	 * Continues a message the other side received up to the offset. All
+	 * fragments are continuations, the first one has no length hint.
+	 * 
+	 * @param offset
+	 *            the number of bytes of the payload already sent
+	 */
+	public ArrayFragmentSource(final byte[] payload, final int fragmentLength, final boolean lengthHint, 
+			final int offset) {
+		this.payload = payload;
+		this.fragmentLength = fragmentLength;
+		this.lengthHint = lengthHint;
+		this.position = offset;
+		this.started = offset > 0;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return position < payload.length;
+	}
+
+	@Override
+	public NfcMessage next() {
+		final int len = payload.length;
+		if (position >= len) {
+			return null;
+		}
+		if (!started) {
+			started = true;
+			if (len <= fragmentLength) {
+				position = len;
+				return new NfcMessage(Type.SINGLE).payload(payload);
+			}
+			if (lengthHint) {
+				final int hint = NfcMessageSplitter.LENGTH_HINT_SIZE;
+				final int end = fragmentLength - hint;
+				final byte[] first = new byte[fragmentLength];
+				Utils.intToByteArray(len, first, 0);
+				System.arraycopy(payload, 0, first, hint, end);
+				position = end;
+				return new NfcMessage(Type.FRAGMENT).payload(first);
+			}
+		}
+		final int start = position;
+		final boolean last = start + fragmentLength >= len;
+		position = last ? len : (start + fragmentLength);
+		return new NfcMessage(last ? Type.FRAGMENT_LAST : Type.FRAGMENT).payload(payload, start, position - start);
+	}
+
+	@Override
+	public int remaining() {
+		final int len = payload.length;
+		if (position >= len) {
+			return 0;
+		}
+		if (!started) {
+			if (len <= fragmentLength) {
+				return 1;
+			}
+			final int total = len + (lengthHint ? NfcMessageSplitter.LENGTH_HINT_SIZE : 0);
+			return (total + fragmentLength - 1) / fragmentLength;
+		}
+		return (len - position + fragmentLength - 1) / fragmentLength;
+	}
+}
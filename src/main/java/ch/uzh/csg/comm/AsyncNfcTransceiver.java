@@ -0,0 +1,37 @@
+package ch.uzh.csg.comm;
+
+/**
+ * A transceiver that does not block the caller while a frame is on the air.
+ * The response is reported to a callback, on whatever thread the transport
+ * uses, e.g., the GATT callback thread on BLE. If the initiator uses such a
+ * transceiver, no thread waits for the other side, so many links can be
+ * served by a few threads. Use {@link ExecutorNfcTransceiver} to drive a
+ * blocking transceiver this way.
+ *
+ * The initiator has at most one frame outstanding and writes the next frame
+ * from within the callback. The callback may also be called before write
+ * returns.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public interface AsyncNfcTransceiver {
+
+	/**
+	 * Writes a serialized {@link NfcMessage} to the NFC partner and returns
+	 * without waiting for the response.
+	 *
+	 * @param input
+	 *            the serialized {@link NfcMessage}
+	 * @param callback
+	 *            called once with the response or the failure
+	 */
+	public void write(byte[] input, TransceiveCallback callback);
+
+	/**
+	 * Returns the maximum transceive (send/receive) length.
+	 */
+	public int maxLen();
+
+	public void close();
+}
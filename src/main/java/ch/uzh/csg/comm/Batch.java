@@ -0,0 +1,117 @@
+package ch.uzh.csg.comm;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Message envelope for the negotiated batching, see
+ * {@link NfcMessage#CAP_BATCH}. Several small messages are sent as one
+ * message, so they need one round trip instead of one each. The first byte
+ * is the number of messages in the batch:
+ *
+ * 0 | message
+ * n | length (2 bytes) | message | ... (n times)
+ *
+ * The envelope is applied before the compression. A batch of n requests is
+ * answered with a batch of n responses, in the same order.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public final class Batch {
+
+	public static final int MAX_MESSAGES = 255;
+	// the length of one message in a batch is an unsigned short
+	public static final int MAX_LENGTH = 0xFFFF;
+	public static final int ENVELOPE_LENGTH = 1;
+	public static final int ENTRY_HEADER_LENGTH = 2;
+
+	private Batch() {
+	}
+
+	/**
+	 * Returns a single message in the envelope.
+	 */
+	public static byte[] single(final byte[] message) {
+		final byte[] output = new byte[message.length + ENVELOPE_LENGTH];
+		System.arraycopy(message, 0, output, ENVELOPE_LENGTH, message.length);
+		return output;
+	}
+
+	/**
+	 * Returns the messages in the envelope, as batch also if there is only one.
+	 */
+	public static byte[] pack(final List<byte[]> messages) {
+		if (messages.isEmpty() || messages.size() > MAX_MESSAGES) {
+			throw new IllegalArgumentException("a batch has between 1 and " + MAX_MESSAGES + " messages");
+		}
+		int length = ENVELOPE_LENGTH;
+		for (byte[] message : messages) {
+			if (message.length > MAX_LENGTH) {
+				throw new IllegalArgumentException("message too large for a batch: " + message.length);
+			}
+			length += ENTRY_HEADER_LENGTH + message.length;
+		}
+		final byte[] output = new byte[length];
+		output[0] = (byte) messages.size();
+		int position = ENVELOPE_LENGTH;
+		for (byte[] message : messages) {
+			output[position++] = (byte) (message.length >>> 8);
+			output[position++] = (byte) message.length;
+			System.arraycopy(message, 0, output, position, message.length);
+			position += message.length;
+		}
+		return output;
+	}
+
+	/**
+	 * Returns the length of a message in a batch, including its header.
+	 */
+	public static int entryLength(final byte[] message) {
+		return ENTRY_HEADER_LENGTH + message.length;
+	}
+
+	/**
+	 * Returns true if the envelope contains a batch, false if it contains a
+	 * single message.
+	 */
+	public static boolean isBatch(final byte[] envelope) throws IOException {
+		if (envelope.length < ENVELOPE_LENGTH) {
+			throw new IOException("batch envelope missing");
+		}
+		return envelope[0] != 0;
+	}
+
+	/**
+	 * Returns the messages in the envelope, a single message is returned as a
+	 * list of one.
+	 */
+	public static List<byte[]> unpack(final byte[] envelope) throws IOException {
+		if (!isBatch(envelope)) {
+			final List<byte[]> single = new ArrayList<byte[]>(1);
+			single.add(Arrays.copyOfRange(envelope, ENVELOPE_LENGTH, envelope.length));
+			return single;
+		}
+		final int count = envelope[0] & 0xFF;
+		final List<byte[]> messages = new ArrayList<byte[]>(count);
+		int position = ENVELOPE_LENGTH;
+		for (int i = 0; i < count; i++) {
+			if (position + ENTRY_HEADER_LENGTH > envelope.length) {
+				throw new IOException("batch truncated at message " + i);
+			}
+			final int length = ((envelope[position] & 0xFF) << 8) | (envelope[position + 1] & 0xFF);
+			position += ENTRY_HEADER_LENGTH;
+			if (position + length > envelope.length) {
+				throw new IOException("batch truncated at message " + i);
+			}
+			messages.add(Arrays.copyOfRange(envelope, position, position + length));
+			position += length;
+		}
+		if (position != envelope.length) {
+			throw new IOException("unexpected data after the batch");
+		}
+		return messages;
+	}
+}
@@ -0,0 +1,30 @@
+package ch.uzh.csg.comm;
+
+/**
+ * A transceiver that sends from and receives into buffers owned by the
+ * caller, so a frame can be sent without allocating any array. If the
+ * initiator uses such a transceiver, it encodes every request into the same
+ * buffer and decodes the response in place.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface BufferedNfcTransceiver extends NfcTransceiver {
+
+	/**
+	 * Writes the first inputLength bytes of the input to the NFC partner and
+	 * copies the response into the output.
+	 * 
+	 * @param input
+	 *            the serialized {@link NfcMessage}
+	 * @param inputLength
+	 *            the number of bytes to send
+	 * @param output
+	 *            the buffer for the response, at least as large as the
+	 *            maximum frame length negotiated in the handshake
+	 * @return the length of the response
+	 * @throws NfcLibException
+	 *             if the connection is lost
+	 */
+	public int write(byte[] input, int inputLength, byte[] output) throws Exception;
+}
@@ -0,0 +1,243 @@
+package ch.uzh.csg.comm;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Message envelope for the negotiated compression, see
+ * {@link NfcMessage#CAP_COMPRESSION}. The whole message is compressed before
+ * it is split into fragments, and decompressed after the last fragment has
+ * been reassembled. The first byte tells if the message is compressed:
+ * 
+ * RAW | payload
+ * DEFLATE | original length (4 bytes) | deflated payload
+ * 
+ * Messages that don't shrink are sent as RAW. Streamed messages are always
+ * deflated, with the length 0 (unknown).
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class Compression {
+	
+	private static final Logger LOGGER = LoggerFactory.getLogger(Compression.class);
+
+	public static final byte RAW = 0;
+	public static final byte DEFLATE = 1;
+
+	private static final int DEFLATE_HEADER = 1 + 4;
+	// smaller messages don't get shorter
+	private static final int MIN_LENGTH = 32;
+	// don't inflate whatever length the other side claims
+	private static final int MAX_LENGTH = 16 * 1024 * 1024;
+
+	private final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+	private final Inflater inflater = new Inflater(true);
+
+	/**
+	 * Returns the message in the envelope, compressed if it gets shorter.
+	 */
+	public synchronized byte[] encode(final byte[] payload) {
+		final int len = payload.length;
+		if (len >= MIN_LENGTH) {
+			// only worth it if it gets shorter than the raw message, so the
+			// output buffer is never larger than the payload
+			final byte[] output = new byte[len];
+			deflater.reset();
+			deflater.setInput(payload);
+			deflater.finish();
+			int written = DEFLATE_HEADER;
+			while (!deflater.finished() && written < output.length) {
+				written += deflater.deflate(output, written, output.length - written);
+			}
+			if (deflater.finished()) {
+				output[0] = DEFLATE;
+				Utils.intToByteArray(len, output, 1);
+				if (Config.DEBUG) {
+					LOGGER.debug("compressed {} to {} bytes", len, written);
+				}
+				return written == output.length ? output : Arrays.copyOf(output, written);
+			}
+		}
+		final byte[] output = new byte[len + 1];
+		output[0] = RAW;
+		System.arraycopy(payload, 0, output, 1, len);
+		return output;
+	}
+
+	/**
+	 * Returns the original message.
+	 * 
+	 * @throws IOException
+	 *             if the envelope is broken
+	 */
+	public synchronized byte[] decode(final byte[] message) throws IOException {
+		if (message.length == 0) {
+			throw new IOException("empty message, envelope missing");
+		}
+		switch (message[0]) {
+		case RAW:
+			final byte[] payload = new byte[message.length - 1];
+			System.arraycopy(message, 1, payload, 0, payload.length);
+			return payload;
+		case DEFLATE:
+			if (message.length < DEFLATE_HEADER) {
+				throw new IOException("compressed message too short");
+			}
+			final int len = Utils.byteArrayToInt(message, 1);
+			if (len < 0 || len > MAX_LENGTH) {
+				throw new IOException("invalid length of compressed message: " + len);
+			}
+			inflater.reset();
+			inflater.setInput(message, DEFLATE_HEADER, message.length - DEFLATE_HEADER);
+			try {
+				return len == 0 ? inflateUnknown() : inflate(len);
+			} catch (DataFormatException e) {
+				throw new IOException("compressed message corrupt", e);
+			}
+		default:
+			throw new IOException("unknown envelope: " + message[0]);
+		}
+	}
+	
+	private byte[] inflate(final int len) throws IOException, DataFormatException {
+		final byte[] output = new byte[len];
+		int read = 0;
+		while (read < len) {
+			final int n = inflater.inflate(output, read, len - read);
+			if (n == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+				throw new IOException("compressed message truncated");
+			}
+			read += n;
+		}
+		return output;
+	}
+	
+	// the message was streamed, inflate until the end
+	private byte[] inflateUnknown() throws IOException, DataFormatException {
+		byte[] output = new byte[256];
+		int read = 0;
+		while (!inflater.finished()) {
+			if (read == output.length) {
+				if (output.length >= MAX_LENGTH) {
+					throw new IOException("compressed message too large");
+				}
+				output = Arrays.copyOf(output, Math.min(output.length * 2, MAX_LENGTH));
+			}
+			final int n = inflater.inflate(output, read, output.length - read);
+			if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+				// a raw deflate stream may end without the final block marker being consumed
+				break;
+			}
+			read += n;
+		}
+		return Arrays.copyOf(output, read);
+	}
+	
+	/**
+	 * Streaming variant of {@link #encode(byte[])}. The length is not known in
+	 * advance, so the message is always deflated and the length is 0.
+	 */
+	public static InputStream encodeStream(final InputStream payload) {
+		final Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION, true);
+		final InputStream deflated = new DeflaterInputStream(payload, deflater) {
+			@Override
+			public void close() throws IOException {
+				try {
+					super.close();
+				} finally {
+					deflater.end();
+				}
+			}
+		};
+		return new SequenceInputStream(new ByteArrayInputStream(new byte[] { DEFLATE, 0, 0, 0, 0 }), deflated);
+	}
+	
+	/**
+	 * Streaming variant of {@link #decode(byte[])}, the envelope is written to
+	 * the returned stream, the original message goes to the sink. Closing the
+	 * returned stream closes the sink.
+	 */
+	public static OutputStream decodeStream(final OutputStream sink) {
+		return new DecodingOutputStream(sink);
+	}
+	
+	private static class DecodingOutputStream extends OutputStream {
+		private final OutputStream sink;
+		private OutputStream target = null;
+		private Inflater inflater = null;
+		private int kind;
+		private int header = 0;
+		
+		private DecodingOutputStream(final OutputStream sink) {
+			this.sink = sink;
+		}
+		
+		@Override
+		public void write(final int b) throws IOException {
+			write(new byte[] { (byte) b }, 0, 1);
+		}
+		
+		@Override
+		public void write(final byte[] b, int off, int len) throws IOException {
+			while (target == null && len > 0) {
+				if (header == 0) {
+					kind = b[off];
+					if (kind == RAW) {
+						target = sink;
+					} else if (kind != DEFLATE) {
+						throw new IOException("unknown envelope: " + kind);
+					}
+				}
+				header++;
+				off++;
+				len--;
+				if (kind == DEFLATE && header == DEFLATE_HEADER) {
+					// the length is not needed here
+					inflater = new Inflater(true);
+					target = new InflaterOutputStream(sink, inflater);
+				}
+			}
+			if (len > 0) {
+				target.write(b, off, len);
+			}
+		}
+		
+		@Override
+		public void flush() throws IOException {
+			if (target != null) {
+				target.flush();
+			}
+		}
+		
+		@Override
+		public void close() throws IOException {
+			try {
+				if (target == null) {
+					sink.close();
+					if (header == 0) {
+						throw new IOException("empty message, envelope missing");
+					}
+					throw new IOException("compressed message too short");
+				}
+				target.close();
+			} finally {
+				if (inflater != null) {
+					inflater.end();
+				}
+			}
+		}
+	}
+}
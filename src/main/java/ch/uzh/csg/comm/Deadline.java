@@ -0,0 +1,63 @@
+package ch.uzh.csg.comm;
+
+import ch.uzh.csg.comm.DeadlineExceededException.Phase;
+
+/**
+ * The clocks of the transaction and of the message being transferred. The
+ * transaction starts with the handshake, a message with its first frame and
+ * ends with the last frame of its response. Only used by the owner of the
+ * protocol state.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+final class Deadline {
+
+	private long transactionStart = System.nanoTime();
+	private long messageStart;
+	private boolean message = false;
+
+	void startTransaction() {
+		transactionStart = System.nanoTime();
+		// a message continued after a tap gets a new budget
+		if (message) {
+			messageStart = transactionStart;
+		}
+	}
+
+	void startMessage() {
+		messageStart = System.nanoTime();
+		message = true;
+	}
+
+	void endMessage() {
+		message = false;
+	}
+
+	boolean isMessage() {
+		return message;
+	}
+
+	/**
+	 * Returns the exception to abort with, or null if both budgets are left.
+	 * 
+	 * @param messageTimeoutNanos
+	 *            the budget of a message, 0 for no limit
+	 * @param transactionTimeoutNanos
+	 *            the budget of the transaction, 0 for no limit
+	 */
+	DeadlineExceededException exceeded(final Phase phase, final long messageTimeoutNanos, 
+			final long transactionTimeoutNanos) {
+		if (messageTimeoutNanos == 0 && transactionTimeoutNanos == 0) {
+			return null;
+		}
+		final long now = System.nanoTime();
+		if (transactionTimeoutNanos > 0 && now - transactionStart > transactionTimeoutNanos) {
+			return new DeadlineExceededException(phase, true, now - transactionStart);
+		}
+		if (messageTimeoutNanos > 0 && message && now - messageStart > messageTimeoutNanos) {
+			return new DeadlineExceededException(phase, false, now - messageStart);
+		}
+		return null;
+	}
+}
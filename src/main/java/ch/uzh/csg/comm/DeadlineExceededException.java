@@ -0,0 +1,80 @@
+package ch.uzh.csg.comm;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import ch.uzh.csg.nfclib.NfcInitiatorSetup;
+
+/**
+ * A message or a whole transaction ran over its time budget, see
+ * {@link NfcInitiator#setMessageTimeout(long, TimeUnit)} and
+ * {@link NfcInitiator#setTransactionTimeout(long, TimeUnit)}. The transfer is
+ * aborted, and the other side is told with an ERROR frame.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class DeadlineExceededException extends IOException {
+
+	private static final long serialVersionUID = 4185164398613925037L;
+
+	/**
+	 * What the side was doing when the budget ran out.
+	 */
+	public enum Phase {
+		// the SELECT AID and its answer
+		HANDSHAKE,
+		// sending the fragments of a message
+		SEND,
+		// waiting for a deferred response of the other side
+		POLLING,
+		// receiving the fragments of a message
+		RECEIVE
+	}
+
+	private final Phase phase;
+	private final boolean transaction;
+
+	public DeadlineExceededException(final Phase phase, final boolean transaction, final long elapsedNanos) {
+		super(NfcInitiatorSetup.TIMEOUT + ": " + (transaction ? "transaction" : "message") + " ran over in " 
+				+ phase + " after " + TimeUnit.NANOSECONDS.toMillis(elapsedNanos) + " ms");
+		this.phase = phase;
+		this.transaction = transaction;
+	}
+
+	/**
+	 * Returns the payload of the ERROR frame that tells the other side: the
+	 * phase, and 1 if the transaction ran over. Short enough for every frame
+	 * length.
+	 */
+	byte[] payload() {
+		return new byte[] { (byte) phase.ordinal(), (byte) (transaction ? 1 : 0) };
+	}
+
+	/**
+	 * Returns the reason of an ERROR frame the other side sent because it ran
+	 * over a budget, or null if the frame has no such reason.
+	 */
+	static String reason(final NfcMessage error) {
+		final Phase[] phases = Phase.values();
+		if (error.payloadLength() != 2 || (error.payloadArray()[error.payloadOffset()] & 0xFF) >= phases.length) {
+			return null;
+		}
+		final Phase phase = phases[error.payloadArray()[error.payloadOffset()] & 0xFF];
+		final boolean transaction = error.payloadArray()[error.payloadOffset() + 1] == 1;
+		return NfcInitiatorSetup.TIMEOUT + ": " + (transaction ? "transaction" : "message") 
+				+ " of the other side ran over in " + phase;
+	}
+
+	public Phase phase() {
+		return phase;
+	}
+
+	/**
+	 * Returns true if the budget of the transaction ran out, false if the one
+	 * of the message.
+	 */
+	public boolean isTransaction() {
+		return transaction;
+	}
+}
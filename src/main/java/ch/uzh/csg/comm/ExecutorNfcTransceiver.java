@@ -0,0 +1,51 @@
+package ch.uzh.csg.comm;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Adapts a blocking {@link NfcTransceiver} to the {@link AsyncNfcTransceiver}
+ * contract, every frame is written by a task on the executor. The transports
+ * that only offer a blocking call (IsoDep, the ACS reader) still block a
+ * thread for the frame, but only while it is on the air, and the threads can
+ * be shared by many links.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class ExecutorNfcTransceiver implements AsyncNfcTransceiver {
+
+	private final NfcTransceiver transceiver;
+	private final Executor executor;
+
+	public ExecutorNfcTransceiver(final NfcTransceiver transceiver, final Executor executor) {
+		this.transceiver = transceiver;
+		this.executor = executor;
+	}
+
+	@Override
+	public void write(final byte[] input, final TransceiveCallback callback) {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				final byte[] response;
+				try {
+					response = transceiver.write(input);
+				} catch (Exception e) {
+					callback.failed(e);
+					return;
+				}
+				callback.completed(response);
+			}
+		});
+	}
+
+	@Override
+	public int maxLen() {
+		return transceiver.maxLen();
+	}
+
+	@Override
+	public void close() {
+		transceiver.close();
+	}
+}
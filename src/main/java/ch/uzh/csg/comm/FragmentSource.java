@@ -0,0 +1,35 @@
+package ch.uzh.csg.comm;
+
+import java.io.IOException;
+
+/**
+ * Produces the fragments of one message on demand, so a message is never
+ * split up front.
+ * 
+ * The sequence numbers of the fragments are not set here, see
+ * {@link NfcMessageSplitter#getFragments(byte[])}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface FragmentSource {
+
+	/**
+	 * Returns true if {@link #next()} may return another fragment.
+	 */
+	public boolean hasNext();
+
+	/**
+	 * Returns the next fragment, or null if all fragments have been returned.
+	 * 
+	 * @throws IOException
+	 *             if the message cannot be read
+	 */
+	public NfcMessage next() throws IOException;
+
+	/**
+	 * Returns the number of fragments not yet returned by {@link #next()}, or
+	 * -1 if this is not known in advance.
+	 */
+	public int remaining();
+}
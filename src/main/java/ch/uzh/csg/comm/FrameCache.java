@@ -0,0 +1,104 @@
+package ch.uzh.csg.comm;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * The last encoded frames sent, by the sequence number of the frame they
+ * answer. If the other side sends a frame again, e.g., a flaky reader that
+ * did not get the answer, it is answered from here, without building and
+ * encoding the response again.
+ *
+ * Every slot keeps its buffer, so once the buffers have grown to the frame
+ * length, caching a frame does not allocate. Not thread-safe.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public final class FrameCache {
+
+	private final byte[][] frames;
+	private final int[] lengths;
+	private final int[] sequenceNumbers;
+	private final int mask;
+
+	/**
+	 * @param size
+	 *            the number of frames kept, a power of two
+	 */
+	public FrameCache(final int size) {
+		if (size < 1 || Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("size must be a power of two: " + size);
+		}
+		frames = new byte[size][];
+		lengths = new int[size];
+		sequenceNumbers = new int[size];
+		mask = size - 1;
+		clear();
+	}
+
+	/**
+	 * Encodes the message into the slot of the sequence number, the frame
+	 * previously cached there is replaced.
+	 *
+	 * @return the length of the encoded frame
+	 */
+	public int put(final int sequenceNumber, final NfcMessage message) {
+		final int slot = sequenceNumber & mask;
+		final int length = message.encodedLength();
+		if (frames[slot] == null || frames[slot].length < length) {
+			frames[slot] = new byte[length];
+		}
+		message.encodeInto(frames[slot], 0);
+		lengths[slot] = length;
+		sequenceNumbers[slot] = sequenceNumber;
+		return length;
+	}
+
+	/**
+	 * Returns the length of the frame cached for the sequence number, or -1
+	 * if there is none.
+	 */
+	public int length(final int sequenceNumber) {
+		final int slot = sequenceNumber & mask;
+		return sequenceNumbers[slot] == sequenceNumber ? lengths[slot] : -1;
+	}
+
+	/**
+	 * Returns a copy of the frame cached for the sequence number, or null if
+	 * there is none.
+	 */
+	public byte[] bytes(final int sequenceNumber) {
+		final int length = length(sequenceNumber);
+		return length < 0 ? null : Arrays.copyOf(frames[sequenceNumber & mask], length);
+	}
+
+	/**
+	 * Writes the frame cached for the sequence number into the buffer at its
+	 * current position.
+	 *
+	 * @return the number of bytes written, 0 if there is no such frame
+	 */
+	public int copyInto(final int sequenceNumber, final ByteBuffer output) {
+		final int length = length(sequenceNumber);
+		if (length < 0) {
+			return 0;
+		}
+		output.put(frames[sequenceNumber & mask], 0, length);
+		return length;
+	}
+
+	public void remove(final int sequenceNumber) {
+		final int slot = sequenceNumber & mask;
+		if (sequenceNumbers[slot] == sequenceNumber) {
+			sequenceNumbers[slot] = -1;
+		}
+	}
+
+	/**
+	 * Forgets all frames, the buffers are kept.
+	 */
+	public void clear() {
+		Arrays.fill(sequenceNumbers, -1);
+	}
+}
@@ -1,26 +1,134 @@
 package ch.uzh.csg.comm;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Deque;
-import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.List;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import ch.uzh.csg.comm.NfcMessage.Type;
 
+/**
+ * The initiator side of the protocol. The state is owned by the thread that
+ * runs a transaction (the thread calling
+ * {@link TagDiscoverHandler#tagDiscovered(NfcTransceiver, boolean, boolean)}),
+ * no lock is held while waiting for the radio. Control operations such as
+ * {@link #reset()} from other threads are queued as commands and applied by
+ * the owner between two frames, or right away if no transaction is running.
+ * 
+ * With an {@link AsyncNfcTransceiver}, no thread waits for the radio, the
+ * transaction continues in the callback of every frame, on the thread of the
+ * transport. The transaction is the owner then, until it is done.
+ * 
+ * A tag discovered while a transaction is running, e.g., the BLE link of a
+ * handover while the NFC link is kept alive, takes over when the running
+ * transaction is done. A transaction that only keeps the link alive ends
+ * right away then.
+ * 
+ * If the tag is lost during a transfer, the next handshake continues it from
+ * the last byte the other side received, see {@link NfcMessage#CAP_RESUME}.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
 public class NfcInitiator {
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(NfcInitiator.class);
 
 	private final NfcInitiatorHandler initiatorHandler;
 	private final static String INV_SEQ = "invalid sequence";
+	// status word of a SELECT for an AID no service is registered for
+	private final static byte[] AID_NOT_FOUND = { 0x6A, (byte) 0x82 };
+	// go back this many times without progress before giving up
+	private final static int MAX_WINDOW_RETRIES = 3;
+	// how often a discovered tag checks whether the running transaction is done
+	private final static long POLL_OWNER_MILLIS = 100;
 	
-	// state
-	private final Deque<NfcMessage> messageQueue = new ConcurrentLinkedDeque<NfcMessage>();
+	// commands for the owner of the state, multiple producers, one consumer
+	private enum Command { RESET, HANDOVER }
+	private final Queue<Command> commands = new ConcurrentLinkedQueue<Command>();
+	// the thread running a transaction, or the AsyncTransaction
+	private final AtomicReference<Object> owner = new AtomicReference<Object>();
+	// an async transaction of a tag discovered while another one was running
+	private final AtomicReference<AsyncTransaction> queued = new AtomicReference<AsyncTransaction>();
+	// what the response of an AsyncNfcTransceiver answers
+	private enum Phase { HANDSHAKE, MESSAGES, IDLE, KEEP_ALIVE, ABORT }
+	
+	// state, only accessed by the owner
+	// a control frame (polling, next fragment) is only queued when no fragment
+	// waits, and the fragments are created when the queue runs empty, so it
+	// holds at most a window and needs no priorities
+	private final Deque<NfcMessage> messageQueue = new ArrayDeque<NfcMessage>();
 	private final NfcMessageSplitter messageSplitter = new NfcMessageSplitter();
+	// fragments of the outgoing message, created when the queue runs empty
+	private FragmentSource outgoing;
+	// sink of the incoming message, if the handler is a StreamingInitiatorHandler
+	private OutputStream receiving;
+	// true between the first and the last fragment of an incoming message
+	private boolean reassembling = false;
+	// reused for every frame, the response is decoded in place
+	private final NfcMessage responseMessage = new NfcMessage(Type.FRAGMENT);
+	// frame buffers for a BufferedNfcTransceiver, allocated once
+	private byte[] sendBuffer;
+	private byte[] receiveBuffer;
+	// the negotiated maximum frame length
+	private int frameLength = 0;
 	private NfcMessage lastMessageSent;
+	// another tag was discovered, the keep-alive ends
+	private boolean handover = false;
+	
+	// sliding window, see NfcMessage#CAP_WINDOW, 0 is stop-and-wait
+	private volatile int windowSize = 8;
+	private volatile int window = 0;
+	// sent, but not yet acknowledged
+	private final Deque<NfcMessage> inflight = new ArrayDeque<NfcMessage>();
+	private int windowRetries = 0;
+	
+	// see NfcMessage#CAP_COMPRESSION
+	private final Compression compression = new Compression();
+	private volatile boolean compressionEnabled = true;
+	private volatile boolean compress = false;
+	
+	// see NfcMessage#CAP_BATCH, at most this many messages in one batch
+	private volatile int batchSize = 1;
+	private volatile boolean batch = false;
+	// a message taken from the handler that did not fit into the last batch
+	private byte[] carried;
+	private boolean hasCarried = false;
+	
+	// see NfcMessage#CAP_RESUME, a new session after every reset
+	private volatile boolean resumeEnabled = true;
+	private boolean resumable = false;
+	private UUID sessionId = UUID.randomUUID();
+	// bytes of the messages received in this session
+	private int received = 0;
+	// the outgoing message until the other side received all of it, and the bytes sent before
+	private byte[] sending;
+	private int sentBase = 0;
+	
+	// paces the polls for deferred responses and the keep-alive polls
+	private volatile PollingScheduler pollingScheduler = new PollingScheduler();
+	// polls sent for the deferred response of the other side
+	private int polls = 0;
+	private long firstPoll;
+	private long lastPoll;
+	
+	// budgets of a message and of a transaction, 0 for no limit
+	private volatile long messageTimeoutNanos = 0;
+	private volatile long transactionTimeoutNanos = 0;
+	private final Deadline deadline = new Deadline();
 
 	private volatile boolean initiating = true;
 	private volatile boolean first = true;
@@ -38,241 +146,790 @@ public class NfcInitiator {
 		return new TagDiscoverHandler() {
 			@Override
 			public void tagDiscovered(final NfcTransceiver nfcTransceiver, boolean handshake, boolean continueNFC) {
+				try {
+					awaitOwner();
+				} catch (InterruptedException e) {
+					LOGGER.error( "interrupted while another transaction was running, ignore tag");
+					return;
+				}
+				try {
+					transaction(nfcTransceiver, handshake, continueNFC);
+				} finally {
+					release();
+				}
+			}
+			
+			@Override
+			public void tagDiscovered(final AsyncNfcTransceiver nfcTransceiver, boolean handshake, boolean continueNFC) {
+				final AsyncTransaction transaction = new AsyncTransaction(nfcTransceiver, handshake, continueNFC);
+				if (acquire(transaction)) {
+					transaction.start();
+					return;
+				}
 				if (Config.DEBUG) {
-					LOGGER.debug( "Tag detected!");
+					LOGGER.debug( "another transaction is running, start when it is done");
 				}
-				try {			
-					/*if (!initiating) {
-						if (Config.DEBUG) {
-							LOGGER.debug( "Nothing to do shutdown 1!");
-						}
-						nfcTransceiver.close();
-						return;
-					}*/
-					boolean resume = false;
-					if(handshake) {
-						try {
-							resume = handshake(nfcTransceiver);
-						} catch (NfcLibException e) {
-							if (Config.DEBUG) {
-								LOGGER.debug( "tag lost after handshake", e);
-							}
-							return;
-						} catch (IOException e) {
-							e.printStackTrace();
-							tagFailed(e.toString());
-							return;
-						}
+				queued.set(transaction);
+				commands.offer(Command.HANDOVER);
+				startQueued();
+			}
+
+			@Override
+			public void tagFailed(String message) {
+				initiatorHandler.handleFailed(message);
+				reset();
+			}
+		};
+	}
+	
+	private void transaction(final NfcTransceiver nfcTransceiver, boolean handshake, boolean continueNFC) {
+		if (Config.DEBUG) {
+			LOGGER.debug( "Tag detected!");
+		}
+		try {			
+			/*if (!initiating) {
+				if (Config.DEBUG) {
+					LOGGER.debug( "Nothing to do shutdown 1!");
+				}
+				nfcTransceiver.close();
+				return;
+			}*/
+			boolean resume = false;
+			handover = false;
+			deadline.startTransaction();
+			if(handshake) {
+				try {
+					resume = handshake(nfcTransceiver);
+					checkDeadline(nfcTransceiver, DeadlineExceededException.Phase.HANDSHAKE);
+				} catch (NfcLibException e) {
+					if (Config.DEBUG) {
+						LOGGER.debug( "tag lost after handshake", e);
 					}
-					initiatorHandler.handleStatus("handshake complete");
-					// check if we should resume
-					if (!messageQueue.isEmpty()) {
-						if (Config.DEBUG) {
-							LOGGER.debug("We still have data over here: {}", messageQueue.peek());
-						}
-						//if(messageQueue.peek().type() == Type.POLLING_RESPONSE && !resume) {
-							//don't send a polling response if the other party did not indicate to have data
-						//}
-						if (!processMessage(nfcTransceiver)) {
-							if (Config.DEBUG) {
-								LOGGER.debug( "Nothing to do shutdown 2!");
-							}
-							return;
-						} else {
-							LOGGER.debug( "resume ok1");
-						}
-						
-					} else if(resume) { //check if other side should resume
-						// start polling
-						if (Config.DEBUG) {
-							LOGGER.debug( "Start request polling 1. The other party said they still have data");
-						}
-						messageQueue.offer(new NfcMessage(Type.POLLING_RESPONSE));
-						if (!processMessage(nfcTransceiver)) {
-							if (Config.DEBUG) {
-								LOGGER.debug( "Nothing to do shutdown 3!");
-							}
-							return;
-						} else {
-							LOGGER.debug( "resume ok2");
-						}
+					return;
+				} catch (DeadlineExceededException e) {
+					failed(e.getMessage());
+					return;
+				} catch (IOException e) {
+					e.printStackTrace();
+					failed(e.toString());
+					return;
+				}
+			}
+			initiatorHandler.handleStatus("handshake complete");
+			// check if we should resume
+			if (hasPending()) {
+				if (Config.DEBUG) {
+					LOGGER.debug("We still have data over here: {}", messageQueue.peek());
+				}
+				//if(messageQueue.peek().type() == Type.POLLING_RESPONSE && !resume) {
+					//don't send a polling response if the other party did not indicate to have data
+				//}
+				if (!processMessage(nfcTransceiver)) {
+					if (Config.DEBUG) {
+						LOGGER.debug( "Nothing to do shutdown 2!");
+					}
+					return;
+				} else {
+					LOGGER.debug( "resume ok1");
+				}
+				
+			} else if(resume) { //check if other side should resume
+				// start polling
+				if (Config.DEBUG) {
+					LOGGER.debug( "Start request polling 1. The other party said they still have data");
+				}
+				messageQueue.offer(new NfcMessage(Type.POLLING_RESPONSE));
+				if (!processMessage(nfcTransceiver)) {
+					if (Config.DEBUG) {
+						LOGGER.debug( "Nothing to do shutdown 3!");
 					}
-					
-					// get the complete message
-					while (initiatorHandler.hasMoreMessages()) {
-						
-						byte[] message = initiatorHandler.nextMessage();
-						if (message == null) {
-							// start polling
-							if (Config.DEBUG) {
-								LOGGER.debug( "Start polling");
-							}
-							messageQueue.offer(new NfcMessage(Type.POLLING_REQUEST));
-						} else if(message.length == 0) { 
-							// start polling
-							if (Config.DEBUG) {
-								LOGGER.debug( "Start request polling 2");
-							}
-							messageQueue.offer(new NfcMessage(Type.POLLING_RESPONSE));
-						} else {
+					return;
+				} else {
+					LOGGER.debug( "resume ok2");
+				}
+			}
+			
+			// get the complete message
+			while (hasMoreMessages()) {
+				
+				queueNextMessage();
 
-							// split it
-							for (NfcMessage msg : messageSplitter.getFragments(message)) {
-								messageQueue.offer(msg);
-							}
-						}
+				if (!processMessage(nfcTransceiver)) {
+					return;
+				}
 
-						if (!processMessage(nfcTransceiver)) {
-							return;
-						}
+			}
+			
+			
+			
+			if(!continueNFC) {
+				initiating = false;
+				if(Config.DEBUG) {
+					LOGGER.debug( "loop done1");
+				}
+				initiatorHandler.protocolDone();
+				return;
+			}
 
-					}
-					
-					
-					
-					if(!continueNFC) {
-						initiating = false;
-						if(Config.DEBUG) {
-							LOGGER.debug( "loop done1");
+			// we are complete
+
+			// hack for PN547 devices
+			// Oneplus One with PN547: nfaDeviceManagementCallback:
+			// crash NFC service: happens often in initiator mode:
+
+			// F/libc (31968): Fatal signal 6 (SIGABRT), code -6 in tid
+			// 31992 (Thread-2661)
+			// I/DEBUG ( 270): *** *** *** *** *** *** *** *** *** ***
+			// *** *** *** *** *** ***
+			// I/DEBUG ( 270): Build fingerprint:
+			// 'oneplus/bacon/A0001:5.0.2/LRX22G/YNG1TAS2I3:user/release-keys'
+			// I/DEBUG ( 270): Revision: '0'
+			// I/DEBUG ( 270): ABI: 'arm'
+			// I/DEBUG ( 270): pid: 31968, tid: 31992, name: Thread-2661
+			// >>> com.android.nfc <<<
+			// E/DEBUG ( 270): AM write failure (32 / Broken pipe)
+			// I/DEBUG ( 270): signal 6 (SIGABRT), code -6 (SI_TKILL),
+			// fault addr --------
+			// I/DEBUG ( 270): r0 00000000 r1 00007cf8 r2 00000006 r3
+			// 00000000
+			// I/DEBUG ( 270): r4 a2e01db8 r5 00000006 r6 00000000 r7
+			// 0000010c
+			// I/DEBUG ( 270): r8 a2e01ca0 r9 ffffff34 sl b6f2a9fd fp
+			// a2e01db0
+			// I/DEBUG ( 270): ip 00007cf8 sp a2e01b58 lr b6f2b235 pc
+			// b6f4de44 cpsr 600f0010
+			// I/DEBUG ( 270):
+			// I/DEBUG ( 270): backtrace:
+			// I/DEBUG ( 270): #00 pc 00036e44 /system/lib/libc.so
+			// (tgkill+12)
+			// I/DEBUG ( 270): #01 pc 00014231 /system/lib/libc.so
+			// (pthread_kill+52)
+			// I/DEBUG ( 270): #02 pc 00014f93 /system/lib/libc.so
+			// (raise+10)
+			// I/DEBUG ( 270): #03 pc 000116a5 /system/lib/libc.so
+			// (__libc_android_abort+36)
+			// I/DEBUG ( 270): #04 pc 0000fd3c /system/lib/libc.so
+			// (abort+4)
+			// I/DEBUG ( 270): #05 pc 0000d761
+			// /system/lib/libnfc_nci_jni.so
+			// I/DEBUG ( 270): #06 pc 0001aed0 /system/lib/libnfc-nci.so
+			// I/DEBUG ( 270): #07 pc 0003d940 /system/lib/libnfc-nci.so
+			// (nfc_ncif_event_status+64)
+			// I/DEBUG ( 270): #08 pc 0003d9a0 /system/lib/libnfc-nci.so
+			// (nfc_ncif_cmd_timeout+52)
+			// I/DEBUG ( 270): #09 pc 0003caf8 /system/lib/libnfc-nci.so
+			// (nfc_process_timer_evt+120)
+			// I/DEBUG ( 270): #10 pc 0003d000 /system/lib/libnfc-nci.so
+			// (nfc_task+412)
+			// I/DEBUG ( 270): #11 pc 00058630 /system/lib/libnfc-nci.so
+			// (gki_task_entry+48)
+			// I/DEBUG ( 270): #12 pc 00013a1b /system/lib/libc.so
+			// (__pthread_start(void*)+30)
+			// I/DEBUG ( 270): #13 pc 00011a0f /system/lib/libc.so
+			// (__start_thread+6)
+			// I/DEBUG ( 270):
+			// I/DEBUG ( 270): Tombstone written to:
+			// /data/tombstones/tombstone_01
+			try {
+				final NfcMessage request = new NfcMessage(Type.POLLING_REQUEST);
+				int keepAlives = 0;
+				long lastKeepAlive = System.nanoTime();
+				while (true) {
+					TimeUnit.NANOSECONDS.sleep(pollingScheduler.delay(keepAlives++, System.nanoTime() - lastKeepAlive));
+					applyCommands();
+					if (handover) {
+						if (Config.DEBUG) {
+							LOGGER.debug( "another tag discovered, leave the link");
 						}
-						initiatorHandler.protocolDone();
 						return;
 					}
+					request.sequenceNumber(lastMessageSent);
+					lastKeepAlive = System.nanoTime();
+					writeFrame(nfcTransceiver, request);
+					lastMessageSent = request;
+				}
+			} catch (NfcLibException e) {
+				initiating = false;
+				if (Config.DEBUG) {
+					LOGGER.debug( "loop done2");
+				}
+				initiatorHandler.protocolDone();
+			}
 
-					// we are complete
-
-					// hack for PN547 devices
-					// Oneplus One with PN547: nfaDeviceManagementCallback:
-					// crash NFC service: happens often in initiator mode:
-
-					// F/libc (31968): Fatal signal 6 (SIGABRT), code -6 in tid
-					// 31992 (Thread-2661)
-					// I/DEBUG ( 270): *** *** *** *** *** *** *** *** *** ***
-					// *** *** *** *** *** ***
-					// I/DEBUG ( 270): Build fingerprint:
-					// 'oneplus/bacon/A0001:5.0.2/LRX22G/YNG1TAS2I3:user/release-keys'
-					// I/DEBUG ( 270): Revision: '0'
-					// I/DEBUG ( 270): ABI: 'arm'
-					// I/DEBUG ( 270): pid: 31968, tid: 31992, name: Thread-2661
-					// >>> com.android.nfc <<<
-					// E/DEBUG ( 270): AM write failure (32 / Broken pipe)
-					// I/DEBUG ( 270): signal 6 (SIGABRT), code -6 (SI_TKILL),
-					// fault addr --------
-					// I/DEBUG ( 270): r0 00000000 r1 00007cf8 r2 00000006 r3
-					// 00000000
-					// I/DEBUG ( 270): r4 a2e01db8 r5 00000006 r6 00000000 r7
-					// 0000010c
-					// I/DEBUG ( 270): r8 a2e01ca0 r9 ffffff34 sl b6f2a9fd fp
-					// a2e01db0
-					// I/DEBUG ( 270): ip 00007cf8 sp a2e01b58 lr b6f2b235 pc
-					// b6f4de44 cpsr 600f0010
-					// I/DEBUG ( 270):
-					// I/DEBUG ( 270): backtrace:
-					// I/DEBUG ( 270): #00 pc 00036e44 /system/lib/libc.so
-					// (tgkill+12)
-					// I/DEBUG ( 270): #01 pc 00014231 /system/lib/libc.so
-					// (pthread_kill+52)
-					// I/DEBUG ( 270): #02 pc 00014f93 /system/lib/libc.so
-					// (raise+10)
-					// I/DEBUG ( 270): #03 pc 000116a5 /system/lib/libc.so
-					// (__libc_android_abort+36)
-					// I/DEBUG ( 270): #04 pc 0000fd3c /system/lib/libc.so
-					// (abort+4)
-					// I/DEBUG ( 270): #05 pc 0000d761
-					// /system/lib/libnfc_nci_jni.so
-					// I/DEBUG ( 270): #06 pc 0001aed0 /system/lib/libnfc-nci.so
-					// I/DEBUG ( 270): #07 pc 0003d940 /system/lib/libnfc-nci.so
-					// (nfc_ncif_event_status+64)
-					// I/DEBUG ( 270): #08 pc 0003d9a0 /system/lib/libnfc-nci.so
-					// (nfc_ncif_cmd_timeout+52)
-					// I/DEBUG ( 270): #09 pc 0003caf8 /system/lib/libnfc-nci.so
-					// (nfc_process_timer_evt+120)
-					// I/DEBUG ( 270): #10 pc 0003d000 /system/lib/libnfc-nci.so
-					// (nfc_task+412)
-					// I/DEBUG ( 270): #11 pc 00058630 /system/lib/libnfc-nci.so
-					// (gki_task_entry+48)
-					// I/DEBUG ( 270): #12 pc 00013a1b /system/lib/libc.so
-					// (__pthread_start(void*)+30)
-					// I/DEBUG ( 270): #13 pc 00011a0f /system/lib/libc.so
-					// (__start_thread+6)
-					// I/DEBUG ( 270):
-					// I/DEBUG ( 270): Tombstone written to:
-					// /data/tombstones/tombstone_01
-					try {
-						while (true) {
-							NfcMessage request = new NfcMessage(Type.POLLING_REQUEST);
-							request.sequenceNumber(lastMessageSent);
-							nfcTransceiver.write(request.bytes());
-							lastMessageSent = request;
+		} catch (Throwable t) {
+			t.printStackTrace();
+			failed(t.toString());
+			return;
+		}
+	}
+	
+	/**
+	 * A transaction over an {@link AsyncNfcTransceiver}. It takes the same
+	 * steps as {@link #transaction(NfcTransceiver, boolean, boolean)}, but
+	 * every step ends with writing a frame, and the callback with the response
+	 * starts the next step. Fragments are always sent stop-and-wait.
+	 */
+	private final class AsyncTransaction implements TransceiveCallback {
+		
+		private final AsyncNfcTransceiver transceiver;
+		private final boolean withHandshake;
+		private final boolean continueNFC;
+		// a frame written from within a callback is sent by the outermost write, the stack does not grow
+		private final AtomicInteger writes = new AtomicInteger();
+		private volatile byte[] nextFrame;
+		
+		// written and read by one callback at a time
+		private Phase phase = Phase.IDLE;
+		private Handshake handshake;
+		private NfcMessage request;
+		private int keepAlives = 0;
+		private long lastKeepAlive;
+		
+		// sends the poll after the pause of the PollingScheduler
+		private final Runnable poll = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					// a reset while waiting takes effect before the poll
+					applyCommands();
+					if (messageQueue.peek() == request) {
+						if (!timedOut(phaseOf(request))) {
+							writeRequest();
 						}
-					} catch (NfcLibException e) {
-						initiating = false;
+					} else {
+						nextFrame();
+					}
+				} catch (Throwable t) {
+					abort(t);
+				}
+			}
+		};
+		
+		private final Runnable keepAlive = new Runnable() {
+			@Override
+			public void run() {
+				try {
+					applyCommands();
+					if (handover) {
 						if (Config.DEBUG) {
-							LOGGER.debug( "loop done2");
+							LOGGER.debug( "another tag discovered, leave the link");
 						}
-						initiatorHandler.protocolDone();
+						done();
+						return;
 					}
-
+					request.sequenceNumber(lastMessageSent);
+					lastKeepAlive = System.nanoTime();
+					write(request.bytes());
 				} catch (Throwable t) {
-					t.printStackTrace();
-					tagFailed(t.toString());
+					abort(t);
+				}
+			}
+		};
+		
+		private AsyncTransaction(final AsyncNfcTransceiver transceiver, final boolean withHandshake, 
+				final boolean continueNFC) {
+			this.transceiver = transceiver;
+			this.withHandshake = withHandshake;
+			this.continueNFC = continueNFC;
+		}
+		
+		private void start() {
+			if (Config.DEBUG) {
+				LOGGER.debug( "Tag detected!");
+			}
+			try {
+				handover = false;
+				deadline.startTransaction();
+				if (withHandshake) {
+					phase = Phase.HANDSHAKE;
+					handshake = startHandshake(transceiver.maxLen(), false);
+					write(handshake.initMessage.bytes());
+				} else {
+					handshakeComplete(false);
+				}
+			} catch (Throwable t) {
+				abort(t);
+			}
+		}
+		
+		@Override
+		public void completed(final byte[] response) {
+			try {
+				switch (phase) {
+				case HANDSHAKE:
+					if (Config.DEBUG) {
+						LOGGER.debug( "handshake response: {}", Arrays.toString(response));
+					}
+					if (response == null) {
+						throw new NfcLibException("tag lost");
+					}
+					if (Arrays.equals(response, AID_NOT_FOUND) && handshake.initMessage.isExtended()) {
+						write(handshake.fallBack().bytes());
+						return;
+					}
+					final boolean resume = handshakeDone(handshake, response);
+					if (!timedOut(DeadlineExceededException.Phase.HANDSHAKE)) {
+						handshakeComplete(resume);
+					}
+					break;
+				case MESSAGES:
+					if (response == null) {
+						throw new NfcLibException("tag lost");
+					}
+					responseMessage.wrap(response, 0, response.length);
+					acknowledged(request);
+					responseReceived(request);
+					nextFrame();
+					break;
+				case KEEP_ALIVE:
+					if (response == null) {
+						throw new NfcLibException("tag lost");
+					}
+					lastMessageSent = request;
+					keepAlive();
+					break;
+				case ABORT:
+					// the other side got the ERROR frame, or not
+					done();
+					break;
+				default:
+					LOGGER.error( "unexpected response in phase {}", phase);
+				}
+			} catch (Throwable t) {
+				abort(t);
+			}
+		}
+		
+		@Override
+		public void failed(final Exception e) {
+			abort(e);
+		}
+		
+		private void handshakeComplete(final boolean resume) throws Exception {
+			initiatorHandler.handleStatus("handshake complete");
+			if (hasPending()) {
+				if (Config.DEBUG) {
+					LOGGER.debug("We still have data over here: {}", messageQueue.peek());
+				}
+				phase = Phase.MESSAGES;
+				nextFrame();
+			} else if (resume) {
+				if (Config.DEBUG) {
+					LOGGER.debug( "Start request polling 1. The other party said they still have data");
+				}
+				messageQueue.offer(new NfcMessage(Type.POLLING_RESPONSE));
+				phase = Phase.MESSAGES;
+				nextFrame();
+			} else {
+				nextMessage();
+			}
+		}
+		
+		/**
+		 * Writes the next frame of the current message, or continues with the
+		 * next message.
+		 */
+		private void nextFrame() throws Exception {
+			// a reset from another thread takes effect before the next frame
+			applyCommands();
+			request = nextRequest();
+			if (request == null) {
+				messageSplitter.clear();
+				nextMessage();
+				return;
+			}
+			final long delay = pollDelay(request);
+			if (delay > 0) {
+				pollingScheduler.schedule(poll, delay);
+				return;
+			}
+			if (!timedOut(phaseOf(request))) {
+				writeRequest();
+			}
+		}
+		
+		/**
+		 * Aborts the transaction if a budget ran out. The other side is told
+		 * with an ERROR frame, its response ends the transaction.
+		 */
+		private boolean timedOut(final DeadlineExceededException.Phase deadlinePhase) {
+			final DeadlineExceededException e = deadline.exceeded(deadlinePhase, messageTimeoutNanos, 
+					transactionTimeoutNanos);
+			if (e == null) {
+				return false;
+			}
+			LOGGER.error( "abort transaction: {}", e.getMessage());
+			final NfcMessage error = abortMessage(e);
+			NfcInitiator.this.failed(e.getMessage());
+			phase = Phase.ABORT;
+			write(error.bytes());
+			return true;
+		}
+		
+		private void writeRequest() {
+			request.windowed(false).ackRequested(false);
+			request.sequenceNumber(lastMessageSent);
+			if (Config.DEBUG) {
+				LOGGER.debug( "loop write: {}", request);
+			}
+			write(request.bytes());
+		}
+		
+		private void nextMessage() {
+			phase = Phase.IDLE;
+			try {
+				if (hasMoreMessages()) {
+					queueNextMessage();
+					phase = Phase.MESSAGES;
+					nextFrame();
+				} else if (!continueNFC) {
+					initiating = false;
+					if(Config.DEBUG) {
+						LOGGER.debug( "loop done1");
+					}
+					initiatorHandler.protocolDone();
+					done();
+				} else {
+					// keep the link, see the PN547 hack in the blocking transaction
+					phase = Phase.KEEP_ALIVE;
+					request = new NfcMessage(Type.POLLING_REQUEST);
+					lastKeepAlive = System.nanoTime();
+					keepAlive();
+				}
+			} catch (Throwable t) {
+				abort(t);
+			}
+		}
+		
+		private void keepAlive() {
+			final long delay = pollingScheduler.delay(keepAlives++, System.nanoTime() - lastKeepAlive);
+			if (delay > 0) {
+				pollingScheduler.schedule(keepAlive, delay);
+			} else {
+				keepAlive.run();
+			}
+		}
+		
+		private void abort(final Throwable t) {
+			if (phase == Phase.ABORT) {
+				// the failure is already reported
+				done();
+				return;
+			}
+			if (phase == Phase.MESSAGES) {
+				if (loopFailed(t)) {
+					// continue, will resend data
+					nextMessage();
 					return;
 				}
-
+			} else if (phase == Phase.KEEP_ALIVE && t instanceof NfcLibException) {
+				initiating = false;
+				if (Config.DEBUG) {
+					LOGGER.debug( "loop done2");
+				}
+				initiatorHandler.protocolDone();
+			} else if (t instanceof NfcLibException) {
+				if (Config.DEBUG) {
+					LOGGER.debug( "tag lost", t);
+				}
+			} else {
+				t.printStackTrace();
+				NfcInitiator.this.failed(t.toString());
 			}
+			done();
+		}
+		
+		private void done() {
+			phase = Phase.IDLE;
+			release();
+		}
+		
+		private void write(final byte[] frame) {
+			nextFrame = frame;
+			if (writes.getAndIncrement() != 0) {
+				return;
+			}
+			do {
+				final byte[] next = nextFrame;
+				nextFrame = null;
+				if (next != null) {
+					try {
+						transceiver.write(next, this);
+					} catch (RuntimeException e) {
+						abort(e);
+					}
+				}
+			} while (writes.decrementAndGet() != 0);
+		}
+	}
+	
+	/**
+	 * Takes the next message from the handler and queues it, or the polling
+	 * message if the handler has nothing to send.
+	 */
+	private void queueNextMessage() throws Exception {
+		final InputStream stream = initiatorHandler instanceof StreamingInitiatorHandler 
+				? ((StreamingInitiatorHandler) initiatorHandler).nextMessageStream() : null;
+		byte[] message = stream == null ? nextMessage() : null;
+		if (stream != null || message != null) {
+			deadline.startMessage();
+		}
+		if (stream != null) {
+			// read while sending, the fragments are created while sending
+			outgoing = messageSplitter.fragments(compress ? Compression.encodeStream(stream) : stream);
+		} else if (message == null) {
+			// start polling
+			if (Config.DEBUG) {
+				LOGGER.debug( "Start polling");
+			}
+			messageQueue.offer(new NfcMessage(Type.POLLING_REQUEST));
+		} else if(message.length == 0) { 
+			// start polling
+			if (Config.DEBUG) {
+				LOGGER.debug( "Start request polling 2");
+			}
+			messageQueue.offer(new NfcMessage(Type.POLLING_RESPONSE));
+		} else {
 
-			@Override
-			public void tagFailed(String message) {
-				initiatorHandler.handleFailed(message);
-				reset();
+			if (batch) {
+				message = batch(message);
 			}
-		};
+			if (compress) {
+				message = compression.encode(message);
+			}
+			if (resumable) {
+				sending = message;
+			}
+			// split it, the fragments are created while sending
+			outgoing = messageSplitter.fragments(message);
+		}
+	}
+	
+	private boolean hasMoreMessages() {
+		return hasCarried || initiatorHandler.hasMoreMessages();
+	}
+	
+	private byte[] nextMessage() throws Exception {
+		if (hasCarried) {
+			final byte[] message = carried;
+			hasCarried = false;
+			carried = null;
+			return message;
+		}
+		return initiatorHandler.nextMessage();
+	}
+	
+	/**
+	 * Takes the following messages of the handler into the batch, as long as
+	 * the batch fits into one frame. The first message that does not fit is
+	 * sent next.
+	 */
+	private byte[] batch(final byte[] message) throws Exception {
+		final int capacity = messageSplitter.payloadLength() - (compress ? 1 : 0);
+		int length = Batch.ENVELOPE_LENGTH + Batch.entryLength(message);
+		if (batchSize <= 1 || length > capacity) {
+			return Batch.single(message);
+		}
+		final List<byte[]> messages = new ArrayList<byte[]>(batchSize);
+		messages.add(message);
+		while (messages.size() < batchSize && initiatorHandler.hasMoreMessages()) {
+			final byte[] next = initiatorHandler.nextMessage();
+			// null and empty messages start polling, they are not batched
+			if (next == null || next.length == 0 || length + Batch.entryLength(next) > capacity) {
+				carried = next;
+				hasCarried = true;
+				break;
+			}
+			messages.add(next);
+			length += Batch.entryLength(next);
+		}
+		if (messages.size() == 1) {
+			return Batch.single(message);
+		}
+		if (Config.DEBUG) {
+			LOGGER.debug( "batch of {} messages, {} bytes", messages.size(), length);
+		}
+		return Batch.pack(messages);
+	}
+	
+	/**
+	 * Passes a received message to the handler, every message of a batch
+	 * separately.
+	 */
+	private void deliver(final byte[] message) throws Exception {
+		if (!batch) {
+			initiatorHandler.handleMessageReceived(message);
+			return;
+		}
+		for (byte[] single : Batch.unpack(message)) {
+			initiatorHandler.handleMessageReceived(single);
+		}
+	}
+	
+	private void failed(final String message) {
+		initiatorHandler.handleFailed(message);
+		clearState();
 	}
 
 	public boolean processMessage(NfcTransceiver transceiver) {
 		try {
 			messageLoop(transceiver);
-		} catch (NfcLibException e) {
+		} catch (Throwable t) {
+			return loopFailed(t);
+		}
+		messageSplitter.clear();
+		return true;
+	}
+	
+	/**
+	 * Handles an exception of the message loop. Returns true if the
+	 * transaction continues with the next message.
+	 */
+	private boolean loopFailed(final Throwable t) {
+		if (t instanceof NfcLibException) {
 			if (Config.DEBUG) {
-				LOGGER.debug( "Tag lost {}", e);
+				LOGGER.debug( "Tag lost {}", t);
 			}
 			return false;
-		} catch (IOException e) {
-			if(INV_SEQ.equals(e.getMessage())) {
-				initiatorHandler.handleFailed(e.toString());
-				//preserv the state as we won't do a handshake
-				boolean firstCopy = first;
-				reset();
-				first = firstCopy;
-				//continue, will resend data
-				return true;
-			} else {
-				e.printStackTrace();
-				initiatorHandler.handleFailed(e.toString());
-				reset();
-				return false;
-			}
-		} catch (Throwable t) {
+		} else if (t instanceof DeadlineExceededException) {
+			// the other side is told already
+			initiatorHandler.handleFailed(t.getMessage());
+			clearState();
+			return false;
+		} else if (t instanceof IOException && INV_SEQ.equals(t.getMessage())) {
+			initiatorHandler.handleFailed(t.toString());
+			//preserv the state as we won't do a handshake
+			boolean firstCopy = first;
+			clearState();
+			first = firstCopy;
+			//continue, will resend data
+			return true;
+		} else {
 			t.printStackTrace();
 			initiatorHandler.handleFailed(t.toString());
-			reset();
+			clearState();
 			return false;
 		}
-		messageSplitter.clear();
-		return true;
 	}
 
+	/**
+	 * Drops the messages that are being sent or received. If a transaction is
+	 * running, this is done before its next frame, this method does not wait
+	 * for that.
+	 */
 	public void reset() {
+		commands.offer(Command.RESET);
+		if (owner.get() == Thread.currentThread()) {
+			applyCommands();
+		} else if (acquire(Thread.currentThread())) {
+			release();
+		}
+	}
+	
+	/**
+	 * Makes the thread or the async transaction the owner of the state and
+	 * applies the queued commands. Returns false if the state is already
+	 * owned.
+	 */
+	private boolean acquire(final Object newOwner) {
+		if (!owner.compareAndSet(null, newOwner)) {
+			return false;
+		}
+		applyCommands();
+		return true;
+	}
+	
+	private void release() {
+		owner.set(null);
+		synchronized (owner) {
+			owner.notifyAll();
+		}
+		if (startQueued()) {
+			return;
+		}
+		// a command may have been queued after the last check, while we were still the owner
+		if (!commands.isEmpty() && acquire(Thread.currentThread())) {
+			release();
+		}
+	}
+	
+	/**
+	 * Makes the current thread the owner, waits until the running transaction
+	 * is done. A transaction that keeps the link alive is asked to end.
+	 */
+	private void awaitOwner() throws InterruptedException {
+		final Thread current = Thread.currentThread();
+		if (acquire(current)) {
+			return;
+		}
 		if (Config.DEBUG) {
-			LOGGER.debug( "reset state");
+			LOGGER.debug( "another transaction is running, wait until it is done");
 		}
-		synchronized (this) {
-			lastMessageSent = null;
-			messageQueue.clear();
-			messageSplitter.clear();
+		commands.offer(Command.HANDOVER);
+		synchronized (owner) {
+			while (!acquire(current)) {
+				// also checks again if the owner was released before we waited
+				owner.wait(POLL_OWNER_MILLIS);
+			}
 		}
 	}
 	
+	/**
+	 * Starts the queued async transaction if no transaction is running.
+	 * Returns true if it was started.
+	 */
+	private boolean startQueued() {
+		final AsyncTransaction next = queued.get();
+		if (next == null || !acquire(next)) {
+			return false;
+		}
+		if (!queued.compareAndSet(next, null)) {
+			// a newer tag replaced it, release starts that one
+			release();
+			return true;
+		}
+		next.start();
+		return true;
+	}
+	
+	private void applyCommands() {
+		Command command;
+		while ((command = commands.poll()) != null) {
+			switch (command) {
+			case RESET:
+				clearState();
+				break;
+			case HANDOVER:
+				handover = true;
+				break;
+			}
+		}
+	}
+	
+	private void clearState() {
+		if (Config.DEBUG) {
+			LOGGER.debug( "reset state");
+		}
+		lastMessageSent = null;
+		messageQueue.clear();
+		inflight.clear();
+		outgoing = null;
+		receiving = null;
+		reassembling = false;
+		carried = null;
+		hasCarried = false;
+		polls = 0;
+		messageSplitter.clear();
+		newSession();
+	}
+	
+	private void newSession() {
+		sessionId = UUID.randomUUID();
+		received = 0;
+		sending = null;
+		sentBase = 0;
+	}
+	
 	public void setFirst(boolean first) {
 		this.first = first;
 	}
@@ -280,49 +937,185 @@ public class NfcInitiator {
 	public void setInitiating(boolean initiating) {
 		this.initiating = initiating;
 	}
+	
+	/**
+	 * Sets the scheduler that paces the polling, while the other side
+	 * computes a deferred response and after the last message.
+	 */
+	public void setPollingScheduler(PollingScheduler pollingScheduler) {
+		this.pollingScheduler = pollingScheduler;
+	}
+	
+	public PollingScheduler getPollingScheduler() {
+		return pollingScheduler;
+	}
+	
+	/**
+	 * Sets the budget of a message, from its first frame until its response
+	 * is received, polling for a deferred response included. A message that
+	 * runs over is aborted, the other side is told and the handler gets
+	 * {@link NfcInitiatorHandler#handleFailed(String)} with the phase that ran
+	 * over, see {@link DeadlineExceededException}. 0 (default) for no limit.
+	 */
+	public void setMessageTimeout(long timeout, TimeUnit unit) {
+		this.messageTimeoutNanos = unit.toNanos(timeout);
+	}
+	
+	/**
+	 * Sets the budget of a transaction, from the handshake until the last
+	 * message, see {@link #setMessageTimeout(long, TimeUnit)}. The link kept
+	 * after the last message does not count. 0 (default) for no limit.
+	 */
+	public void setTransactionTimeout(long timeout, TimeUnit unit) {
+		this.transactionTimeoutNanos = unit.toNanos(timeout);
+	}
+	
+	/**
+	 * Enables or disables the compression of messages, if the other side
+	 * supports it. Takes effect with the next handshake.
+	 */
+	public void setCompression(boolean compressionEnabled) {
+		this.compressionEnabled = compressionEnabled;
+	}
+	
+	/**
+	 * Enables or disables the resumption of interrupted transfers, if the
+	 * other side supports it. Takes effect with the next handshake.
+	 */
+	public void setResume(boolean resumeEnabled) {
+		this.resumeEnabled = resumeEnabled;
+	}
+	
+	/**
+	 * Sets the maximum number of messages of the handler that are sent
+	 * together in one frame, if they fit. Their responses come back together
+	 * as well. The handler is asked for the next message before the response
+	 * to the previous one arrived, so a handler whose messages depend on the
+	 * previous response must not use this. 1 (default) sends every message
+	 * alone. Takes effect with the next handshake, if the other side supports
+	 * it, see {@link NfcMessage#CAP_BATCH}.
+	 */
+	public void setBatchSize(int batchSize) {
+		if (batchSize < 1 || batchSize > Batch.MAX_MESSAGES) {
+			throw new IllegalArgumentException("batch size must be between 1 and " + Batch.MAX_MESSAGES);
+		}
+		this.batchSize = batchSize;
+	}
+	
+	/**
+	 * Sets the number of fragments that are sent before an acknowledgement is
+	 * requested. This is used only if the other side supports it and the
+	 * transceiver is a {@link PipelinedNfcTransceiver}. 1 disables the
+	 * windowed mode. Takes effect with the next handshake.
+	 */
+	public void setWindowSize(int windowSize) {
+		if (windowSize < 1 || windowSize > NfcMessage.MAX_WINDOW) {
+			throw new IllegalArgumentException("window size must be between 1 and " + NfcMessage.MAX_WINDOW);
+		}
+		this.windowSize = windowSize;
+	}
+	
+	public int getWindowSize() {
+		return windowSize;
+	}
 
 	private boolean handshake(NfcTransceiver transceiver) throws Exception {
+		final Handshake handshake = startHandshake(transceiver.maxLen(), transceiver instanceof PipelinedNfcTransceiver);
+		byte[] response = handshakeWrite(transceiver, handshake.initMessage);
+		if (Arrays.equals(response, AID_NOT_FOUND)) {
+			response = handshakeWrite(transceiver, handshake.fallBack());
+		}
+		return handshakeDone(handshake, response);
+	}
+	
+	/**
+	 * The state of a handshake between the request and the response.
+	 */
+	private static class Handshake {
+		private final int maxLenThis;
+		private final boolean first;
+		private final int capabilitiesThis;
+		private NfcMessage initMessage;
+		
+		private Handshake(final int maxLenThis, final boolean first, final int capabilitiesThis, final int windowSize, 
+				final UUID sessionId, final int received) throws IOException {
+			this.maxLenThis = maxLenThis;
+			this.first = first;
+			this.capabilitiesThis = capabilitiesThis;
+			final byte[] payload;
+			if ((capabilitiesThis & NfcMessage.CAP_RESUME) != 0) {
+				payload = new byte[2 + NfcMessage.RESUME_REQUEST_LENGTH];
+				System.arraycopy(Utils.uuidToByteArray(sessionId), 0, payload, 2, 16);
+				Utils.intToByteArray(received, payload, 2 + 16);
+			} else {
+				payload = new byte[2];
+			}
+			payload[0] = (byte) capabilitiesThis;
+			payload[1] = (byte) windowSize;
+			// try the extended handshake first, older responders don't know the AID
+			this.initMessage = initMessage(maxLenThis, first).extended(true).payload(payload);
+		}
+		
+		/**
+		 * Returns the legacy request, if the other side does not know the
+		 * extended handshake.
+		 */
+		private NfcMessage fallBack() throws IOException {
+			if (Config.DEBUG) {
+				LOGGER.debug( "extended handshake not supported, fall back");
+			}
+			initMessage = initMessage(maxLenThis, first);
+			return initMessage;
+		}
+	}
+	
+	private Handshake startHandshake(final int maxLenThis, final boolean pipelined) throws IOException {
 		if (Config.DEBUG) {
 			LOGGER.debug( "init NFC");
 		}
-		final NfcMessage initMessage;
-		final int maxLenThis = transceiver.maxLen();
-		switch (maxLenThis) {
-		case 53:
-			initMessage = new NfcMessage(Type.AID_2);
-			break;
-		case 245:
-			initMessage = new NfcMessage(Type.AID_3);
-			break;
-		case Integer.MAX_VALUE:
-			initMessage = new NfcMessage(Type.AID_1);
-			break;
-		default:
-			throw new IOException(NfcEvent.INIT_FAILED.name());
-		}
 		final boolean firstCopy = first;
 		if (first) {
-			initMessage.first();
-			reset();
+			clearState();
 			first = false;
 		}
-
-		// no sequence number here,initiating.set( as this is a special message
-		if (Config.DEBUG) {
-			LOGGER.debug( "handshake write: {}", Arrays.toString(initMessage.bytes()));
+		
+		int capabilitiesThis = NfcMessage.CAPABILITIES;
+		if (windowSize <= 1 || !pipelined) {
+			capabilitiesThis &= ~NfcMessage.CAP_WINDOW;
 		}
-		final byte[] response = transceiver.write(initMessage.bytes());
-		final NfcMessage responseMessage = new NfcMessage(response);
-		if (Config.DEBUG) {
-			LOGGER.debug( "handshake response: {}", Arrays.toString(response));
+		if (!compressionEnabled) {
+			capabilitiesThis &= ~NfcMessage.CAP_COMPRESSION;
+		}
+		// streamed messages are not batched
+		if (batchSize <= 1 || initiatorHandler instanceof StreamingInitiatorHandler) {
+			capabilitiesThis &= ~NfcMessage.CAP_BATCH;
 		}
+		// streamed messages cannot be sent again from an offset
+		if (!resumeEnabled || initiatorHandler instanceof StreamingInitiatorHandler) {
+			capabilitiesThis &= ~NfcMessage.CAP_RESUME;
+		}
+		return new Handshake(maxLenThis, firstCopy, capabilitiesThis, windowSize, sessionId, received);
+	}
+	
+	/**
+	 * Applies the response of the other side, returns true if the other side
+	 * has data to resume.
+	 */
+	private boolean handshakeDone(final Handshake handshake, final byte[] response) throws IOException {
+		final NfcMessage initMessage = handshake.initMessage;
+		final int capabilitiesThis = handshake.capabilitiesThis;
+		final int maxLenThis = handshake.maxLenThis;
+		final boolean firstCopy = handshake.first;
+		final NfcMessage responseMessage = new NfcMessage(response);
 		// --> here we can get an exception. We should get back this array:
 		// {2,0,0,0,x}
 		if (responseMessage.sequenceNumber() != 0) {
 			LOGGER.error( "handshake header unexpected: {}", responseMessage);
 			throw new IOException(NfcEvent.INIT_FAILED.name());
 		}
-		if (responseMessage.payload().length != 2 + 16 + 1) {
+		final int length = responseMessage.payload().length;
+		if (initMessage.isExtended() ? length <= NfcMessage.HANDSHAKE_RESPONSE_LENGTH
+				: length != NfcMessage.HANDSHAKE_RESPONSE_LENGTH) {
 			LOGGER.error( "handshake payload unexpected: {}", responseMessage);
 			throw new IOException(NfcEvent.INIT_FAILED.name());
 		}
@@ -330,12 +1123,119 @@ public class NfcInitiator {
 		final int maxLenOther = Utils.byteArrayToShort(responseMessage.payload(), 1);
 		byte[] uuid = new byte[16];
 		System.arraycopy(responseMessage.payload(), 3, uuid, 0, 16);
+		final int capabilities = initMessage.isExtended() 
+				? responseMessage.payload()[NfcMessage.HANDSHAKE_RESPONSE_LENGTH] & capabilitiesThis : 0;
 		initiatorHandler.setUUID(uuid, firstCopy);
-		messageSplitter.maxTransceiveLength(Math.min(maxLenOther, maxLenThis));
+		frameLength = Math.min(maxLenOther, maxLenThis);
+		messageSplitter.maxTransceiveLength(frameLength);
+		messageSplitter.lengthHint((capabilities & NfcMessage.CAP_LENGTH_HINT) != 0);
+		compress = (capabilities & NfcMessage.CAP_COMPRESSION) != 0;
+		batch = (capabilities & NfcMessage.CAP_BATCH) != 0;
+		if ((capabilities & NfcMessage.CAP_WINDOW) != 0 && length > NfcMessage.HANDSHAKE_RESPONSE_LENGTH + 1) {
+			window = Math.min(windowSize, responseMessage.payload()[NfcMessage.HANDSHAKE_RESPONSE_LENGTH + 1] & 0xFF);
+		} else {
+			window = 0;
+		}
+		messageSplitter.windowed(window > 1);
+		final int resumeOffset = NfcMessage.HANDSHAKE_RESPONSE_LENGTH + 2;
+		if ((capabilities & NfcMessage.CAP_RESUME) != 0 && length >= resumeOffset + NfcMessage.RESUME_RESPONSE_LENGTH) {
+			final byte[] payload = responseMessage.payload();
+			resumable = true;
+			resume(payload[resumeOffset] == 1, Utils.byteArrayToInt(payload, resumeOffset + 1));
+		} else if (resumable || sending != null || received > 0) {
+			// the counters are only kept while both sides keep them
+			resumable = false;
+			newSession();
+		}
 		return resume;
 	}
 	
+	/**
+	 * Continues the outgoing message from the bytes the other side received.
+	 * If the other side does not know the session, the message is sent again
+	 * from the start.
+	 */
+	private void resume(final boolean known, final int receivedOther) {
+		// both sides count the sequence numbers from the handshake on
+		lastMessageSent = null;
+		if (!known) {
+			// the other side started the session with this handshake
+			received = 0;
+			sentBase = 0;
+			if (reassembling) {
+				messageSplitter.clear();
+				reassembling = false;
+			}
+			if (sending != null) {
+				messageQueue.clear();
+				inflight.clear();
+				outgoing = messageSplitter.fragments(sending);
+			}
+			return;
+		}
+		if (sending == null) {
+			// the other side continues its response, if there is one
+			return;
+		}
+		// the rest of the message is fragmented again, for the current frame length
+		messageQueue.clear();
+		inflight.clear();
+		final int offset = receivedOther - sentBase;
+		if (offset >= sending.length) {
+			// the other side has all of it, ask for the response
+			sentBase += sending.length;
+			sending = null;
+			outgoing = null;
+			messageQueue.offer(new NfcMessage(Type.POLLING_RESPONSE));
+		} else {
+			if (Config.DEBUG) {
+				LOGGER.debug( "resume message at {} of {}", offset, sending.length);
+			}
+			outgoing = messageSplitter.fragments(sending, offset);
+		}
+	}
+	
+	private static NfcMessage initMessage(final int maxLenThis, final boolean first) throws IOException {
+		final NfcMessage initMessage;
+		switch (maxLenThis) {
+		case 53:
+			initMessage = new NfcMessage(Type.AID_2);
+			break;
+		case 245:
+			initMessage = new NfcMessage(Type.AID_3);
+			break;
+		default:
+			// no limit, or the frame length of a BLE link: both sides take the smaller one
+			if (maxLenThis <= NfcMessage.HEADER_LENGTH) {
+				throw new IOException(NfcEvent.INIT_FAILED.name());
+			}
+			initMessage = new NfcMessage(Type.AID_1);
+			break;
+		}
+		if (first) {
+			initMessage.first();
+		}
+		return initMessage;
+	}
+	
+	private static byte[] handshakeWrite(final NfcTransceiver transceiver, final NfcMessage initMessage) throws Exception {
+		final byte[] request = initMessage.bytes();
+		// no sequence number here, as this is a special message
+		if (Config.DEBUG) {
+			LOGGER.debug( "handshake write: {}", Arrays.toString(request));
+		}
+		final byte[] response = transceiver.write(request);
+		if (Config.DEBUG) {
+			LOGGER.debug( "handshake response: {}", Arrays.toString(response));
+		}
+		if (response == null) {
+			throw new NfcLibException("tag lost");
+		}
+		return response;
+	}
+	
 	public void setmaxTransceiveLength(int len) {
+		frameLength = len;
 		messageSplitter.maxTransceiveLength(len);
 	}
 
@@ -343,83 +1243,410 @@ public class NfcInitiator {
 		if (Config.DEBUG) {
 			LOGGER.debug( "start message loop");
 		}
-		while (!messageQueue.isEmpty()) {
-			final NfcMessage request = messageQueue.peek();
-
-			final NfcMessage responseMessage;
+		final boolean windowed = window > 1 && transceiver instanceof PipelinedNfcTransceiver;
+		NfcMessage request;
+		while (true) {
+			// a reset from another thread takes effect before the next frame
+			applyCommands();
+			if ((request = nextRequest()) == null) {
+				break;
+			}
 			
-			//important to have this an reset synchronized, otherwise lastMessageSent could never be null
-			synchronized (this) {
-				
-				request.sequenceNumber(lastMessageSent);
-				if (Config.DEBUG) {
-					LOGGER.debug( "loop write: {} / {}", request, Arrays.toString(request.bytes()));
+			if (windowed && isOutgoingFragment(request)) {
+				checkDeadline(transceiver, DeadlineExceededException.Phase.SEND);
+				request = writeWindow((PipelinedNfcTransceiver) transceiver);
+				if (request == null) {
+					// go back, the other side missed a fragment
+					continue;
 				}
-				byte[] response = transceiver.write(request.bytes());
-
-				if (response == null) {
-					throw new NfcLibException("tag lost");
-				}
-				responseMessage = new NfcMessage(response);
-				if (Config.DEBUG) {
-					LOGGER.debug( "loop response: {}", responseMessage);
-				}
-
-				if (!validateSequence(request, responseMessage)) {
-					if (Config.DEBUG) {
-						LOGGER.debug( "sequence error {} / {}", request, response);
+			} else {
+				final long delay = pollDelay(request);
+				if (delay > 0) {
+					TimeUnit.NANOSECONDS.sleep(delay);
+					// a reset while waiting takes effect before the poll
+					applyCommands();
+					if (messageQueue.peek() != request) {
+						continue;
 					}
-					throw new IOException(INV_SEQ);
 				}
-			
-				// message successfully sent, remove from queue
-				messageQueue.poll();
-				initiatorHandler.handleStatus("message fragment sent, queue: " + messageQueue.size());
+				checkDeadline(transceiver, phaseOf(request));
+				request.windowed(windowed).ackRequested(windowed);
+				request.sequenceNumber(lastMessageSent);
+				writeFrame(transceiver, request);
+				acknowledged(request);
+			}
+			responseReceived(request);
+		}
+	}
+	
+	/**
+	 * Checks that responseMessage answers the request and removes the request
+	 * from the queue.
+	 */
+	private void acknowledged(final NfcMessage request) throws IOException {
+		if (Config.DEBUG) {
+			LOGGER.debug( "loop response: {}", responseMessage);
+		}
 
-				lastMessageSent = request;
+		if (!validateSequence(request, responseMessage)) {
+			if (Config.DEBUG) {
+				LOGGER.debug( "sequence error {} / {}", request, responseMessage);
 			}
+			throw new IOException(INV_SEQ);
+		}
+	
+		// message successfully sent, remove from queue
+		messageQueue.poll();
+	}
+	
+	/**
+	 * Processes responseMessage, the answer to the request.
+	 */
+	private void responseReceived(final NfcMessage request) throws Exception {
+		initiatorHandler.handleStatus("message fragment sent, queue: " + pending());
 
-			switch (responseMessage.type()) {
-			case SINGLE:
-			case FRAGMENT:
-			case FRAGMENT_LAST:
-				if (responseMessage.payload().length > 0) {
-					// we receive fragments
-					switch (responseMessage.type()) {
-					case SINGLE:
-						initiatorHandler.handleMessageReceived(responseMessage.payload());
-						break;
-					case FRAGMENT:
-						messageSplitter.reassemble(responseMessage);
-						messageQueue.offer(new NfcMessage(Type.FRAGMENT));
-						break;
-					case FRAGMENT_LAST:
-						messageSplitter.reassemble(responseMessage);
-						initiatorHandler.handleMessageReceived(messageSplitter.data());
-						break;
-					default:
-						throw new RuntimeException("This can never happen");
+		lastMessageSent = request;
+		if (sending != null && request.payloadLength() > 0 
+				&& (request.type() == Type.SINGLE || request.type() == Type.FRAGMENT_LAST)) {
+			// the other side has the whole message
+			sentBase += sending.length;
+			sending = null;
+		}
+
+		switch (responseMessage.type()) {
+		case SINGLE:
+		case FRAGMENT:
+		case FRAGMENT_LAST:
+			if (responseMessage.payloadLength() > 0) {
+				if (polls > 0) {
+					// the deferred response arrived
+					pollingScheduler.deferredResponse(polls, System.nanoTime() - firstPoll);
+					polls = 0;
+				}
+				// we receive fragments
+				switch (responseMessage.type()) {
+				case SINGLE:
+					if (resumable) {
+						received += responseMessage.payloadLength();
 					}
-				} else {
-					// we send fragments
-					if (messageQueue.isEmpty()) {
-						throw new IOException("message queue empty, cannot send fragments");
+					deadline.endMessage();
+					final OutputStream sink = messageStream();
+					if (sink != null) {
+						sink.write(responseMessage.payloadArray(), responseMessage.payloadOffset(), 
+								responseMessage.payloadLength());
+						sink.close();
+					} else {
+						deliver(received(responseMessage.payload()));
 					}
+					break;
+				case FRAGMENT:
+					reassemble(responseMessage);
+					// a new message, a reused one would be its own predecessor when sent again
+					messageQueue.offer(new NfcMessage(Type.FRAGMENT));
+					break;
+				case FRAGMENT_LAST:
+					reassemble(responseMessage);
+					reassembling = false;
+					deadline.endMessage();
+					if (receiving != null) {
+						receiving.close();
+						receiving = null;
+						break;
+					}
+					final byte[] receivedData = messageSplitter.data();
+					messageSplitter.clear();
+					deliver(received(receivedData));
+					break;
+				default:
+					throw new RuntimeException("This can never happen");
 				}
+			} else {
+				// we send fragments
+				if (!hasPending()) {
+					throw new IOException("message queue empty, cannot send fragments");
+				}
+			}
+			break;
+		case POLLING_REQUEST:
+			messageQueue.offer(new NfcMessage(Type.POLLING_RESPONSE));
+			break;
+		case POLLING_RESPONSE:
+			break;
+		case ERROR:
+			final String reason = DeadlineExceededException.reason(responseMessage);
+			if (reason != null) {
+				throw new IOException(reason);
+			}
+			throw new IOException("the message " + request + " caused an exception on the other side");
+		case ERROR_REPLY:
+			throw new IOException("the message " + request + " caused an exception on this side");
+		default:
+			throw new IOException("did not expect the type " + responseMessage.type() + " as reply");
+		}
+	}
+	
+	/**
+	 * Returns the pause in nanoseconds before the request, if it polls for a
+	 * deferred response of the other side.
+	 */
+	private long pollDelay(final NfcMessage request) {
+		if (request.type() != Type.POLLING_RESPONSE) {
+			return 0;
+		}
+		final long now = System.nanoTime();
+		if (polls == 0) {
+			firstPoll = now;
+		}
+		final long delay = pollingScheduler.delay(polls, polls == 0 ? Long.MAX_VALUE : now - lastPoll);
+		polls++;
+		lastPoll = now + Math.max(0, delay);
+		return delay;
+	}
+	
+	/**
+	 * Aborts the transaction if a budget ran out. The other side is told with
+	 * an ERROR frame, its response is not awaited.
+	 */
+	private void checkDeadline(final NfcTransceiver transceiver, final DeadlineExceededException.Phase phase) 
+			throws Exception {
+		final DeadlineExceededException e = deadline.exceeded(phase, messageTimeoutNanos, transactionTimeoutNanos);
+		if (e == null) {
+			return;
+		}
+		LOGGER.error( "abort transaction: {}", e.getMessage());
+		try {
+			transceiver.write(abortMessage(e).bytes());
+		} catch (Exception ignore) {
+			if (Config.DEBUG) {
+				LOGGER.debug( "could not tell the other side", ignore);
+			}
+		}
+		throw e;
+	}
+	
+	/**
+	 * Returns the ERROR frame that tells the other side why the transaction
+	 * is aborted.
+	 */
+	private NfcMessage abortMessage(final DeadlineExceededException e) {
+		final boolean windowed = lastMessageSent != null && lastMessageSent.isWindowed();
+		return new NfcMessage(Type.ERROR).payload(e.payload()).windowed(windowed).ackRequested(windowed)
+				.sequenceNumber(lastMessageSent);
+	}
+	
+	/**
+	 * Returns what the transaction is doing while the request is sent.
+	 */
+	private static DeadlineExceededException.Phase phaseOf(final NfcMessage request) {
+		switch (request.type()) {
+		case POLLING_REQUEST:
+		case POLLING_RESPONSE:
+			return DeadlineExceededException.Phase.POLLING;
+		default:
+			return request.payloadLength() > 0 
+					? DeadlineExceededException.Phase.SEND : DeadlineExceededException.Phase.RECEIVE;
+		}
+	}
+	
+	/**
+	 * Writes the request and decodes the response into responseMessage. With a
+	 * {@link BufferedNfcTransceiver}, the request is encoded into and the
+	 * response received in buffers that are reused for every frame.
+	 */
+	private void writeFrame(final NfcTransceiver transceiver, final NfcMessage request) throws Exception {
+		if (!(transceiver instanceof BufferedNfcTransceiver)) {
+			final byte[] requestBytes = request.bytes();
+			if (Config.DEBUG) {
+				LOGGER.debug( "loop write: {} / {}", request, Arrays.toString(requestBytes));
+			}
+			final byte[] response = transceiver.write(requestBytes);
+			if (response == null) {
+				throw new NfcLibException("tag lost");
+			}
+			responseMessage.wrap(response, 0, response.length);
+			return;
+		}
+		// AID_1 transceivers report Integer.MAX_VALUE, the other side announced the real limit
+		final int maxLen = Math.min(transceiver.maxLen(), frameLength > 0 ? frameLength : transceiver.maxLen());
+		final int requestLength = request.encodedLength();
+		if (sendBuffer == null || sendBuffer.length < requestLength) {
+			sendBuffer = new byte[Math.max(requestLength, maxLen)];
+		}
+		if (receiveBuffer == null || receiveBuffer.length < maxLen) {
+			receiveBuffer = new byte[maxLen];
+		}
+		request.encodeInto(sendBuffer, 0);
+		if (Config.DEBUG) {
+			LOGGER.debug( "loop write: {} / {}", request, Arrays.toString(Arrays.copyOf(sendBuffer, requestLength)));
+		}
+		final int length = ((BufferedNfcTransceiver) transceiver).write(sendBuffer, requestLength, receiveBuffer);
+		if (length <= 0) {
+			throw new NfcLibException("tag lost");
+		}
+		responseMessage.wrap(receiveBuffer, 0, length);
+	}
+	
+	private byte[] received(final byte[] message) throws IOException {
+		return compress ? compression.decode(message) : message;
+	}
+	
+	private void reassemble(final NfcMessage fragment) throws Exception {
+		final boolean first = !reassembling;
+		if (first) {
+			reassembling = true;
+			receiving = messageStream();
+		}
+		if (resumable) {
+			received += fragment.payloadLength() 
+					- (first && messageSplitter.isLengthHint() ? NfcMessageSplitter.LENGTH_HINT_SIZE : 0);
+		}
+		if (receiving != null) {
+			messageSplitter.reassemble(fragment, receiving, first);
+		} else {
+			messageSplitter.reassemble(fragment);
+		}
+	}
+	
+	/**
+	 * Returns the sink for an incoming message, or null if the message is
+	 * reassembled in memory.
+	 */
+	private OutputStream messageStream() throws Exception {
+		if (!(initiatorHandler instanceof StreamingInitiatorHandler)) {
+			return null;
+		}
+		final OutputStream sink = ((StreamingInitiatorHandler) initiatorHandler).messageStream();
+		if (sink == null || !compress) {
+			return sink;
+		}
+		return Compression.decodeStream(sink);
+	}
+	
+	/**
+	 * Sends up to a window of fragments, only the last one requests an
+	 * acknowledgement. The response to the last fragment is decoded into
+	 * responseMessage.
+	 * 
+	 * @return the last fragment sent, or null if the other side acknowledged
+	 *         only a part of the window, the rest is queued again
+	 */
+	private NfcMessage writeWindow(final PipelinedNfcTransceiver transceiver) throws Exception {
+		final NfcMessage before = lastMessageSent;
+		NfcMessage request = messageQueue.poll();
+		try {
+			while (true) {
+				request.windowed(true).ackRequested(false).sequenceNumber(lastMessageSent);
+				lastMessageSent = request;
+				inflight.offer(request);
+				final NfcMessage next = nextRequest();
+				if (inflight.size() >= window || next == null || !isOutgoingFragment(next)) {
+					break;
+				}
+				if (Config.DEBUG) {
+					LOGGER.debug( "window write: {}", request);
+				}
+				transceiver.writeUnacknowledged(request.bytes());
+				request = messageQueue.poll();
+			}
+			
+			request.ackRequested(true);
+			if (Config.DEBUG) {
+				LOGGER.debug( "window write: {}", request);
+			}
+			final byte[] response = transceiver.write(request.bytes());
+			if (response == null) {
+				throw new NfcLibException("tag lost");
+			}
+			responseMessage.wrap(response, 0, response.length);
+			if (Config.DEBUG) {
+				LOGGER.debug( "window response: {}", responseMessage);
+			}
+		} catch (Exception e) {
+			// nothing is acknowledged, send the whole window again
+			goBack(before);
+			throw e;
+		}
+		
+		if (responseMessage.sequenceNumber() == request.sequenceNumber()) {
+			inflight.clear();
+			windowRetries = 0;
+			return request;
+		}
+		if (!responseMessage.isWindowed() || !responseMessage.isGetNextFragment()) {
+			LOGGER.error( "unexpected window response {} / {}", request, responseMessage);
+			throw new IOException(INV_SEQ);
+		}
+		// cumulative acknowledgement, everything up to this sequence number arrived
+		NfcMessage acked = before;
+		for (NfcMessage msg : inflight) {
+			if (msg.sequenceNumber() == responseMessage.sequenceNumber()) {
+				acked = msg;
 				break;
-			case POLLING_REQUEST:
-				messageQueue.offer(new NfcMessage(Type.POLLING_RESPONSE));
-				break;
-			case POLLING_RESPONSE:
-				break;
-			case ERROR:
-				throw new IOException("the message " + request + " caused an exception on the other side");
-			case ERROR_REPLY:
-				throw new IOException("the message " + request + " caused an exception on this side");
-			default:
-				throw new IOException("did not expect the type " + responseMessage.type() + " as reply");
 			}
 		}
+		if (acked == before) {
+			if (++windowRetries > MAX_WINDOW_RETRIES) {
+				throw new IOException(INV_SEQ);
+			}
+		} else {
+			windowRetries = 0;
+			while (inflight.poll() != acked) {
+				// drop the acknowledged fragments
+			}
+		}
+		if (Config.DEBUG) {
+			LOGGER.debug( "acknowledged up to {}, resend {}", acked, inflight.size());
+		}
+		goBack(acked);
+		return null;
+	}
+	
+	/**
+	 * Puts the unacknowledged fragments back to the front of the queue.
+	 */
+	private void goBack(final NfcMessage acked) {
+		NfcMessage msg;
+		while ((msg = inflight.pollLast()) != null) {
+			messageQueue.offerFirst(msg);
+		}
+		lastMessageSent = acked;
+	}
+	
+	private static boolean isOutgoingFragment(final NfcMessage msg) {
+		return (msg.type() == Type.FRAGMENT || msg.type() == Type.FRAGMENT_LAST) && msg.payloadLength() > 0;
+	}
+	
+	/**
+	 * Returns the next message to send without removing it from the queue.
+	 * If the queue is empty, the next fragment of the outgoing message is
+	 * created.
+	 */
+	private NfcMessage nextRequest() throws IOException {
+		final NfcMessage request = messageQueue.peek();
+		if (request != null) {
+			return request;
+		}
+		final FragmentSource source = outgoing;
+		if (source == null) {
+			return null;
+		}
+		final NfcMessage fragment = source.next();
+		if (fragment == null) {
+			outgoing = null;
+			return null;
+		}
+		messageQueue.offer(fragment);
+		return fragment;
+	}
+	
+	private boolean hasPending() {
+		final FragmentSource source = outgoing;
+		return !messageQueue.isEmpty() || (source != null && source.hasNext());
+	}
+	
+	private int pending() {
+		final FragmentSource source = outgoing;
+		return messageQueue.size() + (source == null ? 0 : Math.max(0, source.remaining()));
 	}
 	
 	public static boolean validateSequence(final NfcMessage request, final NfcMessage response) {
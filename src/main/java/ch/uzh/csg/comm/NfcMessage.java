@@ -1,5 +1,6 @@
 package ch.uzh.csg.comm;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -53,6 +54,13 @@ import java.util.Arrays;
  * send FRAGMENT/0	->
  * 					<- FRAGEMNT_L
  * 
+ * windowed request (if negotiated and the transport is pipelined):
+ * send FRAGMENT/w	->
+ * send FRAGMENT/w	->
+ * send FRAGMENT/w+a	-> 
+ * 					<- FRAGMENT/0 (acknowledges all up to the sequence number)
+ * send FRAGMENT_L/w+a	-> got message
+ * 
  * @author Jeton Memeti (initial version)
  * @author Thomas Bocek (simplification, refactoring)
  * 
@@ -88,37 +96,101 @@ public class NfcMessage {
 	public static final byte[] CLA_INS_P1_P2_COINBLESK_1_FIRST;
 	public static final byte[] CLA_INS_P1_P2_COINBLESK_2_FIRST;
 	public static final byte[] CLA_INS_P1_P2_COINBLESK_3_FIRST;
+	
+	/*
+	 * The extended handshake uses its own AIDs. An HCE service that does not
+	 * know them is never selected, Android answers with 6A82 (file not found)
+	 * and the initiator falls back to the AIDs above. After Le, the initiator
+	 * appends its capabilities, the responder answers with the negotiated
+	 * capabilities after the UUID. With CAP_RESUME, the initiator adds its
+	 * session UUID and the bytes it received, the responder answers whether it
+	 * knows the session and the bytes it received.
+	 */
+//    <aid-filter android:name="F0F00777FE6500" />
+//    <aid-filter android:name="F0F00777FE6536" />
+//    <aid-filter android:name="F0F00777FE65F5" />
+//    <aid-filter android:name="F0F00777FE6400" />
+//    <aid-filter android:name="F0F00777FE6436" />
+//    <aid-filter android:name="F0F00777FE64F5" />
+	public static final byte[] AID_COINBLESK_EXT_1 = { (byte) 0xF0, (byte) 0xF0, 0x07, 0x77, (byte) 0xFE, 0x65, 0x0 };
+	public static final byte[] AID_COINBLESK_EXT_2 = { (byte) 0xF0, (byte) 0xF0, 0x07, 0x77, (byte) 0xFE, 0x65, 0x36 };
+	public static final byte[] AID_COINBLESK_EXT_3 = { (byte) 0xF0, (byte) 0xF0, 0x07, 0x77, (byte) 0xFE, 0x65, (byte) 0xF5 };
+	
+	public static final byte[] CLA_INS_P1_P2_COINBLESK_EXT_1;
+	public static final byte[] CLA_INS_P1_P2_COINBLESK_EXT_2;
+	public static final byte[] CLA_INS_P1_P2_COINBLESK_EXT_3;
+	public static final byte[] CLA_INS_P1_P2_COINBLESK_EXT_1_FIRST;
+	public static final byte[] CLA_INS_P1_P2_COINBLESK_EXT_2_FIRST;
+	public static final byte[] CLA_INS_P1_P2_COINBLESK_EXT_3_FIRST;
+	
+	// resume flag + 2 bytes transmission length + 128bit UUID
+	public static final int HANDSHAKE_RESPONSE_LENGTH = 1 + 2 + 16;
+	
+	// capabilities, negotiated in the extended handshake
+	public static final int CAP_LENGTH_HINT = 0x01;
+	// sliding window, followed by the window size (1 byte) in the handshake
+	public static final int CAP_WINDOW = 0x02;
+	// messages are sent in the envelope of Compression
+	public static final int CAP_COMPRESSION = 0x04;
+	// messages are sent in the envelope of Batch, several in one if they fit
+	public static final int CAP_BATCH = 0x08;
+	// interrupted transfers continue from the last byte received, see NfcResponder
+	public static final int CAP_RESUME = 0x10;
+	// all capabilities this version supports
+	public static final int CAPABILITIES = CAP_LENGTH_HINT | CAP_WINDOW | CAP_COMPRESSION | CAP_BATCH | CAP_RESUME;
+	// session UUID + bytes received (4 bytes), after capabilities and window
+	public static final int RESUME_REQUEST_LENGTH = 16 + 4;
+	// session known flag + bytes received (4 bytes), after capabilities and window
+	public static final int RESUME_RESPONSE_LENGTH = 1 + 4;
+	
+	/*
+	 * Windowed frames have a second header byte. The first byte has the type
+	 * WINDOWED and the lower 4 bits of the sequence number, the second byte
+	 * has the real type (bit 0-2), the ACK_REQUESTED flag (bit 3) and the
+	 * upper 4 bits of the sequence number. Frames without ACK_REQUESTED are
+	 * not answered, the other side acknowledges cumulatively.
+	 */
+	public static final int HEADER_LENGTH_WINDOWED = 2;
+	public static final int ACK_REQUESTED = 0x8;
+	// at most half of the sequence space may be unacknowledged
+	public static final int MAX_WINDOW = 127;
+	
 	static {
 		// for details see:
 		// http://www.cardwerk.com/smartcards/smartcard_standard_ISO7816-4_9_application-independent_card_services.aspx
-		final byte Lc1 = (byte) AID_COINBLESK_1.length;
-		final byte Lc2 = (byte) AID_COINBLESK_2.length;
-		final byte Lc3 = (byte) AID_COINBLESK_3.length;
 		// we return 1 + 2 bytes transmission length + 128bit UUID
 		final byte Le = HEADER_LENGTH + 2 + 16 + 1;
-		CLA_INS_P1_P2_COINBLESK_1 = new byte[] { CLA_INS_P1_P2[0], CLA_INS_P1_P2[1], 
-				CLA_INS_P1_P2[2], CLA_INS_P1_P2[3], Lc1, AID_COINBLESK_1[0], AID_COINBLESK_1[1], 
-				AID_COINBLESK_1[2], AID_COINBLESK_1[3], AID_COINBLESK_1[4], AID_COINBLESK_1[5], 
-				AID_COINBLESK_1[6], Le };
+		CLA_INS_P1_P2_COINBLESK_1 = select(AID_COINBLESK_1, Le);
+		CLA_INS_P1_P2_COINBLESK_2 = select(AID_COINBLESK_2, Le);
+		CLA_INS_P1_P2_COINBLESK_3 = select(AID_COINBLESK_3, Le);
 		
-		CLA_INS_P1_P2_COINBLESK_2 = new byte[] { CLA_INS_P1_P2[0], CLA_INS_P1_P2[1], 
-				CLA_INS_P1_P2[2], CLA_INS_P1_P2[3], Lc2, AID_COINBLESK_2[0], AID_COINBLESK_2[1], 
-				AID_COINBLESK_2[2], AID_COINBLESK_2[3], AID_COINBLESK_2[4], AID_COINBLESK_2[5], 
-				AID_COINBLESK_2[6], Le };
+		CLA_INS_P1_P2_COINBLESK_1_FIRST = first(CLA_INS_P1_P2_COINBLESK_1);
+		CLA_INS_P1_P2_COINBLESK_2_FIRST = first(CLA_INS_P1_P2_COINBLESK_2);
+		CLA_INS_P1_P2_COINBLESK_3_FIRST = first(CLA_INS_P1_P2_COINBLESK_3);
 		
-		CLA_INS_P1_P2_COINBLESK_3 = new byte[] { CLA_INS_P1_P2[0], CLA_INS_P1_P2[1], 
-				CLA_INS_P1_P2[2], CLA_INS_P1_P2[3], Lc3, AID_COINBLESK_3[0], AID_COINBLESK_3[1], 
-				AID_COINBLESK_3[2], AID_COINBLESK_3[3], AID_COINBLESK_3[4], AID_COINBLESK_3[5], 
-				AID_COINBLESK_3[6], Le };
-		
-		CLA_INS_P1_P2_COINBLESK_1_FIRST = CLA_INS_P1_P2_COINBLESK_1.clone();
-		CLA_INS_P1_P2_COINBLESK_2_FIRST = CLA_INS_P1_P2_COINBLESK_2.clone();
-		CLA_INS_P1_P2_COINBLESK_3_FIRST = CLA_INS_P1_P2_COINBLESK_3.clone();
-		
-		CLA_INS_P1_P2_COINBLESK_1_FIRST[AID_COINBLESK_FIRST_POS] = AID_COINBLESK_FIRST;
-		CLA_INS_P1_P2_COINBLESK_2_FIRST[AID_COINBLESK_FIRST_POS] = AID_COINBLESK_FIRST;
-		CLA_INS_P1_P2_COINBLESK_3_FIRST[AID_COINBLESK_FIRST_POS] = AID_COINBLESK_FIRST;	
+		// Le = 0 means up to 256 bytes, the answer grows with the capabilities
+		CLA_INS_P1_P2_COINBLESK_EXT_1 = select(AID_COINBLESK_EXT_1, (byte) 0);
+		CLA_INS_P1_P2_COINBLESK_EXT_2 = select(AID_COINBLESK_EXT_2, (byte) 0);
+		CLA_INS_P1_P2_COINBLESK_EXT_3 = select(AID_COINBLESK_EXT_3, (byte) 0);
 		
+		CLA_INS_P1_P2_COINBLESK_EXT_1_FIRST = first(CLA_INS_P1_P2_COINBLESK_EXT_1);
+		CLA_INS_P1_P2_COINBLESK_EXT_2_FIRST = first(CLA_INS_P1_P2_COINBLESK_EXT_2);
+		CLA_INS_P1_P2_COINBLESK_EXT_3_FIRST = first(CLA_INS_P1_P2_COINBLESK_EXT_3);
+	}
+	
+	private static byte[] select(final byte[] aid, final byte Le) {
+		final byte[] apdu = new byte[CLA_INS_P1_P2.length + 1 + aid.length + 1];
+		System.arraycopy(CLA_INS_P1_P2, 0, apdu, 0, CLA_INS_P1_P2.length);
+		apdu[CLA_INS_P1_P2.length] = (byte) aid.length;
+		System.arraycopy(aid, 0, apdu, CLA_INS_P1_P2.length + 1, aid.length);
+		apdu[apdu.length - 1] = Le;
+		return apdu;
+	}
+	
+	private static byte[] first(final byte[] apdu) {
+		final byte[] first = apdu.clone();
+		first[AID_COINBLESK_FIRST_POS] = AID_COINBLESK_FIRST;
+		return first;
 	}
 
 	public static final byte[] READ_BINARY = { 0x00, (byte) 0xB0, 0x00, 0x00, 0x01 };
@@ -129,74 +201,183 @@ public class NfcMessage {
 
 	// messages, uses the last 3 bits (bit 0-2), READ_BINARY, AID_1, AID_2, AID_3, NO_COINBLESK_MSG is never sent over the wire
 	public enum Type {
-		FRAGMENT, FRAGMENT_LAST, POLLING_REQUEST, SINGLE, ERROR, POLLING_RESPONSE, ERROR_REPLY, UNUSED2, READ_BINARY, AID_1, AID_2, AID_3;
+		FRAGMENT, FRAGMENT_LAST, POLLING_REQUEST, SINGLE, ERROR, POLLING_RESPONSE, ERROR_REPLY, WINDOWED, READ_BINARY, AID_1, AID_2, AID_3;
 	}
 	
 	//Hack for NXP devices that require to have the smallest packet of 2 bytes
 	public static final int IS_EMPTY = 0x8;
 	
+	// Type.values() clones the array on every call
+	private static final Type[] TYPES = Type.values();
+	
 	// data
-	private final int type;
+	private int type;
 	private int sequenceNumber = 0;
+	// the payload may be a view (offset/length) into a larger array, e.g. the
+	// raw frame as received from the transceiver
 	private byte[] payload = EMTPY_BYTE_ARRAY;
+	private int payloadOffset = 0;
+	private int payloadLength = 0;
 	private boolean first = false;
+	private boolean extended = false;
+	private boolean windowed = false;
+	private boolean ackRequested = false;
 	private boolean isEmpty = false;
 
 	/**
-	 * Sets the data of this message and returns it.
+	 * Sets the data of this message and returns it. The payload is copied, so
+	 * the input array may be reused by the caller afterwards.
 	 * 
 	 * @param input
 	 *            the header as well as the payload of this {@link NfcMessage}
 	 */
 	public NfcMessage(final byte[] input) {
-		final int len = input.length;
-		if (Arrays.equals(input, READ_BINARY)) {
-			/*
-			 * Based on the reported issue in
-			 * https://code.google.com/p/android/issues/detail?id=58773, there
-			 * is a failure in the Android NFC protocol. The IsoDep might
-			 * transceive a READ BINARY, if the communication with the tag (or
-			 * HCE) has been idle for a given time (125ms as mentioned on the
-			 * issue report). This idle time can be changed with the
-			 * EXTRA_READER_PRESENCE_CHECK_DELAY option.
-			 */
-			type = Type.READ_BINARY.ordinal();
-		} else if (Arrays.equals(input, CLA_INS_P1_P2_COINBLESK_1)) {
-			// we got the initial handshake
-			type = Type.AID_1.ordinal();
-		} else if (Arrays.equals(input, CLA_INS_P1_P2_COINBLESK_2)) {
-			// we got the initial handshake
-			type = Type.AID_2.ordinal();
-		} else if (Arrays.equals(input, CLA_INS_P1_P2_COINBLESK_3)) {
-			// we got the initial handshake
-			type = Type.AID_3.ordinal();
-		} else if (Arrays.equals(input, CLA_INS_P1_P2_COINBLESK_1_FIRST)) {
-			// we got the initial handshake
-			type = Type.AID_1.ordinal();
-			first = true;
-		} else if (Arrays.equals(input, CLA_INS_P1_P2_COINBLESK_2_FIRST)) {
-			// we got the initial handshake
-			type = Type.AID_2.ordinal();
-			first = true;
-		} else if (Arrays.equals(input, CLA_INS_P1_P2_COINBLESK_3_FIRST)) {
-			// we got the initial handshake
-			type = Type.AID_3.ordinal();
-			first = true;
+		decode(input, 0, input.length);
+		if (payloadLength > 0) {
+			payload = Arrays.copyOfRange(payload, payloadOffset, payloadOffset + payloadLength);
+			payloadOffset = 0;
+		}
+	}
+
+	/**
+	 * Decodes a message from a region of an array without copying the
+	 * payload. The message keeps a reference to the input array, so the
+	 * caller must not modify the region as long as this message is in use.
+	 * 
+	 * @param input
+	 *            the array containing the header as well as the payload
+	 * @param offset
+	 *            the index of the header byte
+	 * @param length
+	 *            the length of the frame including the header
+	 */
+	public NfcMessage(final byte[] input, final int offset, final int length) {
+		decode(input, offset, length);
+	}
+
+	/**
+	 * Flyweight decode: overwrites the state of this message with the frame
+	 * found in the given region. No payload is copied, see
+	 * {@link #NfcMessage(byte[], int, int)}.
+	 * 
+	 * @return this message
+	 */
+	public NfcMessage wrap(final byte[] input, final int offset, final int length) {
+		sequenceNumber = 0;
+		payload = EMTPY_BYTE_ARRAY;
+		payloadOffset = 0;
+		payloadLength = 0;
+		first = false;
+		extended = false;
+		windowed = false;
+		ackRequested = false;
+		isEmpty = false;
+		decode(input, offset, length);
+		return this;
+	}
+
+	/**
+	 * Flyweight decode of the remaining bytes of the buffer. If the buffer is
+	 * backed by an array, the payload is not copied. The position of the
+	 * buffer is moved to its limit.
+	 * 
+	 * @return this message
+	 */
+	public NfcMessage wrap(final ByteBuffer input) {
+		final int length = input.remaining();
+		if (input.hasArray()) {
+			wrap(input.array(), input.arrayOffset() + input.position(), length);
+			input.position(input.limit());
+		} else {
+			final byte[] copy = new byte[length];
+			input.get(copy);
+			wrap(copy, 0, length);
 		}
-		else {
-			// this is now a custom message
-			//bit 0-3 are the types
-			type = input[0] & 0x07;
-			isEmpty = (input[0] & IS_EMPTY) > 0;
-			//bit 4-8 is are part of the sequence number
-			sequenceNumber = (input[0] & 0xFF) >>> 4;
+		return this;
+	}
 
-			if (len > HEADER_LENGTH && ! isEmpty) {
-				final int payloadLen = len - HEADER_LENGTH;
-				payload = new byte[payloadLen];
-				System.arraycopy(input, HEADER_LENGTH, payload, 0, payloadLen);
+	private void decode(final byte[] input, final int offset, final int len) {
+		// a custom message with header 0x00 (FRAGMENT/0 with payload) may
+		// look like an APDU, so the full APDU is compared in the rare case the
+		// first byte matches
+		if (input[offset] == 0x00 && len >= READ_BINARY.length) {
+			if (len == READ_BINARY.length && regionEquals(input, offset, len, READ_BINARY)) {
+				/*
+				 * Based on the reported issue in
+				 * https://code.google.com/p/android/issues/detail?id=58773, there
+				 * is a failure in the Android NFC protocol. The IsoDep might
+				 * transceive a READ BINARY, if the communication with the tag (or
+				 * HCE) has been idle for a given time (125ms as mentioned on the
+				 * issue report). This idle time can be changed with the
+				 * EXTRA_READER_PRESENCE_CHECK_DELAY option.
+				 */
+				type = Type.READ_BINARY.ordinal();
+				return;
+			}
+			final int selected = AidRegistry.lookupSelect(input, offset, len);
+			if (selected != AidRegistry.NOT_FOUND) {
+				// we got the initial handshake
+				type = selected & AidRegistry.TYPE_MASK;
+				first = (selected & AidRegistry.FIRST) != 0;
+				extended = (selected & AidRegistry.EXTENDED) != 0;
+				// anything after Le are the capabilities of the initiator
+				final int apduLength = 5 + (input[offset + 4] & 0xFF) + 1;
+				if (len > apduLength) {
+					payload = input;
+					payloadOffset = offset + apduLength;
+					payloadLength = len - apduLength;
+				}
+				return;
+			}
+		}
+		
+		// this is now a custom message
+		//bit 0-3 are the types
+		final int header = input[offset];
+		type = header & 0x07;
+		if (type == Type.WINDOWED.ordinal() && len >= HEADER_LENGTH_WINDOWED) {
+			final int header2 = input[offset + 1];
+			windowed = true;
+			type = header2 & 0x07;
+			ackRequested = (header2 & ACK_REQUESTED) != 0;
+			sequenceNumber = (header2 & 0xF0) | ((header & 0xFF) >>> 4);
+			if (len > HEADER_LENGTH_WINDOWED) {
+				payload = input;
+				payloadOffset = offset + HEADER_LENGTH_WINDOWED;
+				payloadLength = len - HEADER_LENGTH_WINDOWED;
 			}
+			return;
 		}
+		isEmpty = (header & IS_EMPTY) > 0;
+		//bit 4-8 is are part of the sequence number
+		sequenceNumber = (header & 0xFF) >>> 4;
+
+		if (len > HEADER_LENGTH && ! isEmpty) {
+			payload = input;
+			payloadOffset = offset + HEADER_LENGTH;
+			payloadLength = len - HEADER_LENGTH;
+		}
+	}
+	
+	private static boolean regionEquals(final byte[] input, final int offset, final int len, final byte[] expected) {
+		if (len != expected.length) {
+			return false;
+		}
+		for (int i = 0; i < len; i++) {
+			if (input[offset + i] != expected[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static boolean regionEquals(final byte[] a, final int offsetA, final byte[] b, final int offsetB, final int len) {
+		for (int i = 0; i < len; i++) {
+			if (a[offsetA + i] != b[offsetB + i]) {
+				return false;
+			}
+		}
+		return true;
 	}
 
 	/**
@@ -214,7 +395,7 @@ public class NfcMessage {
 	 */
 	public Type type() {
 		// type is encoded in the last 3 bits
-		return Type.values()[type];
+		return TYPES[type];
 	}
 	
 	/**
@@ -224,16 +405,60 @@ public class NfcMessage {
 	 *            the payload to set
 	 */
 	public NfcMessage payload(final byte[] payload) {
+		return payload(payload, 0, payload.length);
+	}
+	
+	/**
+	 * Sets a region of an array as the payload of this message, without
+	 * copying it.
+	 * 
+	 * @param payload
+	 *            the array containing the payload
+	 * @param offset
+	 *            the start of the payload in the array
+	 * @param length
+	 *            the length of the payload
+	 */
+	public NfcMessage payload(final byte[] payload, final int offset, final int length) {
 		this.payload = payload;
+		this.payloadOffset = offset;
+		this.payloadLength = length;
 		return this;
 	}
 
 	/**
-	 * Returns the payload of this message.
+	 * Returns the payload of this message. If the payload is a view into a
+	 * larger array, it is copied once and the copy is kept.
 	 */
 	public byte[] payload() {
+		if (payloadOffset != 0 || payloadLength != payload.length) {
+			payload = Arrays.copyOfRange(payload, payloadOffset, payloadOffset + payloadLength);
+			payloadOffset = 0;
+		}
 		return payload;
 	}
+	
+	/**
+	 * Returns the array backing the payload, use together with
+	 * {@link #payloadOffset()} and {@link #payloadLength()}.
+	 */
+	public byte[] payloadArray() {
+		return payload;
+	}
+	
+	/**
+	 * Returns the start of the payload in {@link #payloadArray()}.
+	 */
+	public int payloadOffset() {
+		return payloadOffset;
+	}
+	
+	/**
+	 * Returns the length of the payload.
+	 */
+	public int payloadLength() {
+		return payloadLength;
+	}
 
 	/**
 	 * Sets the sequence number of this message and returns it.
@@ -246,7 +471,7 @@ public class NfcMessage {
 		if (previousMessage == null) {
 			sequenceNumber = 0;
 		} else {
-			sequenceNumber = (previousMessage.sequenceNumber + 1) % 16;
+			sequenceNumber = (previousMessage.sequenceNumber + 1) % modulus();
 		}
 		return this;
 	}
@@ -276,13 +501,20 @@ public class NfcMessage {
 	 *         false otherwise
 	 */
 	public boolean check(final NfcMessage previousMessage) {
-		final int check;
-		if (previousMessage == null) {
-			check = -1;
-		} else {
-			check = previousMessage.sequenceNumber;
-		}
-		return sequenceNumber == (check + 1) % 16;
+		return check(previousMessage == null ? -1 : previousMessage.sequenceNumber);
+	}
+	
+	/**
+	 * Same as {@link #check(NfcMessage)}, but only needs the sequence number
+	 * of the previous message, or -1 if there was none.
+	 */
+	public boolean check(final int previousSequenceNumber) {
+		return sequenceNumber == (previousSequenceNumber + 1) % modulus();
+	}
+	
+	// windowed frames have 8 bit sequence numbers, the others 4 bit
+	private int modulus() {
+		return windowed ? 256 : 16;
 	}
 	
 	/**
@@ -294,10 +526,18 @@ public class NfcMessage {
 	 *            the last {@link NfcMessage} sent or received
 	 */
 	public boolean repeatLast(final NfcMessage previousMessage) {
-		if (previousMessage == null) {
+		return repeatLast(previousMessage == null ? -1 : previousMessage.sequenceNumber);
+	}
+	
+	/**
+	 * Same as {@link #repeatLast(NfcMessage)}, but only needs the sequence
+	 * number of the previous message, or -1 if there was none.
+	 */
+	public boolean repeatLast(final int previousSequenceNumber) {
+		if (previousSequenceNumber < 0) {
 			return false;
 		}
-		return sequenceNumber == previousMessage.sequenceNumber;
+		return sequenceNumber == previousSequenceNumber;
 	}
 
 	/**
@@ -347,7 +587,7 @@ public class NfcMessage {
 	}
 	
 	public boolean isGetNextFragment() {
-		return type() == Type.FRAGMENT && payload.length == 0;
+		return type() == Type.FRAGMENT && payloadLength == 0;
 	}
 	
 	public boolean isPollingRequest() {
@@ -370,34 +610,201 @@ public class NfcMessage {
 	public boolean isFirst() {
 		return first;
 	}
+	
+	/**
+	 * Marks a SELECT AID message to use the extended handshake.
+	 */
+	public NfcMessage extended(boolean extended) {
+		this.extended = extended;
+		return this;
+	}
+	
+	public boolean isExtended() {
+		return extended;
+	}
+	
+	/**
+	 * Encodes this message with the windowed header (8 bit sequence number).
+	 */
+	public NfcMessage windowed(boolean windowed) {
+		this.windowed = windowed;
+		return this;
+	}
+	
+	public boolean isWindowed() {
+		return windowed;
+	}
+	
+	/**
+	 * Marks a windowed message, which the other side has to answer.
+	 */
+	public NfcMessage ackRequested(boolean ackRequested) {
+		this.ackRequested = ackRequested;
+		return this;
+	}
+	
+	public boolean isAckRequested() {
+		return ackRequested;
+	}
 
 	/**
 	 * Returns the bytes of this message (i.e., serializes it).
 	 */
 	public byte[] bytes() {
 		
+		switch(type()) {
+		case AID_1:
+		case AID_2:
+		case AID_3:
+			if (!extended) {
+				return selectApdu();
+			}
+			final byte[] apdu = new byte[encodedLength()];
+			encodeInto(apdu, 0);
+			return apdu;
+		case READ_BINARY:
+			return new byte[] { 0x00 };
+		default:
+			final byte[] output = new byte[encodedLength()];
+			encodeInto(output, 0);
+			return output;	
+		}
+	}
+	
+	/**
+	 * Returns the number of bytes {@link #bytes()} or
+	 * {@link #encodeInto(ByteBuffer)} produce for this message.
+	 */
+	public int encodedLength() {
+		switch(type()) {
+		case AID_1:
+		case AID_2:
+		case AID_3:
+			return selectApdu().length + (extended ? payloadLength : 0);
+		case READ_BINARY:
+			return 1;
+		default:
+			if (windowed) {
+				return HEADER_LENGTH_WINDOWED + payloadLength;
+			}
+			//never have a size of 1, this is an NXP NFC hack.
+			return HEADER_LENGTH + (payloadLength == 0 ? 1 : payloadLength);
+		}
+	}
+	
+	/**
+	 * Serializes this message into the buffer at its current position, without
+	 * allocating any intermediate array. The position is advanced by the
+	 * number of bytes written.
+	 * 
+	 * @param output
+	 *            the buffer, must have {@link #encodedLength()} bytes remaining
+	 * @return the number of bytes written
+	 */
+	public int encodeInto(final ByteBuffer output) {
+		switch(type()) {
+		case AID_1:
+		case AID_2:
+		case AID_3:
+			final byte[] apdu = selectApdu();
+			output.put(apdu);
+			if (!extended) {
+				return apdu.length;
+			}
+			output.put(payload, payloadOffset, payloadLength);
+			return apdu.length + payloadLength;
+		case READ_BINARY:
+			output.put((byte) 0x00);
+			return 1;
+		default:
+			if (windowed) {
+				output.put(header());
+				output.put(headerWindowed());
+				output.put(payload, payloadOffset, payloadLength);
+				return HEADER_LENGTH_WINDOWED + payloadLength;
+			}
+			output.put(header());
+			if (payloadLength == 0) {
+				output.put((byte) 0);
+				return HEADER_LENGTH + 1;
+			}
+			output.put(payload, payloadOffset, payloadLength);
+			return HEADER_LENGTH + payloadLength;
+		}
+	}
+	
+	/**
+	 * Serializes this message into the array, see
+	 * {@link #encodeInto(ByteBuffer)}.
+	 * 
+	 * @return the number of bytes written
+	 */
+	public int encodeInto(final byte[] output, final int offset) {
+		switch(type()) {
+		case AID_1:
+		case AID_2:
+		case AID_3:
+			final byte[] apdu = selectApdu();
+			System.arraycopy(apdu, 0, output, offset, apdu.length);
+			if (!extended) {
+				return apdu.length;
+			}
+			System.arraycopy(payload, payloadOffset, output, offset + apdu.length, payloadLength);
+			return apdu.length + payloadLength;
+		case READ_BINARY:
+			output[offset] = 0x00;
+			return 1;
+		default:
+			if (windowed) {
+				output[offset] = header();
+				output[offset + 1] = headerWindowed();
+				System.arraycopy(payload, payloadOffset, output, offset + HEADER_LENGTH_WINDOWED, payloadLength);
+				return HEADER_LENGTH_WINDOWED + payloadLength;
+			}
+			output[offset] = header();
+			if (payloadLength == 0) {
+				output[offset + HEADER_LENGTH] = 0;
+				return HEADER_LENGTH + 1;
+			}
+			System.arraycopy(payload, payloadOffset, output, offset + HEADER_LENGTH, payloadLength);
+			return HEADER_LENGTH + payloadLength;
+		}
+	}
+	
+	private byte[] selectApdu() {
 		switch(type()) {
 		case AID_1: //no limit
+			if (extended) {
+				return first ? CLA_INS_P1_P2_COINBLESK_EXT_1_FIRST : CLA_INS_P1_P2_COINBLESK_EXT_1;
+			}
 			return first ? CLA_INS_P1_P2_COINBLESK_1_FIRST : CLA_INS_P1_P2_COINBLESK_1;
 		case AID_2: //54 byte limit
+			if (extended) {
+				return first ? CLA_INS_P1_P2_COINBLESK_EXT_2_FIRST : CLA_INS_P1_P2_COINBLESK_EXT_2;
+			}
 			return first ? CLA_INS_P1_P2_COINBLESK_2_FIRST : CLA_INS_P1_P2_COINBLESK_2;
 		case AID_3: //245 byte limit
+			if (extended) {
+				return first ? CLA_INS_P1_P2_COINBLESK_EXT_3_FIRST : CLA_INS_P1_P2_COINBLESK_EXT_3;
+			}
 			return first ? CLA_INS_P1_P2_COINBLESK_3_FIRST : CLA_INS_P1_P2_COINBLESK_3;
-		case READ_BINARY:
-			return new byte[] { 0x00 };
 		default:
-			//never have a size of 1, this is an NXP NFC hack.
-			final boolean isEmpty = payload.length == 0;
-			final int len = isEmpty ? 1 : payload.length;
-			final byte[] output = new byte[HEADER_LENGTH + len];
-			//add a flag to indicate that even though we have 1 byte payload its actually empty
-			output[0] = (byte) ((type & 0x7) | (isEmpty ? IS_EMPTY : 0) | ((sequenceNumber << 4) & 0xF0));
-			if(!isEmpty) {
-				System.arraycopy(payload, 0, output, HEADER_LENGTH, len);
-			}
-			return output;	
+			throw new IllegalStateException("not a SELECT AID message: " + type());
 		}
 	}
+	
+	private byte header() {
+		if (windowed) {
+			return (byte) (Type.WINDOWED.ordinal() | ((sequenceNumber << 4) & 0xF0));
+		}
+		//add a flag to indicate that even though we have 1 byte payload its actually empty
+		final boolean isEmpty = payloadLength == 0;
+		return (byte) ((type & 0x7) | (isEmpty ? IS_EMPTY : 0) | ((sequenceNumber << 4) & 0xF0));
+	}
+	
+	private byte headerWindowed() {
+		return (byte) ((type & 0x7) | (ackRequested ? ACK_REQUESTED : 0) | (sequenceNumber & 0xF0));
+	}
 
 	@Override
 	public boolean equals(final Object o) {
@@ -409,8 +816,27 @@ public class NfcMessage {
 		}
 		final NfcMessage m = (NfcMessage) o;
 		return m.type == type 
-				&& (m.sequenceNumber % 16) == (sequenceNumber % 16) 
-				&& Arrays.equals(m.payload, payload);
+				&& m.windowed == windowed
+				&& m.wireSequenceNumber() == wireSequenceNumber()
+				&& (!windowed || m.ackRequested == ackRequested)
+				&& m.payloadLength == payloadLength
+				&& regionEquals(m.payload, m.payloadOffset, payload, payloadOffset, payloadLength);
+	}
+	
+	@Override
+	public int hashCode() {
+		int hash = type;
+		hash = 31 * hash + wireSequenceNumber();
+		hash = 31 * hash + (windowed ? (ackRequested ? 2 : 1) : 0);
+		for (int i = payloadOffset; i < payloadOffset + payloadLength; i++) {
+			hash = 31 * hash + payload[i];
+		}
+		return hash;
+	}
+	
+	// the sequence number as sent, 4 bits, or 8 bits in the windowed mode
+	private int wireSequenceNumber() {
+		return windowed ? sequenceNumber & 0xFF : sequenceNumber & 0xF;
 	}
 
 	@Override
@@ -418,7 +844,10 @@ public class NfcMessage {
 		final StringBuilder sb = new StringBuilder("NfcMsg: ");
 		sb.append("type: ").append(type().toString());
 		sb.append("/").append(sequenceNumber);
-		sb.append(",len:").append(payload.length);
+		if (windowed) {
+			sb.append(ackRequested ? ",w+ack" : ",w");
+		}
+		sb.append(",len:").append(payloadLength);
 		return sb.toString();
 	}
 
@@ -431,7 +860,7 @@ public class NfcMessage {
 	}
 
 	public static Type type(byte[] input) {
-		return Type.values()[input[0] & 0x07];
+		return TYPES[input[0] & 0x07];
 	}
 
 	
@@ -1,20 +1,26 @@
 package ch.uzh.csg.comm;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import ch.uzh.csg.comm.NfcMessage.Type;
-
 
 /**
  * This is responsible for byte array fragmentation into {@link NfcMessage}s in
  * order to not exceed the maximum allowed message length by the underlying NFC
  * technology.
  * 
- * This class also handles the reassembly of incoming {@link NfcMessage}s.
+ * This class also handles the reassembly of incoming {@link NfcMessage}s. The
+ * fragments are copied into a buffer that grows by doubling, so reassembly is
+ * linear in the message size. If both sides negotiated
+ * {@link NfcMessage#CAP_LENGTH_HINT}, the first fragment of a fragmented
+ * message starts with the total length (4 bytes), and the buffer is allocated
+ * only once.
  * 
  * @author Jeton Memeti (initial version)
  * @author Thomas Bocek (simplification, refactoring)
@@ -24,8 +30,18 @@ public class NfcMessageSplitter {
 	
 	private static final Logger LOGGER = LoggerFactory.getLogger(NfcMessageSplitter.class);
 	
+	public static final int LENGTH_HINT_SIZE = 4;
+	// the length hint comes from the other side, don't trust it blindly
+	private static final int MAX_PREALLOCATION = 64 * 1024;
+	private static final int INITIAL_SIZE = 256;
+	
+	private volatile int maxTransceiveLength = Integer.MAX_VALUE;
 	private volatile int payloadLength = Integer.MAX_VALUE;
-	private volatile byte[] data = null;
+	private volatile boolean lengthHint = false;
+	private volatile boolean windowed = false;
+	
+	private byte[] buffer = null;
+	private int size = 0;
 	
 	/**
 	 * Returns a new NfcMessageSplitter to handle the fragmentation and
@@ -36,10 +52,80 @@ public class NfcMessageSplitter {
 	 *            underlying NFC technology
 	 */
 	public NfcMessageSplitter maxTransceiveLength(int maxTransceiveLength) {
-		payloadLength = maxTransceiveLength - NfcMessage.HEADER_LENGTH;
+		this.maxTransceiveLength = maxTransceiveLength;
+		payloadLength = maxTransceiveLength - (windowed ? NfcMessage.HEADER_LENGTH_WINDOWED : NfcMessage.HEADER_LENGTH);
+		return this;
+	}
+	
+	/**
+	 * Returns the largest frame that is sent, including the header.
+	 */
+	public int maxTransceiveLength() {
+		return maxTransceiveLength;
+	}
+	
+	/**
+	 * Reserves room for the header of the windowed mode in every fragment,
+	 * see {@link NfcMessage#CAP_WINDOW}.
+	 */
+	public NfcMessageSplitter windowed(boolean windowed) {
+		this.windowed = windowed;
+		return maxTransceiveLength(maxTransceiveLength);
+	}
+	
+	/**
+	 * Enables or disables the total length in the first fragment. Both sides
+	 * have to agree on this, see {@link NfcMessage#CAP_LENGTH_HINT}.
+	 */
+	public NfcMessageSplitter lengthHint(boolean lengthHint) {
+		this.lengthHint = lengthHint;
 		return this;
 	}
 	
+	public boolean isLengthHint() {
+		return lengthHint;
+	}
+	
+	/**
+	 * Returns the largest payload that is sent in a single frame.
+	 */
+	public int payloadLength() {
+		return payloadLength;
+	}
+	
+	/**
+	 * Returns a source, which creates the fragments of the payload one by one
+	 * when they are needed. No fragment exceeds the maxTransceiveLength.
+	 * 
+	 * @param payload
+	 *            the whole message or byte array to be send by NFC
+	 */
+	public FragmentSource fragments(final byte[] payload) {
+		if (Config.DEBUG) {
+			LOGGER.debug("Total length: {}, payloadlen: {}", payload.length, payloadLength);
+		}
+		return new ArrayFragmentSource(payload, payloadLength, lengthHint);
+	}
+	
+	/**
+	 * Same as {@link #fragments(byte[])}, but starts after the bytes the other
+	 * side already received, see {@link NfcMessage#CAP_RESUME}.
+	 */
+	public FragmentSource fragments(final byte[] payload, final int offset) {
+		if (Config.DEBUG) {
+			LOGGER.debug("Total length: {}, resume at: {}, payloadlen: {}", payload.length, offset, payloadLength);
+		}
+		return new ArrayFragmentSource(payload, payloadLength, lengthHint, offset);
+	}
+	
+	/**
+	 * Same as {@link #fragments(byte[])}, but the message is read from the
+	 * stream while the fragments are created.
+	 */
+	public FragmentSource fragments(final InputStream payload) {
+		return new StreamFragmentSource(payload, payloadLength, lengthHint);
+	}
+	
 	/**
 	 * Fragments the payload into a number of NfcMessages so that no NfcMessage
 	 * exceeds the maxTransceiveLength. If no fragmentation is needed (because
@@ -55,41 +141,11 @@ public class NfcMessageSplitter {
 	 * @return an ArrayList of NfcMessages containing the fragmented payload
 	 */
 	public ArrayList<NfcMessage> getFragments(final byte[] payload) {
-		final int len = payload.length;
-		/*
-		 * Returns the number of fragments the whole message needs to be split
-		 * into (taking into account protocol headers etc.).
-		 */
-		final int fragments = (len + payloadLength - 1) / payloadLength;
-		LOGGER.debug("Total length: {}, payloadlen: {}", len, payloadLength);
-		final ArrayList<NfcMessage> list = new ArrayList<NfcMessage>(fragments);
-		
-		if(fragments == 0) {
-			return list;
-		}
-		
-		if(fragments == 1) {
-			final NfcMessage nfcMessage = new NfcMessage(Type.SINGLE).payload(payload);
-			list.add(nfcMessage);
-			return list;
+		final ArrayFragmentSource source = new ArrayFragmentSource(payload, payloadLength, lengthHint);
+		final ArrayList<NfcMessage> list = new ArrayList<NfcMessage>(source.remaining());
+		while (source.hasNext()) {
+			list.add(source.next());
 		}
-
-		for (int i = 0; i < fragments; i++) {
-			final int start = i * payloadLength;
-			final boolean last = start + payloadLength >= payload.length;
-			final int end = last ? payload.length : (start + payloadLength);
-
-			final byte[] temp = Arrays.copyOfRange(payload, start, end);
-			final Type type;
-			if(last) {
-				type = Type.FRAGMENT_LAST;
-			} else {
-				type = Type.FRAGMENT;
-			}
-			final NfcMessage nfcMessage = new NfcMessage(type).payload(temp);
-			list.add(nfcMessage);
-		}
-
 		return list;
 	}
 	
@@ -101,28 +157,81 @@ public class NfcMessageSplitter {
 	 *            the incoming NFC message
 	 */
 	public void reassemble(final NfcMessage nfcMessage) {
-		if (data == null || data.length == 0) {
-			data = nfcMessage.payload();
-		} else {
-			final byte[] temp = new byte[data.length + nfcMessage.payload().length];
-			System.arraycopy(data, 0, temp, 0, data.length);
-			System.arraycopy(nfcMessage.payload(), 0, temp, data.length, nfcMessage.payload().length);
-			data = temp;
+		final byte[] input = nfcMessage.payloadArray();
+		int offset = nfcMessage.payloadOffset();
+		int len = nfcMessage.payloadLength();
+		if (buffer == null) {
+			int expected = INITIAL_SIZE;
+			if (lengthHint) {
+				if (len < LENGTH_HINT_SIZE) {
+					throw new IllegalArgumentException("first fragment without length hint: " + nfcMessage);
+				}
+				final int total = Utils.byteArrayToInt(input, offset);
+				offset += LENGTH_HINT_SIZE;
+				len -= LENGTH_HINT_SIZE;
+				// 0 means the sender did not know the total length
+				if (total > 0) {
+					expected = Math.min(total, MAX_PREALLOCATION);
+				}
+			}
+			buffer = new byte[Math.max(expected, len)];
+			size = 0;
+		} else if (size + len > buffer.length) {
+			buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + len));
+		}
+		System.arraycopy(input, offset, buffer, size, len);
+		size += len;
+	}
+	
+	/**
+	 * Streaming variant of {@link #reassemble(NfcMessage)}, the payload is
+	 * written to the sink instead of the internal buffer.
+	 * 
+	 * @param first
+	 *            true for the first fragment of a message, its length hint is
+	 *            skipped
+	 */
+	public void reassemble(final NfcMessage nfcMessage, final OutputStream sink, final boolean first) throws IOException {
+		int offset = nfcMessage.payloadOffset();
+		int len = nfcMessage.payloadLength();
+		if (first && lengthHint) {
+			if (len < LENGTH_HINT_SIZE) {
+				throw new IOException("first fragment without length hint: " + nfcMessage);
+			}
+			offset += LENGTH_HINT_SIZE;
+			len -= LENGTH_HINT_SIZE;
 		}
+		sink.write(nfcMessage.payloadArray(), offset, len);
+	}
+	
+	/**
+	 * Continues the reassembly of a message, of which data was received
+	 * earlier, see {@link #data()}.
+	 */
+	public void resume(final byte[] data) {
+		this.buffer = data;
+		this.size = data.length;
 	}
 	
 	/**
 	 * Clears the internal buffer.
 	 */
 	public void clear() {
-		this.data = null;
+		this.buffer = null;
+		this.size = 0;
 	}
 	
 	/**
 	 * Returns the buffer, which is the sum of the concatenated NFC messages.
 	 */
 	public byte[] data() {
-		return data;
+		if (buffer == null) {
+			return null;
+		}
+		if (buffer.length != size) {
+			buffer = Arrays.copyOf(buffer, size);
+		}
+		return buffer;
 	}
 
 	public boolean needsSplit(byte[] payload) {
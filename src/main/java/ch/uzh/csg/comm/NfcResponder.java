@@ -1,9 +1,20 @@
 package ch.uzh.csg.comm;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.Arrays;
 import java.util.Deque;
-import java.util.LinkedList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -16,33 +27,657 @@ import ch.uzh.csg.nfclib.NfcInitiatorSetup;
 /**
  * This class represents the counterpart of the {@link NfcInitiatorSetup}. It listens
  * for incoming NFC messages and provides the appropriate response.
- * 
+ *
  * Message fragmentation and reassembly is handled internally.
- * 
+ *
+ * If both sides negotiated {@link NfcMessage#CAP_RESUME}, the responder
+ * remembers for every initiator how many bytes of the messages in each
+ * direction got through. An initiator that taps again continues from there,
+ * also if other initiators were served in between, or if the frame length
+ * changed, e.g., on a handover from BLE to NFC.
+ *
+ * Several initiators can be served at the same time, e.g., BLE centrals
+ * connected to the GATT server. The frames of every peer are passed with a
+ * key for the link, see {@link #processIncomingData(Object, NfcMessage)},
+ * and every peer has its own session. The frames of one peer are processed
+ * one after the other, the frames of different peers concurrently, so the
+ * {@link NfcResponseHandler} has to be thread-safe.
+ *
  * @author Jeton Memeti (initial version)
  * @author Thomas Bocek (simplification, refactoring)
- * 
+ *
  */
 public class NfcResponder {
 	private static final Logger LOGGER = LoggerFactory.getLogger(NfcResponder.class);
+	// the least recently seen initiators are forgotten first
+	private static final int MAX_SESSIONS = 16;
+	// the encoded answers kept for retransmits, one per 4 bit sequence number
+	private static final int SENT_FRAMES = 16;
 
 	private final NfcResponseHandler responseHandler;
 	private final int maxTransceiveLength;
+	// the largest window accepted in the handshake, see NfcMessage#CAP_WINDOW
+	private volatile int windowSize = 16;
+	// see NfcMessage#CAP_COMPRESSION, the codec is shared by all sessions
+	private final Compression compression = new Compression();
+	private volatile boolean compressionEnabled = true;
+	// see NfcMessage#CAP_RESUME
+	private volatile boolean resumeEnabled = true;
+	// budgets of a message and of a transaction, 0 for no limit
+	private volatile long messageTimeoutNanos = 0;
+	private volatile long transactionTimeoutNanos = 0;
 
-	private final NfcMessageSplitter messageSplitter = new NfcMessageSplitter();
-	private final Deque<NfcMessage> messageQueue = new LinkedList<NfcMessage>();
+	// guards the sessions, the peers and the deferred responses
 	private final Object lock = new Object();
+	// the sessions of resumable initiators, by their session UUID
+	private final Map<UUID, Session> sessions = new LinkedHashMap<UUID, Session>(MAX_SESSIONS, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<UUID, Session> eldest) {
+			return size() > MAX_SESSIONS;
+		}
+	};
+	// the session of every connected peer, e.g., by the address of the BLE device
+	private final Map<Object, Session> peers = new HashMap<Object, Session>();
+	// the frame length of the link of every peer, see setMtu(Object, int)
+	private final Map<Object, Integer> mtus = new HashMap<Object, Integer>();
+	// the session of the NFC link, which has no key
+	private Session link = new Session(null);
+
+	// reused for every frame of the NFC link, see processIncomingData(byte[], int, int, ByteBuffer)
+	private final NfcMessage incoming = new NfcMessage(Type.FRAGMENT);
+
+	/**
+	 * The state of the transfers with one initiator. The messages are
+	 * fragmented and reassembled per session, and the capabilities are
+	 * negotiated per session. Only used while holding the monitor of the
+	 * session.
+	 *
+	 * If resumable, see {@link NfcMessage#CAP_RESUME}, the bytes are counted
+	 * over all messages of the session, in each direction.
+	 */
+	private final class Session {
+		// the session UUID of the initiator, null if not resumable
+		private final UUID id;
+		// bytes of the messages received from the initiator
+		private int received = 0;
+		// the response until the initiator received all of it, and the bytes sent before
+		private byte[] sending;
+		private int sentBase = 0;
+		// a deferred response, sent when the initiator polls, guarded by lock
+		private byte[] late;
+
+		private boolean compress = false;
+		private boolean batch = false;
+		private boolean resumable = false;
+
+		private final NfcMessageSplitter messageSplitter = new NfcMessageSplitter();
+		// only fragments, control frames are returned as the answer right away
+		private final Deque<NfcMessage> messageQueue = new ArrayDeque<NfcMessage>();
+		// fragments of the outgoing message, created one by one when requested
+		private FragmentSource outgoing;
+		// sink of the incoming message, if the handler is a StreamingResponseHandler
+		private OutputStream receiving;
+		// true between the first and the last fragment of an incoming message
+		private boolean reassembling = false;
+		private final NfcMessage fragmentAck = new NfcMessage(Type.FRAGMENT);
+		// the encoded answers, by the sequence number of the frame they answer
+		private final FrameCache sentFrames = new FrameCache(SENT_FRAMES);
+
+		private NfcMessage lastMessageSent;
+		// only the sequence number is kept, the message itself may be a flyweight
+		private int lastSequenceReceived = -1;
+		private final Deadline deadline = new Deadline();
+
+		private Session(final UUID id) {
+			this.id = id;
+			messageSplitter.maxTransceiveLength(maxTransceiveLength);
+		}
+
+		/**
+		 * Processes the frame and keeps the encoded answer in sentFrames. A
+		 * frame sent again is answered from there, if the frame still fits
+		 * the link, e.g., not after a handover to a link with smaller frames.
+		 *
+		 * @return the sequence number the answer is cached under, -1 if the
+		 *         frame is not answered
+		 */
+		private int answer(final NfcMessage inputMessage) {
+			final int sequenceNumber = inputMessage.sequenceNumber();
+			if (lastMessageSent != null && inputMessage.repeatLast(lastSequenceReceived)
+					&& (!inputMessage.isWindowed() || inputMessage.isAckRequested())) {
+				final int length = sentFrames.length(sequenceNumber);
+				if (length >= 0 && length <= messageSplitter.maxTransceiveLength()) {
+					if (Config.DEBUG) {
+						LOGGER.debug( "repeat cached frame {}", sequenceNumber);
+					}
+					return sequenceNumber;
+				}
+			}
+			final NfcMessage outputMessage = process(inputMessage);
+			if (outputMessage == null) {
+				sentFrames.remove(sequenceNumber);
+				return -1;
+			}
+			sentFrames.put(sequenceNumber, outputMessage);
+			return sequenceNumber;
+		}
+
+		private NfcMessage process(final NfcMessage inputMessage) {
+			if (Config.DEBUG) {
+				LOGGER.debug( "process regular message {}", inputMessage);
+			}
+
+			final boolean check = inputMessage.check(lastSequenceReceived);
+			final boolean repeat = inputMessage.repeatLast(lastSequenceReceived);
+
+			NfcMessage outputMessage = null;
+			if (inputMessage.isWindowed() && !check && !(repeat && inputMessage.isAckRequested())) {
+				// a fragment got lost or is sent again, only accept them in order
+				if (Config.DEBUG) {
+					LOGGER.debug( "drop windowed message {} / {}", inputMessage, lastSequenceReceived);
+				}
+				if (!inputMessage.isAckRequested()) {
+					return null;
+				}
+				// tell the other side up to where we got everything
+				return new NfcMessage(Type.FRAGMENT).windowed(true).sequenceNumber(lastSequenceReceived & 0xFF);
+			}
+			if (!check && !repeat) {
+				LOGGER.error( "sequence number mismatch {} / {}", inputMessage.sequenceNumber(),
+							lastSequenceReceived);
+
+
+				responseHandler.handleFailed(NfcInitiatorSetup.INVALID_SEQUENCE);
+				outputMessage = new NfcMessage(Type.ERROR);
+				NfcMessage msg = prepareWrite(outputMessage, inputMessage);
+				reset();
+				return msg;
+			}
+			if (!check && repeat && lastMessageSent!=null) {
+				if (Config.DEBUG) {
+					LOGGER.debug( "repeat last message {}", lastMessageSent);
+				}
+				lastSequenceReceived = inputMessage.sequenceNumber();
+				//check if we need to fragment - happens on handover from BT to NFC
+				if(messageSplitter.needsSplit(lastMessageSent.payload())) {
+					try {
+						offerFragments(lastMessageSent.payload());
+						return nextOutgoing();
+					} catch (IOException e) {
+						LOGGER.error( "cannot read outgoing message", e);
+						responseHandler.handleFailed(e.toString());
+						NfcMessage msg = prepareWrite(new NfcMessage(Type.ERROR), inputMessage);
+						reset();
+						return msg;
+					}
+				}
+				return lastMessageSent;
+
+			}
+			// the polls that keep an idle link don't count
+			final boolean busy = deadline.isMessage() || inputMessage.payloadLength() > 0;
+			final DeadlineExceededException exceeded = inputMessage.isError() || !busy ? null 
+					: deadline.exceeded(phase(), messageTimeoutNanos, transactionTimeoutNanos);
+			if (exceeded != null) {
+				// tell the initiator, it aborts as well
+				LOGGER.error( "abort transaction: {}", exceeded.getMessage());
+				responseHandler.handleFailed(exceeded.getMessage());
+				NfcMessage msg = prepareWrite(new NfcMessage(Type.ERROR).payload(exceeded.payload()), inputMessage);
+				reset();
+				return msg;
+			}
+			try {
+				outputMessage = handleRequest(inputMessage);
+				if (isLast(outputMessage)) {
+					deadline.endMessage();
+				}
+				lastSequenceReceived = inputMessage.sequenceNumber();
+				NfcMessage msg = prepareWrite(outputMessage, inputMessage);
+				if(msg.isError() || msg.isErrorReply()) {
+					reset();
+					return msg;
+				}
+				if (inputMessage.isWindowed() && !inputMessage.isAckRequested()) {
+					// acknowledged later, cumulative
+					return null;
+				}
+				return msg;
+			} catch (Exception e){
+			    e.printStackTrace();
+				responseHandler.handleFailed(e.toString());
+				outputMessage = new NfcMessage(Type.ERROR);
+				NfcMessage msg = prepareWrite(outputMessage, inputMessage);
+				reset();
+				return msg;
+			}
+		}
+
+		/**
+		 * Answers the SELECT AID, see {@link NfcResponder#handshake(Object, NfcMessage, int)}.
+		 *
+		 * @param known
+		 *            true if the initiator resumes this session
+		 * @param receivedOther
+		 *            the bytes of the responses the initiator received in
+		 *            this session
+		 */
+		private NfcMessage handshake(final NfcMessage inputMessage, final int capabilities,
+				final boolean known, final int receivedOther, final int maxLen) {
+			deadline.startTransaction();
+			messageSplitter.maxTransceiveLength(maxLen);
+			final byte[] array = Utils.shortToByteArray((short)maxLen);
+			if (!inputMessage.isExtended()) {
+				messageSplitter.lengthHint(false).windowed(false);
+				compress = false;
+				batch = false;
+				resumable = false;
+				return new NfcMessage(Type.SINGLE).payload(Utils.merge(pendingFlag(), array, responseHandler.getUUID()));
+			}
+			if (Config.DEBUG) {
+				LOGGER.debug( "extended handshake, capabilities {}", capabilities);
+			}
+			messageSplitter.lengthHint((capabilities & NfcMessage.CAP_LENGTH_HINT) != 0);
+			compress = (capabilities & NfcMessage.CAP_COMPRESSION) != 0;
+			batch = (capabilities & NfcMessage.CAP_BATCH) != 0;
+			int window = 0;
+			if ((capabilities & NfcMessage.CAP_WINDOW) != 0 && inputMessage.payloadLength() > 1) {
+				window = Math.min(windowSize, inputMessage.payloadArray()[inputMessage.payloadOffset() + 1] & 0xFF);
+			}
+			// the initiator only asks for a window on links where it is used
+			messageSplitter.windowed(window > 1);
+			// after the splitter is set up, the response may be fragmented again
+			resumable = (capabilities & NfcMessage.CAP_RESUME) != 0;
+			if (resumable) {
+				// both sides count the sequence numbers from the handshake on
+				lastSequenceReceived = -1;
+				lastMessageSent = null;
+				sentFrames.clear();
+				if (known) {
+					resume(receivedOther);
+				}
+			}
+			final byte[] merged = Utils.merge(pendingFlag(), array, responseHandler.getUUID());
+			final byte[] extended = Arrays.copyOf(merged,
+					merged.length + 2 + (resumable ? NfcMessage.RESUME_RESPONSE_LENGTH : 0));
+			extended[merged.length] = (byte) (window > 1 ? capabilities : capabilities & ~NfcMessage.CAP_WINDOW);
+			extended[merged.length + 1] = (byte) window;
+			if (resumable) {
+				extended[merged.length + 2] = (byte) (known ? 1 : 0);
+				Utils.intToByteArray(received, extended, merged.length + 3);
+			}
+			return new NfcMessage(Type.SINGLE).payload(extended);
+		}
+
+		/**
+		 * Continues the response from the bytes the initiator received, it is
+		 * fragmented again for the current frame length.
+		 */
+		private void resume(final int receivedOther) {
+			messageQueue.clear();
+			outgoing = null;
+			if (sending != null) {
+				final int offset = receivedOther - sentBase;
+				if (offset >= sending.length) {
+					sentBase += sending.length;
+					sending = null;
+				} else {
+					if (Config.DEBUG) {
+						LOGGER.debug( "resume response at {} of {}", offset, sending.length);
+					}
+					outgoing = messageSplitter.fragments(sending, offset);
+				}
+			}
+		}
+
+		/**
+		 * Returns what the session is doing, for the deadlines.
+		 */
+		private DeadlineExceededException.Phase phase() {
+			if (reassembling) {
+				return DeadlineExceededException.Phase.RECEIVE;
+			}
+			if (pendingFlag() != 0) {
+				return DeadlineExceededException.Phase.SEND;
+			}
+			return deadline.isMessage() 
+					? DeadlineExceededException.Phase.POLLING : DeadlineExceededException.Phase.RECEIVE;
+		}
+
+		private byte pendingFlag() {
+			final boolean pending;
+			synchronized (lock) {
+				pending = late != null;
+			}
+			return (byte) (pending || hasPending() ? 1 : 0);
+		}
+
+		private void reset() {
+			LOGGER.debug( "reset state");
+			lastMessageSent = null;
+			lastSequenceReceived = -1;
+			sentFrames.clear();
+			messageSplitter.clear();
+			messageQueue.clear();
+			outgoing = null;
+			receiving = null;
+			reassembling = false;
+			// the initiator comes back with a new session UUID after a reset
+			resumable = false;
+			sending = null;
+			synchronized (lock) {
+				late = null;
+				if (id != null) {
+					sessions.remove(id);
+				}
+			}
+		}
+
+		/**
+		 * Returns true if the frame continues the transfer of this session,
+		 * it follows the last frame received, or repeats it.
+		 */
+		private boolean continues(final NfcMessage inputMessage) {
+			return lastMessageSent != null
+					&& (inputMessage.check(lastSequenceReceived) || inputMessage.repeatLast(lastSequenceReceived));
+		}
 
-	// state
-	private NfcMessage lastMessageSent;
-	private NfcMessage lastMessageReceived;
-	private NfcMessage lateMessage = null;
+		private NfcMessage prepareWrite(NfcMessage outputMessage, NfcMessage inputMessage) {
+			if (inputMessage.isWindowed()) {
+				// not every windowed message is answered, use the sequence number of the request
+				lastMessageSent = outputMessage.windowed(true).ackRequested(false)
+						.sequenceNumber(inputMessage.sequenceNumber());
+			} else {
+				lastMessageSent = outputMessage.windowed(false).sequenceNumber(lastMessageSent);
+			}
+
+			if (Config.DEBUG) {
+				LOGGER.debug( "sending: {}", outputMessage);
+			}
+
+			return outputMessage;
+		}
+
+		private NfcMessage checkForData() throws IOException {
+			final byte[] envelope;
+			synchronized (lock) {
+				envelope = late;
+				late = null;
+			}
+			return fragmentEnvelope(envelope);
+		}
+
+		private NfcMessage handleRequest(final NfcMessage incoming) throws Exception {
+			if (Config.DEBUG) {
+				LOGGER.debug( "received: {}", incoming);
+			}
+
+			if (incoming.isError()) {
+				if (Config.DEBUG) {
+					LOGGER.debug( "nfc error reported - returning error response");
+				}
+				final String reason = DeadlineExceededException.reason(incoming);
+				responseHandler.handleFailed(reason != null ? reason : NfcInitiatorSetup.UNEXPECTED_ERROR);
+				return new NfcMessage(Type.ERROR_REPLY);
+			}
+
+			switch (incoming.type()) {
+
+			case SINGLE:
+				deadline.startMessage();
+				if (resumable) {
+					received += incoming.payloadLength();
+				}
+				final OutputStream sink = messageStream();
+				if (sink != null) {
+					sink.write(incoming.payloadArray(), incoming.payloadOffset(), incoming.payloadLength());
+					sink.close();
+					return streamResponse();
+				}
+				NfcMessage msg = response(incoming.payload());
+				return msg;
+			case FRAGMENT:
+			case FRAGMENT_LAST:
+				if(incoming.payloadLength() > 0) {
+					final boolean first = !reassembling;
+					if (first) {
+						deadline.startMessage();
+						reassembling = true;
+						receiving = messageStream();
+					}
+					if (resumable) {
+						received += incoming.payloadLength()
+								- (first && messageSplitter.isLengthHint() ? NfcMessageSplitter.LENGTH_HINT_SIZE : 0);
+					}
+					if (receiving != null) {
+						messageSplitter.reassemble(incoming, receiving, first);
+					} else {
+						messageSplitter.reassemble(incoming);
+					}
+					switch (incoming.type()) {
+						case FRAGMENT:
+							return fragmentAck;
+						case FRAGMENT_LAST:
+							reassembling = false;
+							if (receiving != null) {
+								receiving.close();
+								receiving = null;
+								return streamResponse();
+							}
+							final byte[] receivedData = messageSplitter.data();
+							messageSplitter.clear();
+							return response(receivedData);
+						default:
+							responseHandler.handleFailed("unexpected type");
+							return new NfcMessage(Type.ERROR);
+					}
+				} else if (incoming.type() == Type.FRAGMENT){
+					//continue with our message queue
+					final NfcMessage next = nextOutgoing();
+					if (next == null) {
+						LOGGER.error( "nothing to return (get next fragment)");
+						reset();
+						responseHandler.handleFailed(NfcInitiatorSetup.UNEXPECTED_ERROR);
+						return new NfcMessage(Type.ERROR);
+					}
+					return next;
+				} else {
+					LOGGER.error( "unknown fragment: {} for incoming msg: {}", incoming.type(), incoming);
+					reset();
+					responseHandler.handleFailed("unknown fragment: " + incoming.type()+ " for incoming msg: " + incoming);
+					return new NfcMessage(Type.ERROR);
+				}
+			case POLLING_RESPONSE:
+				msg = checkForData();
+				if (msg != null) {
+					return msg;
+				} else if (hasPending()) {
+					// the initiator resumed, continue with the response
+					return nextOutgoing();
+				} else {
+					return new NfcMessage(Type.POLLING_REQUEST);
+				}
+			case POLLING_REQUEST:
+				return new NfcMessage(Type.POLLING_RESPONSE);
+			case ERROR:
+				reset();
+				return new NfcMessage(Type.ERROR);
+			default:
+				LOGGER.error( "unknown type: {} for incoming msg: {}", incoming.type(), incoming);
+				reset();
+				responseHandler.handleFailed("unknown type: " + incoming.type()+ " for incoming msg: " + incoming);
+				return new NfcMessage(Type.ERROR);
+			}
+		}
+
+		private ResponseLater lateResponder() {
+			final boolean batched = batch;
+			return new ResponseLater(){
+				@Override
+				public void response(byte[] data) {
+					lateResponse(data == null || !batched ? data : Batch.single(data));
+				}};
+		}
+
+		/**
+		 * Keeps the response until the initiator of the session polls, it is
+		 * fragmented then. Called from any thread.
+		 */
+		private void lateResponse(final byte[] envelope) {
+			synchronized (lock) {
+				late = envelope;
+			}
+		}
+
+		/**
+		 * Returns the sink for an incoming message, or null if the message is
+		 * reassembled in memory.
+		 */
+		private OutputStream messageStream() throws Exception {
+			if (!(responseHandler instanceof StreamingResponseHandler)) {
+				return null;
+			}
+			final OutputStream sink = ((StreamingResponseHandler) responseHandler).messageStream();
+			if (sink == null || !compress) {
+				return sink;
+			}
+			return Compression.decodeStream(sink);
+		}
+
+		private NfcMessage streamResponse() throws Exception {
+			final InputStream response = ((StreamingResponseHandler) responseHandler)
+					.handleMessageStreamed(lateResponder());
+			if (response == null) {
+				return new NfcMessage(NfcMessage.Type.POLLING_REQUEST);
+			}
+			offerFragments(messageSplitter.fragments(compress ? Compression.encodeStream(response) : response));
+			final NfcMessage next = nextOutgoing();
+			if (next == null) {
+				LOGGER.error( "nothing to return - response stream is empty");
+				responseHandler.handleFailed("nothing to return - response stream is empty");
+				return new NfcMessage(Type.ERROR);
+			}
+			return next;
+		}
+
+		private NfcMessage response(final byte[] payload) throws Exception {
+			byte[] message = compress ? compression.decode(payload) : payload;
+			if (batch) {
+				final List<byte[]> messages = Batch.unpack(message);
+				if (Batch.isBatch(message)) {
+					return batchResponse(messages);
+				}
+				message = messages.get(0);
+			}
+			final byte[] response = responseHandler.handleMessageReceived(message, lateResponder());
+
+			// the user can decide to use sendLater. In that case, we'll start
+			// to poll. This is triggered by returning null.
+			if (response == null) {
+				return new NfcMessage(NfcMessage.Type.POLLING_REQUEST);
+			} else {
+				return fragmentData(response);
+			}
+		}
+
+		/**
+		 * Answers every message of a batch. The responses are sent together, when
+		 * the last one is there. Until then, the initiator polls, as for a single
+		 * deferred response.
+		 */
+		private NfcMessage batchResponse(final List<byte[]> messages) throws Exception {
+			final byte[][] responses = new byte[messages.size()][];
+			final AtomicInteger missing = new AtomicInteger(responses.length);
+			boolean complete = false;
+			for (int i = 0; i < responses.length; i++) {
+				final int index = i;
+				final byte[] response = responseHandler.handleMessageReceived(messages.get(i), new ResponseLater() {
+					@Override
+					public void response(byte[] data) {
+						if (add(responses, index, data, missing)) {
+							lateResponse(Batch.pack(Arrays.asList(responses)));
+						}
+					}
+				});
+				if (response != null) {
+					complete = add(responses, i, response, missing);
+				}
+			}
+			if (!complete) {
+				return new NfcMessage(NfcMessage.Type.POLLING_REQUEST);
+			}
+			return fragmentEnvelope(Batch.pack(Arrays.asList(responses)));
+		}
+
+		private NfcMessage fragmentData(byte[] response) throws IOException {
+			return fragmentEnvelope(response != null && batch ? Batch.single(response) : response);
+		}
+
+		private NfcMessage fragmentEnvelope(byte[] response) throws IOException {
+			if (response == null) {
+				return null;
+			}
+			final byte[] payload = compress ? compression.encode(response) : response;
+			if (resumable) {
+				// the initiator asked for a new message, so it has the previous one
+				if (sending != null) {
+					sentBase += sending.length;
+				}
+				sending = payload;
+			}
+			offerFragments(payload);
+
+			if (Config.DEBUG) {
+				LOGGER.debug( "returning: {} bytes, {} fragments",  response.length,
+						messageQueue.size() + (outgoing == null ? 0 : Math.max(0, outgoing.remaining())));
+			}
+
+			final NfcMessage next = nextOutgoing();
+			if (next == null) {
+				LOGGER.error( "nothing to return - message queue is empty");
+				responseHandler.handleFailed("nothing to return - message queue is empty");
+				return new NfcMessage(Type.ERROR);
+			}
+			return next;
+		}
+
+		private void offerFragments(final byte[] payload) throws IOException {
+			offerFragments(messageSplitter.fragments(payload));
+		}
+
+		private void offerFragments(final FragmentSource fragments) throws IOException {
+			if (outgoing != null) {
+				// the previous message is not sent completely, keep the order
+				NfcMessage msg;
+				while ((msg = outgoing.next()) != null) {
+					messageQueue.offer(msg);
+				}
+			}
+			outgoing = fragments;
+		}
+
+		private NfcMessage nextOutgoing() throws IOException {
+			final NfcMessage msg = messageQueue.poll();
+			if (msg != null || outgoing == null) {
+				return msg;
+			}
+			final NfcMessage fragment = outgoing.next();
+			if (!outgoing.hasNext()) {
+				outgoing = null;
+			}
+			return fragment;
+		}
+
+		private boolean hasPending() {
+			return !messageQueue.isEmpty() || (outgoing != null && outgoing.hasNext());
+		}
+	}
 
 
 	/**
 	 * Instantiates a new object to response to incoming NFC messages.
-	 * @param responseHandler2 
-	 * 
+	 * @param responseHandler2
+	 *
 	 * @param eventHandler
 	 *            the {@link NfcInitiatorHandler} to listen for {@link NfcEvent}s
 	 * @param messageHandler
@@ -52,35 +687,129 @@ public class NfcResponder {
 	public NfcResponder(NfcResponseHandler responseHandler, int maxTransceiveLength) {
 		this.responseHandler = responseHandler;
 		this.maxTransceiveLength = maxTransceiveLength;
-		messageSplitter.maxTransceiveLength(maxTransceiveLength);
-		
-		lastMessageSent = null;
-		lastMessageReceived = null;	
+		link.messageSplitter.maxTransceiveLength(maxTransceiveLength);
 	}
-	
+
 	public NfcResponseHandler getResponseHandler() {
 		return responseHandler;
 	}
-	
+
+	/**
+	 * Processes an incoming frame and returns the answer. Returns null for
+	 * windowed frames that don't request an acknowledgement, see
+	 * {@link PipelinedNfcTransceiver}.
+	 */
 	public byte[] processIncomingData(byte[] input) {
-		NfcMessage inputMessage = new NfcMessage(input);
-		return processIncomingData(inputMessage).bytes();
+		return processIncomingData(null, input);
 	}
 	
+	/**
+	 * Processes an incoming frame of a peer, see
+	 * {@link #processIncomingData(Object, NfcMessage)}. A frame that is sent
+	 * again is answered with the frame encoded the first time.
+	 */
+	public byte[] processIncomingData(final Object peer, final byte[] input) {
+		final NfcMessage inputMessage = new NfcMessage(input);
+		if (!isRegular(inputMessage)) {
+			return control(peer, inputMessage).bytes();
+		}
+		final Session session = session(peer, inputMessage);
+		synchronized (session) {
+			final int sequenceNumber = session.answer(inputMessage);
+			return sequenceNumber < 0 ? null : session.sentFrames.bytes(sequenceNumber);
+		}
+	}
+
+	/**
+	 * Allocation-free variant of {@link #processIncomingData(byte[])}. The
+	 * incoming frame is decoded in place and the response is encoded directly
+	 * into the output buffer. Only for the NFC link, the frames of other peers
+	 * are passed with {@link #processIncomingData(Object, NfcMessage)}.
+	 *
+	 * @param input
+	 *            the array containing the incoming frame
+	 * @param offset
+	 *            the start of the frame
+	 * @param length
+	 *            the length of the frame
+	 * @param output
+	 *            the buffer the response is written to, starting at its
+	 *            current position
+	 * @return the number of bytes written to the output, 0 if the frame is not
+	 *         answered
+	 */
+	public int processIncomingData(byte[] input, int offset, int length, ByteBuffer output) {
+		final NfcMessage inputMessage = incoming.wrap(input, offset, length);
+		if (!isRegular(inputMessage)) {
+			return control(null, inputMessage).encodeInto(output);
+		}
+		final Session session = session(null, inputMessage);
+		synchronized (session) {
+			final int sequenceNumber = session.answer(inputMessage);
+			return sequenceNumber < 0 ? 0 : session.sentFrames.copyInto(sequenceNumber, output);
+		}
+	}
+
+	/**
+	 * Processes an incoming frame of the NFC link.
+	 */
 	public NfcMessage processIncomingData(NfcMessage inputMessage) {
+		return processIncomingData(null, inputMessage);
+	}
+
+	/**
+	 * Processes an incoming frame of a peer. May be called concurrently for
+	 * different peers, the frames of one peer have to be passed in order.
+	 *
+	 * A peer that is not known, and that does not start with a handshake,
+	 * continues the transfer of the NFC link if its first frame continues the
+	 * sequence of the NFC link, e.g., on a handover from NFC to BLE. Any other
+	 * new peer gets a session of its own. With a handshake, a resumable
+	 * initiator finds its session by the session UUID.
+	 *
+	 * @param peer
+	 *            the key of the link, e.g., the address of the BLE device, or
+	 *            null for the NFC link
+	 */
+	public NfcMessage processIncomingData(final Object peer, final NfcMessage inputMessage) {
+		if (!isRegular(inputMessage)) {
+			return control(peer, inputMessage);
+		}
+		final Session session = session(peer, inputMessage);
+		synchronized (session) {
+			return session.process(inputMessage);
+		}
+	}
+	
+	/**
+	 * Returns false for the frames that are answered outside of a session:
+	 * the handshake and the keep alive.
+	 */
+	private static boolean isRegular(final NfcMessage inputMessage) {
+		switch(inputMessage.type()) {
+		case READ_BINARY:
+		case AID_1:
+		case AID_2:
+		case AID_3:
+			return false;
+		default:
+			return true;
+		}
+	}
+	
+	private NfcMessage control(final Object peer, final NfcMessage inputMessage) {
 		if (Config.DEBUG) {
-			LOGGER.debug( "processCommandApdu with {}", Arrays.toString(inputMessage.payload()));
+			LOGGER.debug( "processCommandApdu with {} from {}", inputMessage, peer);
 		}
-		
+
 		if(inputMessage.isFirst()) {
 			LOGGER.debug( "first message, reset state");
-			reset();
+			synchronized (lock) {
+				bind(peer, new Session(null));
+			}
 		}
-		
-		
-		byte[] array;
-		byte[] merged;
-		int maxLen;
+
+
 		switch(inputMessage.type()) {
 		case READ_BINARY:
 			if (Config.DEBUG) {
@@ -92,223 +821,206 @@ public class NfcResponder {
 			if (Config.DEBUG) {
 				LOGGER.debug( "AID1 selected");
 			}
-			maxLen = Math.min(Short.MAX_VALUE, maxTransceiveLength);
-			messageSplitter.maxTransceiveLength(maxLen);
-			array = Utils.shortToByteArray((short)maxLen);
-			merged = Utils.merge((byte) (messageQueue.isEmpty()? 0: 1), array, responseHandler.getUUID());
-			return new NfcMessage(Type.SINGLE).payload(merged);
+			return handshake(peer, inputMessage, Math.min(Short.MAX_VALUE, maxLen(peer)));
 		case AID_2:
 			if (Config.DEBUG) {
 				LOGGER.debug( "AID2 selected");
 			}
-			maxLen = Math.min(53, maxTransceiveLength);
-			messageSplitter.maxTransceiveLength(maxLen);
-			array = Utils.shortToByteArray((short)maxLen);
-			merged = Utils.merge((byte) (messageQueue.isEmpty()? 0: 1), array, responseHandler.getUUID());
-			return new NfcMessage(Type.SINGLE).payload(merged);
+			return handshake(peer, inputMessage, Math.min(53, maxLen(peer)));
 		case AID_3:
 			if (Config.DEBUG) {
 				LOGGER.debug( "AID3 selected");
 			}
-			maxLen = Math.min(245, maxTransceiveLength);
-			messageSplitter.maxTransceiveLength(maxLen);
-			array = Utils.shortToByteArray((short)maxLen);
-			merged = Utils.merge((byte) (messageQueue.isEmpty()? 0: 1), array, responseHandler.getUUID());
-			return new NfcMessage(Type.SINGLE).payload(merged);
+			return handshake(peer, inputMessage, Math.min(245, maxLen(peer)));
 		default:
-			if (Config.DEBUG) {
-				LOGGER.debug( "process regular message {}", inputMessage);
+			throw new IllegalArgumentException("not a control message: " + inputMessage);
+		}
+	}
+
+	/**
+	 * Returns the largest frame of the link of the peer, the initiator does
+	 * not tell its own if it selects AID_1, e.g., over BLE.
+	 */
+	private int maxLen(final Object peer) {
+		if (peer == null) {
+			return maxTransceiveLength;
+		}
+		synchronized (lock) {
+			final Integer mtu = mtus.get(peer);
+			return mtu == null ? maxTransceiveLength : mtu;
+		}
+	}
+
+	/**
+	 * Answers the SELECT AID with the resume flag, the max transmission length
+	 * and the UUID. In the extended handshake, the negotiated capabilities are
+	 * appended.
+	 *
+	 * The handshake selects the session of the peer: an initiator that
+	 * resumes gets its session back, also if it was served over another link
+	 * before, any other initiator gets a session without UUID.
+	 */
+	private NfcMessage handshake(final Object peer, final NfcMessage inputMessage, final int maxLen) {
+		int capabilities = 0;
+		UUID id = null;
+		int receivedOther = 0;
+		if (inputMessage.isExtended()) {
+			capabilities = inputMessage.payloadLength() > 0
+					? inputMessage.payloadArray()[inputMessage.payloadOffset()] & NfcMessage.CAPABILITIES : 0;
+			if (!compressionEnabled) {
+				capabilities &= ~NfcMessage.CAP_COMPRESSION;
 			}
-			
-			final boolean check = inputMessage.check(lastMessageReceived);
-			final boolean repeat = inputMessage.repeatLast(lastMessageReceived);
-			
-			NfcMessage outputMessage = null;
-			if (!check && !repeat) {
-				LOGGER.error( "sequence number mismatch {} / {}", inputMessage.sequenceNumber(), 
-							(lastMessageReceived == null ? -1 : lastMessageReceived.sequenceNumber()));
-				
-				
-				responseHandler.handleFailed(NfcInitiatorSetup.INVALID_SEQUENCE);
-				outputMessage = new NfcMessage(Type.ERROR);
-				NfcMessage msg = prepareWrite(outputMessage);
-				reset();
-				return msg;
+			// streamed messages are not batched, and cannot be sent again from an offset
+			if (responseHandler instanceof StreamingResponseHandler) {
+				capabilities &= ~(NfcMessage.CAP_BATCH | NfcMessage.CAP_RESUME);
 			}
-			if (!check && repeat && lastMessageSent!=null) {
-				if (Config.DEBUG) {
-					LOGGER.debug( "repeat last message {}", lastMessageSent);
-				}
-				lastMessageReceived = inputMessage;
-				//check if we need to fragment - happens on handover from BT to NFC
-				if(messageSplitter.needsSplit(lastMessageSent.payload())) {
-					List<NfcMessage> list = messageSplitter.getFragments(lastMessageSent.payload());
-					for(NfcMessage msg:list) {
-						messageQueue.offer(msg);
-					}
-					return messageQueue.poll();
+			if (!resumeEnabled || inputMessage.payloadLength() < 2 + NfcMessage.RESUME_REQUEST_LENGTH) {
+				capabilities &= ~NfcMessage.CAP_RESUME;
+			}
+			if ((capabilities & NfcMessage.CAP_RESUME) != 0) {
+				final byte[] request = inputMessage.payload();
+				id = Utils.byteArrayToUUID(request, 2);
+				receivedOther = Utils.byteArrayToInt(request, 2 + 16);
+			}
+		}
+		final Session target;
+		final boolean known;
+		synchronized (lock) {
+			final Session current = peer == null ? link : peers.get(peer);
+			if (id == null) {
+				// leaves the session of the last initiator, if it was resumable
+				target = current != null && current.id == null ? current : new Session(null);
+				known = false;
+			} else if (current != null && id.equals(current.id)) {
+				target = current;
+				known = true;
+			} else {
+				final Session stored = sessions.get(id);
+				known = stored != null;
+				target = known ? stored : new Session(id);
+				if (!known) {
+					sessions.put(id, target);
 				}
-				return lastMessageSent;
-				
 			}
-			try {
-				outputMessage = handleRequest(inputMessage);
-				lastMessageReceived = inputMessage;
-				NfcMessage msg = prepareWrite(outputMessage);
-				if(msg.isError() || msg.isErrorReply()) {
-					reset();
+			// the session moves to the link the initiator continues on
+			if (peer != null && link == target) {
+				link = new Session(null);
+			}
+			for (final Iterator<Map.Entry<Object, Session>> i = peers.entrySet().iterator(); i.hasNext();) {
+				final Map.Entry<Object, Session> entry = i.next();
+				if (entry.getValue() == target && !entry.getKey().equals(peer)) {
+					i.remove();
 				}
-				return msg;
-			} catch (Exception e){
-			    e.printStackTrace();
-				responseHandler.handleFailed(e.toString());
-				outputMessage = new NfcMessage(Type.ERROR);
-				NfcMessage msg = prepareWrite(outputMessage);
-				reset();
-				return msg;
 			}
-			
+			bind(peer, target);
 		}
-		
-	}
-	
-	public void reset() {
-		LOGGER.debug( "reset state");
-		lastMessageSent = null;
-		lastMessageReceived = null;
-		lateMessage = null;
-		messageSplitter.clear();
-		messageQueue.clear();
-	}
-	
-	private NfcMessage prepareWrite(NfcMessage outputMessage) {
-		lastMessageSent = outputMessage.sequenceNumber(lastMessageSent);
-		
-		if (Config.DEBUG) {
-			LOGGER.debug( "sending: {}", outputMessage);
+		synchronized (target) {
+			return target.handshake(inputMessage, capabilities, known, receivedOther, maxLen);
 		}
-		
-		return outputMessage;
 	}
 
-	private NfcMessage checkForData() {
-		final NfcMessage nfcMessage;
+	/**
+	 * Returns the session of the peer. A new peer whose frame continues the
+	 * sequence of the NFC link takes over the session of the NFC link, and
+	 * the NFC link starts a new one. Any other new peer starts a new session.
+	 */
+	private Session session(final Object peer, final NfcMessage inputMessage) {
+		final Session candidate;
 		synchronized (lock) {
-			nfcMessage = lateMessage;
-			lateMessage = null;
-			return nfcMessage;
+			if (peer == null) {
+				return link;
+			}
+			final Session session = peers.get(peer);
+			if (session != null) {
+				return session;
+			}
+			candidate = link;
 		}
-	}
-
-	private NfcMessage handleRequest(final NfcMessage incoming) throws Exception {
-		if (Config.DEBUG) {
-			LOGGER.debug( "received: {}", incoming);
+		// the monitor of a session is not taken while holding lock
+		final boolean continues;
+		synchronized (candidate) {
+			continues = candidate.continues(inputMessage);
 		}
-
-		if (incoming.isError()) {
-			if (Config.DEBUG) {
-				LOGGER.debug( "nfc error reported - returning error response");
-			}
-			responseHandler.handleFailed(NfcInitiatorSetup.UNEXPECTED_ERROR);
-			return new NfcMessage(Type.ERROR_REPLY);
-		}
-
-		switch (incoming.type()) {
-		
-		case SINGLE:
-			NfcMessage msg = response(incoming.payload());
-			return msg;
-		case FRAGMENT:
-		case FRAGMENT_LAST:
-			if(incoming.payload().length > 0) {
-				switch (incoming.type()) {
-					case FRAGMENT:
-						messageSplitter.reassemble(incoming);
-						return new NfcMessage(Type.FRAGMENT);
-					case FRAGMENT_LAST:
-						messageSplitter.reassemble(incoming);
-						final byte[] receivedData = messageSplitter.data();
-						messageSplitter.clear();
-						return response(receivedData);
-					default:
-						responseHandler.handleFailed("unexpected type");
-						return new NfcMessage(Type.ERROR);
-				}
-			} else if (incoming.type() == Type.FRAGMENT){
-				//continue with our message queue
-				if (messageQueue.isEmpty()) {
-					LOGGER.error( "nothing to return (get next fragment)");
-					reset();
-					responseHandler.handleFailed(NfcInitiatorSetup.UNEXPECTED_ERROR);
-					return new NfcMessage(Type.ERROR);
-				}
-				return messageQueue.poll();
-			} else {
-				LOGGER.error( "unknown fragment: {} for incoming msg: {}", incoming.type(), incoming);
-				reset();
-				responseHandler.handleFailed("unknown fragment: " + incoming.type()+ " for incoming msg: " + incoming);
-				return new NfcMessage(Type.ERROR);
+		final Session session;
+		synchronized (lock) {
+			final Session bound = peers.get(peer);
+			if (bound != null) {
+				return bound;
 			}
-		case POLLING_RESPONSE:
-			msg = checkForData();
-			if (msg != null) {
-				return msg;
+			if (continues && link == candidate) {
+				session = link;
+				link = new Session(null);
 			} else {
-				return new NfcMessage(Type.POLLING_REQUEST);
+				session = new Session(null);
 			}
-		case POLLING_REQUEST:
-			return new NfcMessage(Type.POLLING_RESPONSE);
-		case ERROR:
-			reset();
-			return new NfcMessage(Type.ERROR);
-		default:
-			LOGGER.error( "unknown type: {} for incoming msg: {}", incoming.type(), incoming);
-			reset();
-			responseHandler.handleFailed("unknown type: " + incoming.type()+ " for incoming msg: " + incoming);
-			return new NfcMessage(Type.ERROR);
+			peers.put(peer, session);
 		}
-	}
-	
-	public ResponseLater lateResponder() {
-		return new ResponseLater(){
-			@Override
-			public void response(byte[] data) {
-				synchronized (lock) {
-					lateMessage = fragmentData(data);
-				}
-			}};
+		final int maxLen = maxLen(peer);
+		synchronized (session) {
+			session.messageSplitter.maxTransceiveLength(maxLen);
+		}
+		return session;
 	}
 
-	private NfcMessage response(final byte[] payload) throws Exception {
-		final byte[] response = responseHandler.handleMessageReceived(payload, lateResponder());
-		
-		// the user can decide to use sendLater. In that case, we'll start
-		// to poll. This is triggered by returning null.
-		if (response == null) {
-			return new NfcMessage(NfcMessage.Type.POLLING_REQUEST);
+	/**
+	 * Sets the session of the peer, guarded by lock.
+	 */
+	private void bind(final Object peer, final Session session) {
+		if (peer == null) {
+			link = session;
 		} else {
-			return fragmentData(response);
+			peers.put(peer, session);
 		}
 	}
 
-	private NfcMessage fragmentData(byte[] response) {
-		if (response == null) {
-			return null;
-		}
-		for (NfcMessage msg : messageSplitter.getFragments(response)) {
-			messageQueue.offer(msg);
+	/**
+	 * Forgets the session of a peer that disconnected. If resumable, the
+	 * initiator can still continue it over another link.
+	 */
+	public void removePeer(final Object peer) {
+		synchronized (lock) {
+			peers.remove(peer);
+			mtus.remove(peer);
 		}
+	}
 
-		if (Config.DEBUG) {
-			LOGGER.debug( "returning: {} bytes, {} fragments",  response.length, messageQueue.size());
+	/**
+	 * Resets the state of the NFC link.
+	 */
+	public void reset() {
+		LOGGER.debug( "reset state");
+		synchronized (lock) {
+			// a resumable session is kept, its initiator may come back with the same session UUID
+			link = new Session(null);
 		}
-		
-		if (messageQueue.isEmpty()) {
-			LOGGER.error( "nothing to return - message queue is empty");
-			responseHandler.handleFailed("nothing to return - message queue is empty");
-			return new NfcMessage(Type.ERROR);
+	}
+
+	/**
+	 * Returns the callback for a deferred response of the last message
+	 * received over the NFC link.
+	 */
+	public ResponseLater lateResponder() {
+		final Session session = session(null, null);
+		synchronized (session) {
+			return session.lateResponder();
 		}
-		return messageQueue.poll();
+	}
+
+	/**
+	 * Returns true if the frame completes a response.
+	 */
+	private static boolean isLast(final NfcMessage outputMessage) {
+		return (outputMessage.type() == Type.SINGLE || outputMessage.type() == Type.FRAGMENT_LAST) 
+				&& outputMessage.payloadLength() > 0;
+	}
+
+	/**
+	 * Returns true if this was the last missing response of the batch.
+	 */
+	private static boolean add(final byte[][] responses, final int index, final byte[] response,
+			final AtomicInteger missing) {
+		responses[index] = response;
+		return missing.decrementAndGet() == 0;
 	}
 
 	/**
@@ -326,8 +1038,80 @@ public class NfcResponder {
 		responseHandler.nfcTagLost();
 	}
 
+	/**
+	 * Enables or disables the compression of messages, if the initiator
+	 * supports it. Takes effect with the next handshake.
+	 */
+	public void setCompression(boolean compressionEnabled) {
+		this.compressionEnabled = compressionEnabled;
+	}
+	
+	/**
+	 * Enables or disables the resumption of interrupted transfers, if the
+	 * initiator supports it. Takes effect with the next handshake.
+	 */
+	public void setResume(boolean resumeEnabled) {
+		this.resumeEnabled = resumeEnabled;
+	}
+	
+	/**
+	 * Sets the budget of a message, from its first frame until the last frame
+	 * of its response, the deferred response included. If a message runs
+	 * over, the next frame of the initiator is answered with an ERROR frame
+	 * that tells the phase, and the handler gets
+	 * {@link NfcResponseHandler#handleFailed(String)}. 0 (default) for no
+	 * limit.
+	 */
+	public void setMessageTimeout(long timeout, TimeUnit unit) {
+		this.messageTimeoutNanos = unit.toNanos(timeout);
+	}
+	
+	/**
+	 * Sets the budget of a transaction, from the handshake on, see
+	 * {@link #setMessageTimeout(long, TimeUnit)}. 0 (default) for no limit.
+	 */
+	public void setTransactionTimeout(long timeout, TimeUnit unit) {
+		this.transactionTimeoutNanos = unit.toNanos(timeout);
+	}
+	
+	/**
+	 * Sets the largest window the initiator may use, 1 disables the windowed
+	 * mode.
+	 */
+	public void setWindowSize(int windowSize) {
+		if (windowSize < 1 || windowSize > NfcMessage.MAX_WINDOW) {
+			throw new IllegalArgumentException("window size must be between 1 and " + NfcMessage.MAX_WINDOW);
+		}
+		this.windowSize = windowSize;
+	}
+
+	/**
+	 * Sets the frame length of the NFC link.
+	 */
 	public void setMtu(int mtu) {
-		messageSplitter.maxTransceiveLength(mtu);
-		
-	}	
+		setMtu(null, mtu);
+	}
+
+	/**
+	 * Sets the frame length of the link of a peer, e.g., after the MTU of the
+	 * BLE connection changed. The handshake of the peer offers at most this
+	 * frame length. Does not select a session for a new peer, that is done
+	 * with its first frame.
+	 */
+	public void setMtu(final Object peer, final int mtu) {
+		final Session session;
+		synchronized (lock) {
+			if (peer == null) {
+				session = link;
+			} else {
+				mtus.put(peer, mtu);
+				session = peers.get(peer);
+			}
+		}
+		if (session != null) {
+			synchronized (session) {
+				session.messageSplitter.maxTransceiveLength(mtu);
+			}
+		}
+	}
 }
@@ -1,9 +1,19 @@
 package ch.uzh.csg.comm;
 
+import ch.uzh.csg.nfclib.HostApduServiceNfcLib;
+
 /**
  * The implementation of this interface must implement what has to be done on
  * the given {@link NfcEvent}.
  * 
+ * The methods are not called on the main thread: the APDUs of the NFC link
+ * are processed on the worker thread of the {@link HostApduServiceNfcLib},
+ * if the service runs in the process of the app, and the frames of BLE
+ * centrals on binder threads. The events of one link arrive in order, the
+ * events of different links concurrently. An implementation that updates
+ * the UI has to post to the main looper, e.g., with
+ * {@link android.app.Activity#runOnUiThread(Runnable)}.
+ * 
  * @author Jeton Memeti (initial version)
  * @author Thomas Bocek (simplification, refactoring)
  * 
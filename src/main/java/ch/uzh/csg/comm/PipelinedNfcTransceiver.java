@@ -0,0 +1,25 @@
+package ch.uzh.csg.comm;
+
+/**
+ * A transceiver that can send frames without waiting for the answer of the
+ * other side, e.g., a BLE characteristic write that does not need to be read
+ * back. Only if the initiator uses such a transceiver, the windowed mode (see
+ * {@link NfcMessage#CAP_WINDOW}) is used. NFC (ISO-DEP) always answers every
+ * frame, so the NFC transceivers don't implement this.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface PipelinedNfcTransceiver extends NfcTransceiver {
+
+	/**
+	 * Sends a frame the other side does not answer. Returns as soon as the
+	 * transport accepted the frame.
+	 * 
+	 * @param input
+	 *            the serialized {@link NfcMessage}
+	 * @throws NfcLibException
+	 *             if the connection is lost
+	 */
+	public void writeUnacknowledged(byte[] input) throws Exception;
+}
@@ -0,0 +1,179 @@
+package ch.uzh.csg.comm;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the polling of the initiator. While the responder computes a
+ * deferred response (see {@link ResponseLater}), the initiator polls for it,
+ * and after the last message, the initiator polls to keep the link (see the
+ * PN547 hack in {@link NfcInitiator}). Without a pause, both sides exchange
+ * polling frames as fast as the radio allows.
+ *
+ * The pause before the n-th poll (starting at 0) is initialDelay *
+ * backoff^n, at most maxDelay. Polls are never sent more often than maxRate
+ * per second, the time on the air counts for that.
+ *
+ * The scheduler counts how many polls every deferred response needed and
+ * reports them to the {@link Listener}, to tune the settings against the
+ * latency of the response handler.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class PollingScheduler {
+
+	/**
+	 * Notified when a deferred response arrived.
+	 */
+	public interface Listener {
+		/**
+		 * @param polls
+		 *            the number of polls sent for the response
+		 * @param waitedNanos
+		 *            the time from the first poll until the response
+		 */
+		public void deferredResponse(int polls, long waitedNanos);
+	}
+
+	// one timer for all links, only used by the asynchronous transactions
+	private static ScheduledExecutorService sharedTimer;
+
+	private volatile long initialDelayNanos = TimeUnit.MILLISECONDS.toNanos(2);
+	private volatile long maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(50);
+	private volatile double backoff = 1.5;
+	private volatile long minIntervalNanos = TimeUnit.MILLISECONDS.toNanos(2);
+	private volatile Listener listener;
+	private volatile ScheduledExecutorService timer;
+
+	// statistics
+	private long deferredResponses = 0;
+	private long polls = 0;
+	private int maxPolls = 0;
+
+	/**
+	 * Sets the pause before the first poll.
+	 */
+	public PollingScheduler initialDelay(final long initialDelay, final TimeUnit unit) {
+		this.initialDelayNanos = unit.toNanos(initialDelay);
+		return this;
+	}
+
+	/**
+	 * Sets the longest pause between two polls.
+	 */
+	public PollingScheduler maxDelay(final long maxDelay, final TimeUnit unit) {
+		this.maxDelayNanos = unit.toNanos(maxDelay);
+		return this;
+	}
+
+	/**
+	 * Sets the factor the pause grows by with every poll, 1 for a constant
+	 * pause.
+	 */
+	public PollingScheduler backoff(final double backoff) {
+		if (backoff < 1) {
+			throw new IllegalArgumentException("backoff must be at least 1: " + backoff);
+		}
+		this.backoff = backoff;
+		return this;
+	}
+
+	/**
+	 * Sets the maximum number of polls per second, 0 for no limit.
+	 */
+	public PollingScheduler maxRate(final double pollsPerSecond) {
+		if (pollsPerSecond < 0) {
+			throw new IllegalArgumentException("rate must not be negative: " + pollsPerSecond);
+		}
+		this.minIntervalNanos = pollsPerSecond == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) / pollsPerSecond);
+		return this;
+	}
+
+	public PollingScheduler listener(final Listener listener) {
+		this.listener = listener;
+		return this;
+	}
+
+	/**
+	 * Sets the timer for the pauses of transactions over an
+	 * {@link AsyncNfcTransceiver}. By default, one daemon thread is shared by
+	 * all schedulers.
+	 */
+	public PollingScheduler timer(final ScheduledExecutorService timer) {
+		this.timer = timer;
+		return this;
+	}
+
+	/**
+	 * Returns the pause in nanoseconds before the next poll.
+	 *
+	 * @param n
+	 *            the number of polls already sent in this sequence
+	 * @param sinceLastPoll
+	 *            the nanoseconds since the last poll was sent, which are
+	 *            subtracted from the minimum interval
+	 */
+	public long delay(final int n, final long sinceLastPoll) {
+		final double backedOff = initialDelayNanos * Math.pow(backoff, n);
+		final long delay = backedOff >= maxDelayNanos ? maxDelayNanos : (long) backedOff;
+		return Math.max(delay, minIntervalNanos - sinceLastPoll);
+	}
+
+	void deferredResponse(final int n, final long waitedNanos) {
+		synchronized (this) {
+			deferredResponses++;
+			polls += n;
+			maxPolls = Math.max(maxPolls, n);
+		}
+		final Listener listener = this.listener;
+		if (listener != null) {
+			listener.deferredResponse(n, waitedNanos);
+		}
+	}
+
+	void schedule(final Runnable task, final long delayNanos) {
+		ScheduledExecutorService timer = this.timer;
+		if (timer == null) {
+			timer = sharedTimer();
+		}
+		timer.schedule(task, delayNanos, TimeUnit.NANOSECONDS);
+	}
+
+	private static synchronized ScheduledExecutorService sharedTimer() {
+		if (sharedTimer == null) {
+			sharedTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(final Runnable r) {
+					final Thread thread = new Thread(r, "nfc-polling");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+		}
+		return sharedTimer;
+	}
+
+	/**
+	 * Returns the number of deferred responses received.
+	 */
+	public synchronized long deferredResponses() {
+		return deferredResponses;
+	}
+
+	/**
+	 * Returns the number of polls sent for all deferred responses.
+	 */
+	public synchronized long polls() {
+		return polls;
+	}
+
+	/**
+	 * Returns the most polls a single deferred response needed.
+	 */
+	public synchronized int maxPolls() {
+		return maxPolls;
+	}
+}
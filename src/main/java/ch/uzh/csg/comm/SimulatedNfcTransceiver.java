@@ -0,0 +1,298 @@
+package ch.uzh.csg.comm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.nfc.cardemulation.HostApduService;
+
+/**
+ * A transceiver that connects an {@link NfcInitiator} to an
+ * {@link NfcResponder} in the same process, to run and measure the protocol
+ * on a plain JVM. Every frame can be delayed, dropped, or the link can get
+ * lost, all with a seeded random generator so runs can be repeated.
+ *
+ * A dropped frame is answered with null, which the initiator treats as a lost
+ * tag, as IsoDep does on a timeout. The request is dropped before or after the
+ * responder processed it, with the same probability. After a tag loss, every
+ * write fails until {@link #reconnect()} is called, which corresponds to
+ * tapping again.
+ *
+ * The delay is latency plus a uniform jitter in [-jitter, jitter]. By default
+ * the writing thread sleeps for the delay, with realTime(false) it is only
+ * added to {@link #simulatedTime(TimeUnit)}, to measure throughput without
+ * waiting.
+ *
+ * Use {@link Pipelined} to simulate a BLE link, where the initiator sends
+ * windows of unacknowledged frames.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class SimulatedNfcTransceiver implements BufferedNfcTransceiver {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(SimulatedNfcTransceiver.class);
+
+	protected final NfcResponder responder;
+	private final Random random;
+
+	private volatile int maxLen = 53;
+	private volatile long latencyNanos = 0;
+	private volatile long jitterNanos = 0;
+	private volatile double dropRate = 0;
+	private volatile double tagLossRate = 0;
+	private volatile boolean realTime = true;
+
+	private boolean connected = true;
+	// wraps the last output buffer of write(byte[], int, byte[])
+	private ByteBuffer output;
+
+	// statistics
+	private long frames = 0;
+	private long dropped = 0;
+	private long bytesSent = 0;
+	private long bytesReceived = 0;
+	private long simulatedNanos = 0;
+
+	/**
+	 * @param responder
+	 *            the responder that answers the frames
+	 * @param seed
+	 *            the seed of the random generator, the same seed with the same
+	 *            frames gives the same drops, losses and delays
+	 */
+	public SimulatedNfcTransceiver(final NfcResponder responder, final long seed) {
+		this.responder = responder;
+		this.random = new Random(seed);
+	}
+
+	/**
+	 * Sets the maximum frame length. The initiator picks the AID from it, so
+	 * it has to be 53 (AID_2), 245 (AID_3) or Integer.MAX_VALUE (AID_1), where
+	 * the responder limits the frame length.
+	 */
+	public SimulatedNfcTransceiver maxLen(final int maxLen) {
+		this.maxLen = maxLen;
+		return this;
+	}
+
+	/**
+	 * Sets the time a frame takes, from the request until the response.
+	 */
+	public SimulatedNfcTransceiver latency(final long latency, final TimeUnit unit) {
+		this.latencyNanos = unit.toNanos(latency);
+		return this;
+	}
+
+	/**
+	 * Sets the maximum deviation from the latency, the delay is uniformly
+	 * distributed.
+	 */
+	public SimulatedNfcTransceiver jitter(final long jitter, final TimeUnit unit) {
+		this.jitterNanos = unit.toNanos(jitter);
+		return this;
+	}
+
+	/**
+	 * Sets the probability that a frame gets lost, between 0 and 1.
+	 */
+	public SimulatedNfcTransceiver dropRate(final double dropRate) {
+		this.dropRate = probability(dropRate);
+		return this;
+	}
+
+	/**
+	 * Sets the probability that the link is lost on a frame, between 0 and 1.
+	 */
+	public SimulatedNfcTransceiver tagLossRate(final double tagLossRate) {
+		this.tagLossRate = probability(tagLossRate);
+		return this;
+	}
+
+	/**
+	 * If true (default), the writing thread sleeps for the delay of a frame.
+	 */
+	public SimulatedNfcTransceiver realTime(final boolean realTime) {
+		this.realTime = realTime;
+		return this;
+	}
+
+	/**
+	 * Brings the link back after a tag loss or {@link #close()}.
+	 */
+	public synchronized SimulatedNfcTransceiver reconnect() {
+		connected = true;
+		return this;
+	}
+
+	public synchronized boolean isConnected() {
+		return connected;
+	}
+
+	@Override
+	public byte[] write(final byte[] input) throws Exception {
+		synchronized (this) {
+			if (!transmit(input.length)) {
+				return null;
+			}
+			final byte[] response = responder.processIncomingData(input);
+			if (!received(response == null ? 0 : response.length)) {
+				return null;
+			}
+			return response;
+		}
+	}
+
+	@Override
+	public int write(final byte[] input, final int inputLength, final byte[] output) throws Exception {
+		synchronized (this) {
+			if (!transmit(inputLength)) {
+				return 0;
+			}
+			if (this.output == null || this.output.array() != output) {
+				this.output = ByteBuffer.wrap(output);
+			}
+			this.output.clear();
+			final int length = responder.processIncomingData(input, 0, inputLength, this.output);
+			if (!received(length)) {
+				return 0;
+			}
+			return length;
+		}
+	}
+
+	/**
+	 * Sends the request, returns false if it is lost on the way.
+	 */
+	protected boolean transmit(final int length) throws Exception {
+		if (!connected) {
+			throw new NfcLibException("tag lost");
+		}
+		if (length > maxLen) {
+			throw new IOException("The message length exceeds the maximum capacity of " + maxLen + " bytes.");
+		}
+		frames++;
+		bytesSent += length;
+		delay();
+		if (tagLossRate > 0 && random.nextDouble() < tagLossRate) {
+			if (Config.DEBUG) {
+				LOGGER.debug("simulated tag loss at frame {}", frames);
+			}
+			connected = false;
+			responder.onDeactivated(HostApduService.DEACTIVATION_LINK_LOSS);
+			throw new NfcLibException("tag lost");
+		}
+		return !drop();
+	}
+
+	/**
+	 * Receives the response, returns false if it is lost on the way.
+	 */
+	protected boolean received(final int length) {
+		if (drop()) {
+			return false;
+		}
+		bytesReceived += length;
+		return true;
+	}
+
+	// half of the drops hit the request, the other half the response
+	private boolean drop() {
+		if (dropRate > 0 && random.nextDouble() < dropRate / 2) {
+			dropped++;
+			if (Config.DEBUG) {
+				LOGGER.debug("simulated drop at frame {}", frames);
+			}
+			return true;
+		}
+		return false;
+	}
+
+	private void delay() throws InterruptedException {
+		long nanos = latencyNanos;
+		if (jitterNanos > 0) {
+			nanos += (long) ((random.nextDouble() * 2 - 1) * jitterNanos);
+		}
+		if (nanos <= 0) {
+			return;
+		}
+		simulatedNanos += nanos;
+		if (realTime) {
+			TimeUnit.NANOSECONDS.sleep(nanos);
+		}
+	}
+
+	private static double probability(final double p) {
+		if (p < 0 || p > 1) {
+			throw new IllegalArgumentException("probability must be between 0 and 1: " + p);
+		}
+		return p;
+	}
+
+	@Override
+	public int maxLen() {
+		return maxLen;
+	}
+
+	@Override
+	public synchronized void close() {
+		connected = false;
+	}
+
+	/**
+	 * Returns the number of frames sent, including dropped ones.
+	 */
+	public synchronized long frames() {
+		return frames;
+	}
+
+	/**
+	 * Returns the number of dropped requests and responses.
+	 */
+	public synchronized long dropped() {
+		return dropped;
+	}
+
+	public synchronized long bytesSent() {
+		return bytesSent;
+	}
+
+	public synchronized long bytesReceived() {
+		return bytesReceived;
+	}
+
+	/**
+	 * Returns the sum of the delays of all frames, also if they were not
+	 * slept, see {@link #realTime(boolean)}.
+	 */
+	public synchronized long simulatedTime(final TimeUnit unit) {
+		return unit.convert(simulatedNanos, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * A simulated link that also sends unacknowledged frames, like a BLE
+	 * characteristic write. A dropped unacknowledged frame is lost silently,
+	 * the windowed mode has to send it again.
+	 */
+	public static class Pipelined extends SimulatedNfcTransceiver implements PipelinedNfcTransceiver {
+
+		public Pipelined(final NfcResponder responder, final long seed) {
+			super(responder, seed);
+			maxLen(Integer.MAX_VALUE);
+		}
+
+		@Override
+		public void writeUnacknowledged(final byte[] input) throws Exception {
+			synchronized (this) {
+				if (transmit(input.length)) {
+					// the responder does not answer unacknowledged frames
+					responder.processIncomingData(input);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package ch.uzh.csg.comm;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.util.Arrays;
+
+import ch.uzh.csg.comm.NfcMessage.Type;
+
+/**
+ * Produces the fragments of a message that is read from a stream. Only the
+ * fragment that is returned next is read, so the message is never in memory
+ * as a whole. As the total length is not known, a length hint is sent as 0.
+ * The stream is closed after the last fragment has been read.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public class StreamFragmentSource implements FragmentSource {
+
+	private final PushbackInputStream input;
+	private final int fragmentLength;
+	private final boolean lengthHint;
+	private boolean started = false;
+	private boolean finished = false;
+
+	/**
+	 * @param input
+	 *            the message
+	 * @param fragmentLength
+	 *            the maximum payload length of one fragment
+	 * @param lengthHint
+	 *            true if the first fragment of a fragmented message starts
+	 *            with the total length
+	 */
+	public StreamFragmentSource(final InputStream input, final int fragmentLength, final boolean lengthHint) {
+		// room to push back the bytes the length hint displaced, plus one to detect the end
+		this.input = new PushbackInputStream(input, NfcMessageSplitter.LENGTH_HINT_SIZE + 1);
+		this.fragmentLength = fragmentLength;
+		this.lengthHint = lengthHint;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return !finished;
+	}
+
+	@Override
+	public NfcMessage next() throws IOException {
+		if (finished) {
+			return null;
+		}
+		final byte[] chunk = read(fragmentLength);
+		final boolean last = atEnd();
+		if (!started) {
+			started = true;
+			if (chunk.length == 0) {
+				finish();
+				return null;
+			}
+			if (last) {
+				finish();
+				return new NfcMessage(Type.SINGLE).payload(chunk);
+			}
+			if (lengthHint) {
+				// the total length stays 0 (unknown), the displaced bytes go to the next fragment
+				final int hint = NfcMessageSplitter.LENGTH_HINT_SIZE;
+				input.unread(chunk, fragmentLength - hint, hint);
+				final byte[] first = new byte[fragmentLength];
+				System.arraycopy(chunk, 0, first, hint, fragmentLength - hint);
+				return new NfcMessage(Type.FRAGMENT).payload(first);
+			}
+		}
+		if (last) {
+			finish();
+			return new NfcMessage(Type.FRAGMENT_LAST).payload(chunk);
+		}
+		return new NfcMessage(Type.FRAGMENT).payload(chunk);
+	}
+
+	@Override
+	public int remaining() {
+		return finished ? 0 : -1;
+	}
+
+	private byte[] read(final int len) throws IOException {
+		final byte[] chunk = new byte[len];
+		int read = 0;
+		while (read < len) {
+			final int n = input.read(chunk, read, len - read);
+			if (n < 0) {
+				break;
+			}
+			read += n;
+		}
+		return read == len ? chunk : Arrays.copyOf(chunk, read);
+	}
+
+	private boolean atEnd() throws IOException {
+		final int b = input.read();
+		if (b < 0) {
+			return true;
+		}
+		input.unread(b);
+		return false;
+	}
+
+	private void finish() throws IOException {
+		finished = true;
+		input.close();
+	}
+}
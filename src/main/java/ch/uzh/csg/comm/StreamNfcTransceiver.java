@@ -0,0 +1,124 @@
+package ch.uzh.csg.comm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the frames over a byte stream, e.g., a BLE L2CAP connection-oriented
+ * channel. Every frame is preceded by its length (2 bytes):
+ *
+ * length | frame
+ *
+ * A stream has no attribute protocol and no limit of one operation at a
+ * time, so the frames can be much larger than a GATT write. Unacknowledged
+ * frames are only buffered, they go out together with the next frame that
+ * is answered. The other side runs a {@link StreamResponder}.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StreamNfcTransceiver implements PipelinedNfcTransceiver {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StreamNfcTransceiver.class);
+
+	public static final int LENGTH_PREFIX = 2;
+	public static final int MAX_FRAME_LENGTH = 0xFFFF;
+	// the frame length offered in the handshake, the responder may answer with less
+	public static final int DEFAULT_FRAME_LENGTH = 16 * 1024;
+
+	private final DataInputStream input;
+	private final OutputStream output;
+	private final Closeable connection;
+	private final int maxLen;
+
+	/**
+	 * @param connection
+	 *            closed with the transceiver, e.g., the socket of the streams
+	 * @param maxLen
+	 *            the largest frame, at most {@link #MAX_FRAME_LENGTH}
+	 */
+	public StreamNfcTransceiver(final InputStream input, final OutputStream output, final Closeable connection,
+			final int maxLen) {
+		if (maxLen <= 0 || maxLen > MAX_FRAME_LENGTH) {
+			throw new IllegalArgumentException("frame length must be between 1 and " + MAX_FRAME_LENGTH + ": " + maxLen);
+		}
+		this.input = new DataInputStream(new BufferedInputStream(input));
+		this.output = new BufferedOutputStream(output, Math.min(maxLen, 8 * 1024) + LENGTH_PREFIX);
+		this.connection = connection;
+		this.maxLen = maxLen;
+	}
+
+	@Override
+	public byte[] write(final byte[] frame) throws Exception {
+		try {
+			writeFrame(output, frame);
+			output.flush();
+			return readFrame(input);
+		} catch (IOException e) {
+			if (Config.DEBUG) {
+				LOGGER.debug("stream lost", e);
+			}
+			throw new NfcLibException("tag lost");
+		}
+	}
+
+	@Override
+	public void writeUnacknowledged(final byte[] frame) throws Exception {
+		try {
+			writeFrame(output, frame);
+		} catch (IOException e) {
+			if (Config.DEBUG) {
+				LOGGER.debug("stream lost", e);
+			}
+			throw new NfcLibException("tag lost");
+		}
+	}
+
+	@Override
+	public int maxLen() {
+		return maxLen;
+	}
+
+	@Override
+	public void close() {
+		try {
+			connection.close();
+		} catch (IOException e) {
+			LOGGER.error("could not close stream", e);
+		}
+	}
+
+	/**
+	 * Writes the frame with its length, without flushing.
+	 */
+	public static void writeFrame(final OutputStream output, final byte[] frame) throws IOException {
+		if (frame.length > MAX_FRAME_LENGTH) {
+			throw new IOException("frame too large: " + frame.length);
+		}
+		output.write(frame.length >>> 8);
+		output.write(frame.length);
+		output.write(frame);
+	}
+
+	/**
+	 * Reads a frame and its length.
+	 *
+	 * @throws EOFException
+	 *             if the stream ends, also between two frames
+	 */
+	public static byte[] readFrame(final DataInputStream input) throws IOException {
+		final int length = input.readUnsignedShort();
+		final byte[] frame = new byte[length];
+		input.readFully(frame);
+		return frame;
+	}
+}
@@ -0,0 +1,72 @@
+package ch.uzh.csg.comm;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The responder side of a {@link StreamNfcTransceiver}. Reads the frames of
+ * one peer from the stream, passes them to the {@link NfcResponder} and
+ * writes the answers back. Runs until the stream ends, then the peer is
+ * removed from the responder.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public class StreamResponder implements Runnable {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(StreamResponder.class);
+
+	private final NfcResponder responder;
+	private final Object peer;
+	private final DataInputStream input;
+	private final OutputStream output;
+	private final int maxLen;
+
+	/**
+	 * @param peer
+	 *            the key of the link in the responder, see
+	 *            {@link NfcResponder#processIncomingData(Object, byte[])}
+	 * @param maxLen
+	 *            the largest frame, the same as on the other side
+	 */
+	public StreamResponder(final NfcResponder responder, final Object peer, final InputStream input,
+			final OutputStream output, final int maxLen) {
+		this.responder = responder;
+		this.peer = peer;
+		this.input = new DataInputStream(new BufferedInputStream(input));
+		this.output = new BufferedOutputStream(output);
+		this.maxLen = maxLen;
+	}
+
+	@Override
+	public void run() {
+		responder.setMtu(peer, maxLen);
+		try {
+			while (true) {
+				final byte[] answer = responder.processIncomingData(peer, StreamNfcTransceiver.readFrame(input));
+				if (answer != null) {
+					StreamNfcTransceiver.writeFrame(output, answer);
+					output.flush();
+				}
+			}
+		} catch (EOFException e) {
+			if (Config.DEBUG) {
+				LOGGER.debug("stream of {} closed", peer);
+			}
+		} catch (IOException e) {
+			if (Config.DEBUG) {
+				LOGGER.debug("stream of {} lost", peer, e);
+			}
+		} finally {
+			responder.removePeer(peer);
+		}
+	}
+}
@@ -0,0 +1,31 @@
+package ch.uzh.csg.comm;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An {@link NfcInitiatorHandler} that sends and receives large messages as
+ * streams, so they are never in memory as a whole. Fragments are read from
+ * the stream while they are sent, and received fragments are written to the
+ * sink as they arrive.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface StreamingInitiatorHandler extends NfcInitiatorHandler {
+
+	/**
+	 * Returns the next message as a stream, it is closed after the last
+	 * fragment has been read. If null is returned,
+	 * {@link #nextMessage()} is used instead.
+	 */
+	public abstract InputStream nextMessageStream() throws Exception;
+
+	/**
+	 * Returns the sink for the next received message. It is closed when the
+	 * message is complete, instead of calling
+	 * {@link #handleMessageReceived(byte[])}. If null is returned, the message
+	 * is reassembled in memory.
+	 */
+	public abstract OutputStream messageStream() throws Exception;
+}
@@ -0,0 +1,31 @@
+package ch.uzh.csg.comm;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * An {@link NfcResponseHandler} that receives and answers large messages as
+ * streams, so they are never in memory as a whole.
+ * 
+ * @author Thomas Bocek
+ * 
+ */
+public interface StreamingResponseHandler extends NfcResponseHandler {
+
+	/**
+	 * Returns the sink for the next received message. If null is returned,
+	 * the message is reassembled in memory and passed to
+	 * {@link #handleMessageReceived(byte[], ResponseLater)}.
+	 */
+	public abstract OutputStream messageStream() throws Exception;
+
+	/**
+	 * Called after the sink returned by {@link #messageStream()} has been
+	 * closed.
+	 * 
+	 * @return the response as a stream, it is closed after the last fragment
+	 *         has been read. Null if the response is sent later with
+	 *         {@link ResponseLater#response(byte[])}.
+	 */
+	public abstract InputStream handleMessageStreamed(ResponseLater responseLater) throws Exception;
+}
@@ -10,5 +10,11 @@ public interface TagDiscoverHandler {
 	
 	public void tagDiscovered(NfcTransceiver nfcTransceiver, boolean handshake, boolean continueNFC);
 
+	/**
+	 * Starts the transaction and returns right away, the frames are written
+	 * from the callbacks of the transceiver.
+	 */
+	public void tagDiscovered(AsyncNfcTransceiver nfcTransceiver, boolean handshake, boolean continueNFC);
+
 	public void tagFailed(String message);
 }
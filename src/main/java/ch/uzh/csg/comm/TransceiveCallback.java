@@ -0,0 +1,23 @@
+package ch.uzh.csg.comm;
+
+/**
+ * Receives the outcome of a {@link AsyncNfcTransceiver#write(byte[], TransceiveCallback)}.
+ * Exactly one of the methods is called once per write.
+ *
+ * @author Thomas Bocek
+ *
+ */
+public interface TransceiveCallback {
+
+	/**
+	 * Called with the response of the other side. A null response means the
+	 * frame got lost, as with {@link NfcTransceiver#write(byte[])}.
+	 */
+	public void completed(byte[] response);
+
+	/**
+	 * Called if the frame could not be sent. A {@link NfcLibException}
+	 * indicates that the connection is lost.
+	 */
+	public void failed(Exception e);
+}
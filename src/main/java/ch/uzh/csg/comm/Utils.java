@@ -61,6 +61,16 @@ final public class Utils {
 			};
 	}
 
+	/**
+	 * Writes an integer into an existing byte array (4 bytes, big endian).
+	 */
+	public static void intToByteArray(final int value, final byte[] array, final int offset) {
+		array[offset] = (byte) (value >>> 24);
+		array[offset + 1] = (byte) (value >>> 16);
+		array[offset + 2] = (byte) (value >>> 8);
+		array[offset + 3] = (byte) value;
+	}
+
 	/**
 	 * Returns a byte array as integer.
 	 * 
@@ -140,8 +150,8 @@ final public class Utils {
 	}
 	
 	public static UUID byteArrayToUUID(byte[] array, int offset) {
-		long leastSignificantBits = byteArrayToLong(array, 0);
-		long mostSignificantBits = byteArrayToLong(array, 8);
+		long leastSignificantBits = byteArrayToLong(array, offset);
+		long mostSignificantBits = byteArrayToLong(array, offset + 8);
 		return new UUID(mostSignificantBits, leastSignificantBits);
 	}
 	
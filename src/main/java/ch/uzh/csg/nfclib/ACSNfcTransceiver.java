@@ -2,6 +2,7 @@ package ch.uzh.csg.nfclib;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -19,11 +20,12 @@ import android.content.IntentFilter;
 import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbManager;
 import android.util.Pair;
+import ch.uzh.csg.comm.BufferedNfcTransceiver;
 import ch.uzh.csg.comm.Config;
+import ch.uzh.csg.comm.ExecutorNfcTransceiver;
 import ch.uzh.csg.comm.NfcEvent;
 import ch.uzh.csg.comm.NfcInitiatorHandler;
 import ch.uzh.csg.comm.NfcLibException;
-import ch.uzh.csg.comm.NfcTransceiver;
 import ch.uzh.csg.comm.TagDiscoverHandler;
 
 /**
@@ -62,6 +64,8 @@ public class ACSNfcTransceiver implements NfcTrans {
 	
 	private final TagDiscoverHandler nfcInit;
 	private final NfcInitiatorHandler initiatorHandler;
+	// if set, the frames are written by this executor and not the reader thread
+	private final Executor executor;
 	
 	private BroadcastReceiver broadcastReceiver;
 	private Reader reader;
@@ -80,12 +84,26 @@ public class ACSNfcTransceiver implements NfcTrans {
 	 * @throws NfcLibException 
 	 */
 	public ACSNfcTransceiver(final TagDiscoverHandler nfcInit, final NfcInitiatorHandler initiatorHandler, final Context context) {
+		this(nfcInit, initiatorHandler, context, null);
+	}
+	
+	/**
+	 * Creates a new instance that runs the transaction with an
+	 * {@link ExecutorNfcTransceiver}, the reader thread returns right away.
+	 * 
+	 * @param executor
+	 *            writes the frames, may be shared by many links, or null to
+	 *            write them on the reader thread
+	 */
+	public ACSNfcTransceiver(final TagDiscoverHandler nfcInit, final NfcInitiatorHandler initiatorHandler, final Context context,
+			final Executor executor) {
 		this.nfcInit = nfcInit;
 		this.initiatorHandler = initiatorHandler;
+		this.executor = executor;
 	}
 	
-	private static void setOnStateChangedListener(final Reader reader, 
-			final TagDiscoverHandler nfcInit, final NfcInitiatorHandler initiatorHandler, final ACSTransceiver transceiver) {
+	private static void setOnStateChangedListener(final Reader reader, final TagDiscoverHandler nfcInit, 
+			final NfcInitiatorHandler initiatorHandler, final ACSTransceiver transceiver, final Executor executor) {
 		
 		if (Config.DEBUG) {
 			LOGGER.debug( "set listener");
@@ -105,7 +123,11 @@ public class ACSNfcTransceiver implements NfcTrans {
 							disabledBuzzer = true;
 						}
 						initiatorHandler.nfcTagFound();
-						nfcInit.tagDiscovered(transceiver, true, true);
+						if (executor != null) {
+							nfcInit.tagDiscovered(new ExecutorNfcTransceiver(transceiver, executor), true, true);
+						} else {
+							nfcInit.tagDiscovered(transceiver, true, true);
+						}
 					} catch (ReaderException e) {
 						LOGGER.error( "Could not connnect reader (ReaderException): ", e);
 						nfcInit.tagFailed(NfcEvent.INIT_FAILED.name());
@@ -202,16 +224,22 @@ public class ACSNfcTransceiver implements NfcTrans {
 
 	
 	
-	private static class ACSTransceiver implements NfcTransceiver {
+	private static class ACSTransceiver implements BufferedNfcTransceiver {
 			
 		final private Reader reader;
 		final private TagDiscoverHandler nfcInit;
 		final private int maxLen;
+		// reused for every APDU. The frames may be written by any thread of a
+		// shared executor, but there is only one frame in flight per transceiver:
+		// the initiator writes the next frame after the response of the last one,
+		// the executor hands the buffer over between the threads
+		final private byte[] recvBuffer;
 		
 		private ACSTransceiver(Reader reader, TagDiscoverHandler nfcInit, final int maxLen) {
 			this.reader = reader;
 			this.nfcInit = nfcInit;
 			this.maxLen = maxLen;
+			this.recvBuffer = new byte[maxLen];
 		}
 		
 		private void disableBuzzer() throws ReaderException {
@@ -243,8 +271,18 @@ public class ACSNfcTransceiver implements NfcTrans {
 		
 		
 
+		/**
+		 * Receives into the shared buffer, must not be called while another
+		 * frame of this transceiver is in flight, with either overload.
+		 */
 		@Override
 		public byte[] write(byte[] input) throws Exception {
+			final int length = write(input, input.length, recvBuffer);
+			return Arrays.copyOf(recvBuffer, length);
+		}
+		
+		@Override
+		public int write(byte[] input, int inputLength, byte[] output) throws Exception {
 			if (!reader.isOpened()) {
 				if (Config.DEBUG) {
 					LOGGER.debug( "could not write message, reader is not or no longe open");
@@ -252,17 +290,16 @@ public class ACSNfcTransceiver implements NfcTrans {
 				throw new IOException(NFCTRANSCEIVER_NOT_CONNECTED);
 			}
 
-			if (input.length > maxLen) {
+			if (inputLength > maxLen) {
 				throw new IOException("The message length exceeds the maximum capacity of " + maxLen + " bytes.");
 			}
 
-			final byte[] recvBuffer = new byte[maxLen];
 			final int length;
 			try {
 				if (Config.DEBUG) {
-					LOGGER.debug( "write bytes: "+Arrays.toString(input));
+					LOGGER.debug( "write bytes: "+Arrays.toString(Arrays.copyOf(input, inputLength)));
 				}
-				length = reader.transmit(0, input, input.length, recvBuffer, recvBuffer.length);
+				length = reader.transmit(0, input, inputLength, output, Math.min(output.length, maxLen));
 			} catch (ReaderException e) {
 				if (Config.DEBUG) {
 					LOGGER.debug( "could not write message - ReaderException", e);
@@ -278,9 +315,7 @@ public class ACSNfcTransceiver implements NfcTrans {
 				throw new NfcLibException("connection seems to be lost");
 			}
 
-			byte[] received = new byte[length];
-			System.arraycopy(recvBuffer, 0, received, 0, length);
-			return received;
+			return length;
 		}
 
 		@Override
@@ -368,7 +403,7 @@ public class ACSNfcTransceiver implements NfcTrans {
 			filter.addAction(UsbManager.ACTION_USB_DEVICE_DETACHED);
 			
 			broadcastReceiver = createBroadcastReceiver(reader, nfcInit/*, callback*/, transceiver);
-			setOnStateChangedListener(reader, nfcInit, initiatorHandler, transceiver);
+			setOnStateChangedListener(reader, nfcInit, initiatorHandler, transceiver, executor);
 			activity.registerReceiver(broadcastReceiver, filter);
 			broadcastReceiverRegistered = true;
 		}
@@ -2,6 +2,7 @@ package ch.uzh.csg.nfclib;
 
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -14,6 +15,7 @@ import android.nfc.Tag;
 import android.nfc.tech.IsoDep;
 import android.os.Bundle;
 import ch.uzh.csg.comm.Config;
+import ch.uzh.csg.comm.ExecutorNfcTransceiver;
 import ch.uzh.csg.comm.NfcEvent;
 import ch.uzh.csg.comm.NfcInitiatorHandler;
 import ch.uzh.csg.comm.NfcLibException;
@@ -40,6 +42,8 @@ public class AndroidNfcTransceiver implements ReaderCallback, NfcTrans {
 	private final TagDiscoverHandler nfcInit;
 	private final NfcAdapter nfcAdapter;
 	private final NfcInitiatorHandler initiatorHandler;
+	// if set, the frames are written by this executor and not the reader thread
+	private final Executor executor;
 	
 	/*
 	 * not sure if this is called from different threads. Make it volatile just
@@ -60,8 +64,22 @@ public class AndroidNfcTransceiver implements ReaderCallback, NfcTrans {
 	 * @throws NfcLibException 
 	 */
 	public AndroidNfcTransceiver(TagDiscoverHandler nfcInit, final NfcInitiatorHandler initiatorHandler, Context context) throws NfcLibException {
+		this(nfcInit, initiatorHandler, context, null);
+	}
+	
+	/**
+	 * Creates a new instance that runs the transaction with an
+	 * {@link ExecutorNfcTransceiver}, the reader thread returns right away.
+	 * 
+	 * @param executor
+	 *            writes the frames, may be shared by many links, or null to
+	 *            write them on the reader thread
+	 */
+	public AndroidNfcTransceiver(TagDiscoverHandler nfcInit, final NfcInitiatorHandler initiatorHandler, Context context, 
+			final Executor executor) throws NfcLibException {
 		this.nfcInit = nfcInit;
 		this.initiatorHandler = initiatorHandler;
+		this.executor = executor;
 		//this.activity = activity;
 		this.nfcAdapter = android.nfc.NfcAdapter.getDefaultAdapter(context);
 		//this.executorService = executorService;
@@ -83,7 +101,11 @@ public class AndroidNfcTransceiver implements ReaderCallback, NfcTrans {
 			isoDep.connect();
 			final NfcTransceiver transceiver = new AndroidTransceiver(isoDep, nfcAdapter, initiatorHandler);
 			initiatorHandler.nfcTagFound();
-			nfcInit.tagDiscovered(transceiver, true, true);
+			if (executor != null) {
+				nfcInit.tagDiscovered(new ExecutorNfcTransceiver(transceiver, executor), true, true);
+			} else {
+				nfcInit.tagDiscovered(transceiver, true, true);
+			}
 		} catch (IOException e) {
 			LOGGER.error( "Could not connnect isodep: ", e);
 			nfcInit.tagFailed(NfcEvent.INIT_FAILED.name());
@@ -1,6 +1,10 @@
 package ch.uzh.csg.nfclib;
 
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -12,12 +16,23 @@ import android.content.IntentFilter;
 import android.nfc.cardemulation.HostApduService;
 import android.os.Bundle;
 import ch.uzh.csg.comm.Config;
+import ch.uzh.csg.comm.NfcMessage;
+import ch.uzh.csg.comm.NfcMessage.Type;
+import ch.uzh.csg.comm.NfcResponder;
 
 /**
  * This class handles incoming messages over NFC, which are passed to this
  * directly by the Android OS. It is to be registered in the Manifest.xml of
  * your application.
  * 
+ * If the app runs in the same process as this service, the
+ * {@link NfcResponderSetup} registers its responder here, see
+ * {@link #register(NfcResponder)}, and every APDU is passed to the responder
+ * directly, on a worker thread of this service, so the
+ * {@link ch.uzh.csg.comm.NfcResponseHandler} is not called on the main
+ * thread. Otherwise, the APDUs and the answers are sent as broadcast intents,
+ * which costs two broadcasts over the system server per APDU.
+ * 
  * @author Jeton Memeti (initial version)
  * @author Thomas Bocek (simplification, refactoring)
  * 
@@ -36,6 +51,17 @@ public final class HostApduServiceNfcLib extends HostApduService {
 	public static final String NFC_SERVICE_SEND_DEACTIVATE = "com.coinblesk.NFC_SERVICE_SEND_DEACTIVATE";
 	public static final String NFC_SERVICE_RECEIVE_DATA = "com.coinblesk.NFC_SERVICE_RECEIVE_DATA";
 	
+	// the answer if the responder failed or had none
+	private static final byte[] ERROR = new NfcMessage(Type.ERROR).bytes();
+	
+	// the responder of the app in this process, null if the broadcasts are used
+	private static final AtomicReference<NfcResponder> DIRECT = new AtomicReference<NfcResponder>();
+	
+	// processes the APDUs in order, without blocking the main thread
+	private ExecutorService worker;
+	// only used by the worker
+	private boolean nfcPresent = false;
+	
 	final BroadcastReceiver broadcastReceiver = new BroadcastReceiver() {
 		@Override
 		public void onReceive(final Context context, final Intent intent) {
@@ -54,23 +80,87 @@ public final class HostApduServiceNfcLib extends HostApduService {
 		final IntentFilter intentFilter = new IntentFilter();
 		intentFilter.addAction(NFC_SERVICE_RECEIVE_INTENT);
 		registerReceiver(broadcastReceiver, intentFilter);
+		worker = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(final Runnable r) {
+				final Thread thread = new Thread(r, "nfc-hce");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
 	}
 	
 	@Override
 	public void onDestroy() {
 		super.onDestroy();
 		unregisterReceiver(broadcastReceiver);
+		worker.shutdown();
+	}
+	
+	/**
+	 * Passes the APDUs of this process to the responder directly, instead of
+	 * broadcasting them.
+	 */
+	public static void register(final NfcResponder responder) {
+		DIRECT.set(responder);
+	}
+	
+	/**
+	 * Goes back to the broadcasts, if the responder is the registered one. A
+	 * responder registered later is not unregistered by an older one.
+	 */
+	public static void unregister(final NfcResponder responder) {
+		DIRECT.compareAndSet(responder, null);
 	}
 
 	@Override
 	public byte[] processCommandApdu(final byte[] bytes, final Bundle extras) {
-		sendBroadcast(bytes);
+		final NfcResponder responder = DIRECT.get();
+		if (responder == null) {
+			sendBroadcast(bytes);
+			return null;
+		}
+		worker.execute(new Runnable() {
+			@Override
+			public void run() {
+				byte[] responseApdu = null;
+				try {
+					if (!nfcPresent) {
+						responder.getResponseHandler().nfcTagFound();
+						nfcPresent = true;
+					}
+					responseApdu = responder.processIncomingData(bytes);
+				} catch (Exception e) {
+					LOGGER.error("could not process APDU", e);
+				}
+				// every C-APDU needs an answer, otherwise the reader waits until its timeout
+				if (responseApdu == null) {
+					responseApdu = ERROR;
+				}
+				if (Config.DEBUG) {
+					LOGGER.debug("about to return {}", Arrays.toString(responseApdu));
+				}
+				sendResponseApdu(responseApdu);
+			}
+		});
 		return null;
 	}
 	
 	@Override
 	public void onDeactivated(final int reason) {
 		LOGGER.debug( "deactivate: {}", reason);
+		final NfcResponder responder = DIRECT.get();
+		if (responder != null) {
+			// after the APDUs that are still processed
+			worker.execute(new Runnable() {
+				@Override
+				public void run() {
+					nfcPresent = false;
+					responder.onDeactivated(reason);
+				}
+			});
+			return;
+		}
 		final Intent intent = new Intent(NFC_SERVICE_SEND_INTENT);
 	    intent.putExtra(NFC_SERVICE_SEND_DEACTIVATE, reason);
 	    sendBroadcast(intent);
@@ -1,5 +1,7 @@
 package ch.uzh.csg.nfclib;
 
+import java.util.concurrent.Executor;
+
 import android.app.Activity;
 import android.content.Context;
 import ch.uzh.csg.comm.NfcEvent;
@@ -59,11 +61,25 @@ public class NfcInitiatorSetup {
 	 * @throws NfcLibException 
 	 */
 	public NfcInitiatorSetup(final NfcInitiatorHandler initiatorHandler, final Context context) throws NfcLibException {
+		this(initiatorHandler, context, null);
+	}
+	
+	/**
+	 * Instantiates a new object, where the frames are written by the executor,
+	 * see {@link ch.uzh.csg.comm.ExecutorNfcTransceiver}. The thread that
+	 * discovers the tag is not blocked for the transaction.
+	 * 
+	 * @param executor
+	 *            writes the frames, or null to write them on the thread that
+	 *            discovered the tag
+	 */
+	public NfcInitiatorSetup(final NfcInitiatorHandler initiatorHandler, final Context context, 
+			final Executor executor) throws NfcLibException {
 		this.initiator = new NfcInitiator(initiatorHandler);
 		if (hasClass("com.acs.smartcard.Reader") && ACSNfcTransceiver.isExternalReaderAttached(context)) {
-			transceiver = new ACSNfcTransceiver(initiator.tagDiscoverHandler(), initiatorHandler, context);
+			transceiver = new ACSNfcTransceiver(initiator.tagDiscoverHandler(), initiatorHandler, context, executor);
 		} else {
-			transceiver = new AndroidNfcTransceiver(initiator.tagDiscoverHandler(), initiatorHandler, context);
+			transceiver = new AndroidNfcTransceiver(initiator.tagDiscoverHandler(), initiatorHandler, context, executor);
 		}
 	}
 	
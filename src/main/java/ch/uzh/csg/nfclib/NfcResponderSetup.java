@@ -109,13 +109,28 @@ public class NfcResponderSetup  {
 		return responder;
 	}
 	
+	/**
+	 * Starts to answer the APDUs. If the {@link HostApduServiceNfcLib} runs in
+	 * this process, it calls the responder directly, otherwise it sends the
+	 * APDUs as broadcasts.
+	 * 
+	 * If called directly, the {@link NfcResponseHandler} runs on the worker
+	 * thread of the service, not on the main thread, so it must not touch the
+	 * UI without posting to the main looper.
+	 */
 	public void enable(final Activity activity) {
 		IntentFilter filter = new IntentFilter();
 		filter.addAction(HostApduServiceNfcLib.NFC_SERVICE_SEND_INTENT);
 		activity.registerReceiver(broadcastReceiver, filter);
+		HostApduServiceNfcLib.register(responder);
 	}
 	
+	/**
+	 * Stops to answer the APDUs. If another instance was enabled since, its
+	 * responder stays registered.
+	 */
 	public void disable(final Activity activity) {
+		HostApduServiceNfcLib.unregister(responder);
 		activity.unregisterReceiver(broadcastReceiver);
 	}
 	
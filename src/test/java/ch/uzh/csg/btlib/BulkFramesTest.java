@@ -0,0 +1,47 @@
+package ch.uzh.csg.btlib;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ch.uzh.csg.comm.NfcMessage;
+import ch.uzh.csg.comm.NfcMessage.Type;
+
+public class BulkFramesTest {
+	
+	@Test
+	public void testBulkFrames() {
+		List<byte[]> frames = new ArrayList<byte[]>();
+		for (int i = 3; i <= 5; i++) {
+			frames.add(new NfcMessage(Type.FRAGMENT).sequenceNumber(i).payload(new byte[] { (byte) i }).bytes());
+		}
+		// the central takes the prefetched frames in order
+		BulkFrames central = new BulkFrames();
+		central.set(frames);
+		Assert.assertSame(frames.get(0), central.take(request(3)));
+		// a request sent again does not match, the prefetched frames are dropped
+		Assert.assertNull(central.take(request(3)));
+		Assert.assertTrue(central.isEmpty());
+
+		// the peripheral answers the dropped frames again, as often as asked for
+		BulkFrames peripheral = new BulkFrames();
+		peripheral.set(frames);
+		Assert.assertSame(frames.get(1), peripheral.answer(request(4)));
+		Assert.assertSame(frames.get(1), peripheral.answer(request(4)));
+		Assert.assertSame(frames.get(2), peripheral.answer(request(5)));
+		// past the bulk read, the session answers
+		Assert.assertNull(peripheral.answer(request(6)));
+		Assert.assertTrue(peripheral.isEmpty());
+		// any other frame ends the transfer
+		peripheral.set(frames);
+		Assert.assertNull(peripheral.answer(new NfcMessage(Type.POLLING_REQUEST).sequenceNumber(3).bytes()));
+		Assert.assertTrue(peripheral.isEmpty());
+	}
+
+	private static byte[] request(int sequenceNumber) {
+		return new NfcMessage(Type.FRAGMENT).sequenceNumber(sequenceNumber).bytes();
+	}
+
+}
@@ -0,0 +1,31 @@
+package ch.uzh.csg.btlib;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class MtuNegotiationTest {
+	
+	@Test
+	public void testMtuNegotiation() {
+		MtuNegotiation negotiation = new MtuNegotiation(4);
+		Assert.assertEquals(MtuNegotiation.MAX_MTU, negotiation.first("a", null));
+		negotiation.succeeded("a", null, 247);
+		// a bad connection does not pin the device to a lower MTU
+		negotiation.succeeded("a", null, MtuNegotiation.DEFAULT_MTU);
+		Assert.assertEquals(247, negotiation.first("a", null));
+		// a failed request does
+		negotiation.failed("a", null, 247);
+		Assert.assertEquals(MtuNegotiation.MAX_MTU, negotiation.first("a", null));
+		Assert.assertEquals(185, MtuNegotiation.next(247));
+	}
+	
+	@Test
+	public void testMaxFrameLength() {
+		// an attribute value is at most 512 bytes, even if the MTU allows more
+		Assert.assertEquals(512, MtuNegotiation.maxFrameLength(MtuNegotiation.MAX_MTU));
+		Assert.assertEquals(244, MtuNegotiation.maxFrameLength(247));
+		Assert.assertEquals(20, MtuNegotiation.maxFrameLength(MtuNegotiation.DEFAULT_MTU));
+		Assert.assertEquals(20, MtuNegotiation.maxFrameLength(0));
+	}
+
+}
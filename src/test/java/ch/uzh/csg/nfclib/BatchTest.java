@@ -0,0 +1,37 @@
+package ch.uzh.csg.nfclib;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ch.uzh.csg.comm.Batch;
+
+public class BatchTest {
+	
+	@Test
+	public void testBatch() throws Exception {
+		byte[] single = Batch.single(new byte[] { 1, 2 });
+		Assert.assertArrayEquals(new byte[] { 0, 1, 2 }, single);
+		Assert.assertFalse(Batch.isBatch(single));
+		Assert.assertArrayEquals(new byte[] { 1, 2 }, Batch.unpack(single).get(0));
+		
+		byte[] packed = Batch.pack(Arrays.asList(new byte[] { 1 }, new byte[0], new byte[] { 2, 3 }));
+		Assert.assertArrayEquals(new byte[] { 3, 0, 1, 1, 0, 0, 0, 2, 2, 3 }, packed);
+		Assert.assertTrue(Batch.isBatch(packed));
+		List<byte[]> messages = Batch.unpack(packed);
+		Assert.assertEquals(3, messages.size());
+		Assert.assertArrayEquals(new byte[] { 1 }, messages.get(0));
+		Assert.assertArrayEquals(new byte[0], messages.get(1));
+		Assert.assertArrayEquals(new byte[] { 2, 3 }, messages.get(2));
+		
+		try {
+			Batch.unpack(Arrays.copyOf(packed, packed.length - 1));
+			Assert.fail("truncated batch");
+		} catch (java.io.IOException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,62 @@
+package ch.uzh.csg.nfclib;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ch.uzh.csg.comm.Compression;
+import ch.uzh.csg.comm.Utils;
+
+public class CompressionTest {
+	
+	@Test
+	public void testCompression() throws Exception {
+		Compression compression = new Compression();
+		byte[] text = new byte[1000];
+		Arrays.fill(text, (byte) 'a');
+		byte[] encoded = compression.encode(text);
+		Assert.assertEquals(Compression.DEFLATE, encoded[0]);
+		Assert.assertTrue(encoded.length < text.length);
+		Assert.assertTrue(Arrays.equals(text, compression.decode(encoded)));
+		
+		// random data does not shrink, it is sent raw
+		byte[] random = TestUtils.getRandomBytes(1000);
+		encoded = compression.encode(random);
+		Assert.assertEquals(Compression.RAW, encoded[0]);
+		Assert.assertEquals(random.length + 1, encoded.length);
+		Assert.assertTrue(Arrays.equals(random, compression.decode(encoded)));
+		
+		// streamed messages are always deflated, the length is unknown
+		InputStream in = Compression.encodeStream(new ByteArrayInputStream(text));
+		ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0) {
+			streamed.write(b);
+		}
+		in.close();
+		encoded = streamed.toByteArray();
+		Assert.assertEquals(Compression.DEFLATE, encoded[0]);
+		Assert.assertEquals(0, Utils.byteArrayToInt(encoded, 1));
+		Assert.assertTrue(Arrays.equals(text, compression.decode(encoded)));
+		
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		OutputStream out = Compression.decodeStream(sink);
+		for (int i = 0; i < encoded.length; i += 7) {
+			out.write(encoded, i, Math.min(7, encoded.length - i));
+		}
+		out.close();
+		Assert.assertTrue(Arrays.equals(text, sink.toByteArray()));
+		
+		sink = new ByteArrayOutputStream();
+		out = Compression.decodeStream(sink);
+		out.write(compression.encode(random));
+		out.close();
+		Assert.assertTrue(Arrays.equals(random, sink.toByteArray()));
+	}
+
+}
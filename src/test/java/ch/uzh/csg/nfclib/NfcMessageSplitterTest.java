@@ -2,13 +2,19 @@ package ch.uzh.csg.nfclib;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
 
 import org.junit.Test;
 
+import ch.uzh.csg.comm.FragmentSource;
 import ch.uzh.csg.comm.NfcMessage;
 import ch.uzh.csg.comm.NfcMessageSplitter;
 
@@ -88,5 +94,110 @@ public class NfcMessageSplitterTest  {
 		assertEquals(8, nfcMessage3.payload().length);
 		assertTrue(Arrays.equals(payload, nfcMessage3.payload()));
 	}
+	
+	@Test
+	public void testReassemble() {
+		byte[] payload = new byte[1000];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+		NfcMessageSplitter splitter = new NfcMessageSplitter();
+		splitter.maxTransceiveLength(53);
+		for (NfcMessage msg : splitter.getFragments(payload)) {
+			splitter.reassemble(msg);
+		}
+		assertTrue(Arrays.equals(payload, splitter.data()));
+		splitter.clear();
+		for (NfcMessage msg : splitter.getFragments(new byte[] { 1, 2, 3 })) {
+			splitter.reassemble(msg);
+		}
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, splitter.data()));
+	}
+	
+	@Test
+	public void testLengthHint() {
+		byte[] payload = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+		NfcMessageSplitter splitter = new NfcMessageSplitter().lengthHint(true);
+		splitter.maxTransceiveLength(6);
+		ArrayList<NfcMessage> fragments = splitter.getFragments(payload);
+		
+		assertEquals(3, fragments.size());
+		assertTrue(Arrays.equals(new byte[] { 0, 0, 0, 9, 1 }, fragments.get(0).payload()));
+		assertTrue(Arrays.equals(new byte[] { 2, 3, 4, 5, 6 }, fragments.get(1).payload()));
+		assertTrue(Arrays.equals(new byte[] { 7, 8, 9 }, fragments.get(2).payload()));
+		assertFalse(fragments.get(2).isFragment());
+		
+		for (NfcMessage msg : fragments) {
+			splitter.reassemble(msg);
+		}
+		assertTrue(Arrays.equals(payload, splitter.data()));
+		
+		// a single message has no length hint
+		fragments = splitter.getFragments(new byte[] { 1, 2, 3 });
+		assertEquals(1, fragments.size());
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, fragments.get(0).payload()));
+	}
+	
+	@Test
+	public void testFragmentSource() throws IOException {
+		byte[] payload = new byte[] { 1, 2, 3, 4, 5, 6, 7, 8, 9 };
+		NfcMessageSplitter splitter = new NfcMessageSplitter();
+		splitter.maxTransceiveLength(5);
+		FragmentSource source = splitter.fragments(payload);
+		
+		assertEquals(3, source.remaining());
+		NfcMessage nfcMessage1 = source.next();
+		assertTrue(nfcMessage1.isFragment());
+		// a view, not a copy
+		assertSame(payload, nfcMessage1.payloadArray());
+		assertEquals(0, nfcMessage1.payloadOffset());
+		assertEquals(4, nfcMessage1.payloadLength());
+		assertEquals(2, source.remaining());
+		
+		NfcMessage nfcMessage2 = source.next();
+		assertSame(payload, nfcMessage2.payloadArray());
+		assertEquals(4, nfcMessage2.payloadOffset());
+		
+		NfcMessage nfcMessage3 = source.next();
+		assertFalse(nfcMessage3.isFragment());
+		assertTrue(Arrays.equals(new byte[] { 9 }, nfcMessage3.payload()));
+		assertFalse(source.hasNext());
+		assertEquals(0, source.remaining());
+		assertNull(source.next());
+	}
+	
+	@Test
+	public void testStreamFragmentSource() throws IOException {
+		byte[] payload = new byte[30];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+		NfcMessageSplitter splitter = new NfcMessageSplitter();
+		splitter.maxTransceiveLength(11).lengthHint(true);
+		FragmentSource source = splitter.fragments(new ByteArrayInputStream(payload));
+		assertEquals(-1, source.remaining());
+		
+		ByteArrayOutputStream sink = new ByteArrayOutputStream();
+		NfcMessage fragment;
+		boolean first = true;
+		int count = 0;
+		while ((fragment = source.next()) != null) {
+			splitter.reassemble(fragment, sink, first);
+			first = false;
+			count++;
+		}
+		// 10 bytes per fragment, the first one carries the length hint
+		assertEquals(4, count);
+		assertFalse(source.hasNext());
+		assertEquals(0, source.remaining());
+		assertTrue(Arrays.equals(payload, sink.toByteArray()));
+		
+		// a short message is sent as single, without length hint
+		source = splitter.fragments(new ByteArrayInputStream(new byte[] { 1, 2, 3 }));
+		fragment = source.next();
+		assertFalse(fragment.isFragment());
+		assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, fragment.payload()));
+		assertNull(source.next());
+	}
 
 }
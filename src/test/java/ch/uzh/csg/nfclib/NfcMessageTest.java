@@ -1,9 +1,12 @@
 package ch.uzh.csg.nfclib;
 
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.junit.Assert;
 import org.junit.Test;
 
+import ch.uzh.csg.comm.AidRegistry;
 import ch.uzh.csg.comm.NfcMessage;
 import ch.uzh.csg.comm.Utils;
 import ch.uzh.csg.comm.NfcMessage.Type;
@@ -104,6 +107,160 @@ public class NfcMessageTest {
 		Assert.assertEquals(19, transfer[transfer.length - 1 ]);
 	}
 	
+	@Test
+	public void testWrapNoCopy() {
+		byte[] frame = new NfcMessage(Type.FRAGMENT).sequenceNumber(5).payload(new byte[] {1, 2, 3}).bytes();
+		byte[] buffer = new byte[frame.length + 4];
+		System.arraycopy(frame, 0, buffer, 2, frame.length);
+		NfcMessage m = new NfcMessage(Type.SINGLE).wrap(buffer, 2, frame.length);
+		Assert.assertEquals(Type.FRAGMENT, m.type());
+		Assert.assertEquals(5, m.sequenceNumber());
+		Assert.assertEquals(3, m.payloadLength());
+		Assert.assertSame(buffer, m.payloadArray());
+		Assert.assertEquals(3, m.payloadOffset());
+		Assert.assertArrayEquals(new byte[] {1, 2, 3}, m.payload());
+		
+		// reuse for an empty frame
+		byte[] empty = new NfcMessage(Type.POLLING_REQUEST).sequenceNumber(2).bytes();
+		m.wrap(ByteBuffer.wrap(empty));
+		Assert.assertEquals(Type.POLLING_REQUEST, m.type());
+		Assert.assertEquals(2, m.sequenceNumber());
+		Assert.assertEquals(0, m.payloadLength());
+	}
+	
+	@Test
+	public void testEncodeInto() {
+		byte[] payload = TestUtils.getRandomBytes(50);
+		NfcMessage m1 = new NfcMessage(Type.FRAGMENT_LAST).sequenceNumber(7).payload(payload, 10, 20);
+		ByteBuffer buffer = ByteBuffer.allocate(64);
+		buffer.put((byte) 42);
+		int written = m1.encodeInto(buffer);
+		Assert.assertEquals(m1.encodedLength(), written);
+		Assert.assertEquals(21, buffer.position() - 1);
+		buffer.flip();
+		buffer.get();
+		NfcMessage m2 = new NfcMessage(Type.SINGLE).wrap(buffer);
+		Assert.assertEquals(m1, m2);
+		Assert.assertArrayEquals(m1.bytes(), m2.bytes());
+		
+		NfcMessage empty = new NfcMessage(Type.FRAGMENT);
+		Assert.assertArrayEquals(empty.bytes(), Arrays.copyOf(encode(empty), empty.encodedLength()));
+	}
+	
+	private static byte[] encode(NfcMessage m) {
+		byte[] out = new byte[10];
+		m.encodeInto(out, 0);
+		return out;
+	}
+	
+	@Test
+	public void testSelectAid() {
+		Assert.assertEquals(Type.AID_2, new NfcMessage(NfcMessage.CLA_INS_P1_P2_COINBLESK_2).type());
+		Assert.assertFalse(new NfcMessage(NfcMessage.CLA_INS_P1_P2_COINBLESK_2).isFirst());
+		Assert.assertEquals(Type.AID_3, new NfcMessage(NfcMessage.CLA_INS_P1_P2_COINBLESK_3_FIRST).type());
+		Assert.assertTrue(new NfcMessage(NfcMessage.CLA_INS_P1_P2_COINBLESK_3_FIRST).isFirst());
+		Assert.assertEquals(Type.READ_BINARY, new NfcMessage(NfcMessage.READ_BINARY).type());
+		
+		// a custom message starting with 0x00 is not an APDU
+		NfcMessage m = new NfcMessage(new byte[] {0x00, 1, 2, 3, 4});
+		Assert.assertEquals(Type.FRAGMENT, m.type());
+		Assert.assertEquals(4, m.payloadLength());
+	}
+	
+	@Test
+	public void testCustomAid() {
+		byte[] aid = { (byte) 0xF0, 0x01, 0x02, 0x03, 0x04, 0x65, 0x11, 0x12 };
+		byte[] apdu = new byte[] { 0x00, (byte) 0xA4, 0x04, 0x00, 8, 
+				aid[0], aid[1], aid[2], aid[3], aid[4], aid[5], aid[6], aid[7], 20 };
+		Assert.assertEquals(Type.FRAGMENT, new NfcMessage(apdu).type());
+		
+		AidRegistry.register(aid, Type.AID_2);
+		NfcMessage m = new NfcMessage(apdu);
+		Assert.assertEquals(Type.AID_2, m.type());
+		Assert.assertFalse(m.isFirst());
+		
+		apdu[NfcMessage.AID_COINBLESK_FIRST_POS] = NfcMessage.AID_COINBLESK_FIRST;
+		m = new NfcMessage(apdu);
+		Assert.assertEquals(Type.AID_2, m.type());
+		Assert.assertTrue(m.isFirst());
+		
+		// built-in AIDs survive the table growing
+		Assert.assertEquals(Type.AID_1, new NfcMessage(NfcMessage.CLA_INS_P1_P2_COINBLESK_1).type());
+	}
+	
+	@Test
+	public void testExtendedSelect() {
+		NfcMessage m = new NfcMessage(Type.AID_3).first().extended(true).payload(new byte[] { NfcMessage.CAP_LENGTH_HINT });
+		byte[] apdu = m.bytes();
+		Assert.assertEquals(NfcMessage.CLA_INS_P1_P2_COINBLESK_EXT_3_FIRST.length + 1, apdu.length);
+		Assert.assertEquals(apdu.length, m.encodedLength());
+		
+		NfcMessage m2 = new NfcMessage(apdu);
+		Assert.assertEquals(Type.AID_3, m2.type());
+		Assert.assertTrue(m2.isFirst());
+		Assert.assertTrue(m2.isExtended());
+		Assert.assertTrue(Arrays.equals(new byte[] { NfcMessage.CAP_LENGTH_HINT }, m2.payload()));
+		
+		// the legacy SELECT stays as it was
+		Assert.assertFalse(new NfcMessage(NfcMessage.CLA_INS_P1_P2_COINBLESK_3).isExtended());
+	}
+	
+	@Test
+	public void testLegacySelectTrailingData() {
+		byte[] select = NfcMessage.CLA_INS_P1_P2_COINBLESK_3;
+		Assert.assertEquals(AidRegistry.lookupSelect(select, 0, select.length) & AidRegistry.TYPE_MASK, Type.AID_3.ordinal());
+		
+		// data after Le is only allowed for the extended handshake
+		byte[] trailing = Arrays.copyOf(select, select.length + 3);
+		Assert.assertEquals(AidRegistry.NOT_FOUND, AidRegistry.lookupSelect(trailing, 0, trailing.length));
+		Assert.assertEquals(Type.FRAGMENT, new NfcMessage(trailing).type());
+	}
 	
+	@Test
+	public void testWindowed() {
+		NfcMessage m = new NfcMessage(Type.FRAGMENT_LAST).windowed(true).ackRequested(true)
+				.sequenceNumber(0xA5).payload(new byte[] { 1, 2, 3 });
+		byte[] bytes = m.bytes();
+		Assert.assertEquals(NfcMessage.HEADER_LENGTH_WINDOWED + 3, bytes.length);
+		
+		NfcMessage m2 = new NfcMessage(bytes);
+		Assert.assertTrue(m2.isWindowed());
+		Assert.assertTrue(m2.isAckRequested());
+		Assert.assertEquals(Type.FRAGMENT_LAST, m2.type());
+		Assert.assertEquals(0xA5, m2.sequenceNumber());
+		Assert.assertTrue(Arrays.equals(new byte[] { 1, 2, 3 }, m2.payload()));
+		
+		// 8 bit sequence numbers
+		NfcMessage m3 = new NfcMessage(Type.FRAGMENT).windowed(true).sequenceNumber(m2);
+		Assert.assertEquals(0xA6, m3.sequenceNumber());
+		Assert.assertTrue(m3.check(0xA5));
+		m3.sequenceNumber(new NfcMessage(Type.FRAGMENT).sequenceNumber(255));
+		Assert.assertEquals(0, m3.sequenceNumber());
+		
+		// an empty windowed message has no padding
+		NfcMessage m4 = new NfcMessage(new NfcMessage(Type.FRAGMENT).windowed(true).bytes());
+		Assert.assertTrue(m4.isGetNextFragment());
+		Assert.assertFalse(m4.isAckRequested());
+	}
+	
+	@Test
+	public void testEqualsWindowed() {
+		NfcMessage m1 = new NfcMessage(Type.FRAGMENT).windowed(true).sequenceNumber(3).payload(new byte[] { 1 });
+		NfcMessage m2 = new NfcMessage(Type.FRAGMENT).windowed(true).sequenceNumber(19).payload(new byte[] { 1 });
+		// the full 8 bit sequence number counts
+		Assert.assertFalse(m1.equals(m2));
+		m2.sequenceNumber(3);
+		Assert.assertEquals(m1, m2);
+		Assert.assertEquals(m1.hashCode(), m2.hashCode());
+		Assert.assertEquals(m1, new NfcMessage(m1.bytes()));
+		// the acknowledgement request and the mode count as well
+		Assert.assertFalse(m1.equals(m2.ackRequested(true)));
+		Assert.assertFalse(m1.equals(new NfcMessage(Type.FRAGMENT).sequenceNumber(3).payload(new byte[] { 1 })));
+		// without a window, only 4 bits are sent
+		NfcMessage m3 = new NfcMessage(Type.FRAGMENT).sequenceNumber(19).payload(new byte[] { 1 });
+		NfcMessage m4 = new NfcMessage(Type.FRAGMENT).sequenceNumber(3).payload(new byte[] { 1 });
+		Assert.assertEquals(m3, m4);
+		Assert.assertEquals(m3.hashCode(), m4.hashCode());
+	}
 
 }
@@ -0,0 +1,706 @@
+package ch.uzh.csg.nfclib;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ch.uzh.csg.btlib.BTLEController;
+import ch.uzh.csg.comm.ExecutorNfcTransceiver;
+import ch.uzh.csg.comm.NfcInitiator;
+import ch.uzh.csg.comm.NfcInitiatorHandler;
+import ch.uzh.csg.comm.NfcMessage;
+import ch.uzh.csg.comm.NfcMessage.Type;
+import ch.uzh.csg.comm.NfcResponder;
+import ch.uzh.csg.comm.NfcResponseHandler;
+import ch.uzh.csg.comm.NfcTransceiver;
+import ch.uzh.csg.comm.PollingScheduler;
+import ch.uzh.csg.comm.ResponseLater;
+import ch.uzh.csg.comm.SimulatedNfcTransceiver;
+import ch.uzh.csg.comm.StreamNfcTransceiver;
+import ch.uzh.csg.comm.StreamResponder;
+
+public class SimulatedNfcTransceiverTest {
+
+	private final List<byte[]> received = Collections.synchronizedList(new ArrayList<byte[]>());
+	private final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+
+	@Test
+	public void testLatency() {
+		NfcResponder responder = echoResponder(245);
+		SimulatedNfcTransceiver transceiver = new SimulatedNfcTransceiver(responder, 1).maxLen(245)
+				.latency(5, TimeUnit.MILLISECONDS).realTime(false);
+		byte[] message = TestUtils.getRandomBytes(2000);
+		NfcInitiator initiator = initiator(message);
+
+		initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+		Assert.assertTrue(failed.isEmpty());
+		Assert.assertEquals(1, received.size());
+		Assert.assertTrue(Arrays.equals(message, received.get(0)));
+		Assert.assertEquals(transceiver.frames() * 5, transceiver.simulatedTime(TimeUnit.MILLISECONDS));
+		Assert.assertTrue(transceiver.bytesSent() > message.length);
+	}
+
+	@Test
+	public void testDropResume() {
+		NfcResponder responder = echoResponder(53);
+		SimulatedNfcTransceiver transceiver = new SimulatedNfcTransceiver(responder, 42).dropRate(0.1);
+		byte[] message = TestUtils.getRandomBytes(1000);
+		NfcInitiator initiator = initiator(message);
+
+		// every drop ends the transaction, tap again until the reply is there
+		int taps = 0;
+		while (received.isEmpty() && taps++ < 100) {
+			initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+		}
+		Assert.assertTrue(failed.isEmpty());
+		Assert.assertTrue(transceiver.dropped() > 0);
+		Assert.assertEquals(1, received.size());
+		Assert.assertTrue(Arrays.equals(message, received.get(0)));
+	}
+
+	@Test
+	public void testPipelined() {
+		NfcResponder responder = echoResponder(512);
+		SimulatedNfcTransceiver transceiver = new SimulatedNfcTransceiver.Pipelined(responder, 7).dropRate(0.05);
+		byte[] message = TestUtils.getRandomBytes(20000);
+		NfcInitiator initiator = initiator(message);
+		initiator.setCompression(false);
+
+		// dropped unacknowledged frames are sent again in the same transaction,
+		// a dropped acknowledgement ends it
+		int taps = 0;
+		while (received.isEmpty() && taps++ < 100) {
+			initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+		}
+		Assert.assertTrue(failed.isEmpty());
+		Assert.assertTrue(transceiver.dropped() > 0);
+		Assert.assertEquals(1, received.size());
+		Assert.assertTrue(Arrays.equals(message, received.get(0)));
+	}
+
+	@Test
+	public void testTagLoss() {
+		NfcResponder responder = echoResponder(53);
+		SimulatedNfcTransceiver transceiver = new SimulatedNfcTransceiver(responder, 3).tagLossRate(1);
+		NfcInitiator initiator = initiator(new byte[] { 1, 2, 3 });
+
+		initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+		Assert.assertFalse(transceiver.isConnected());
+		Assert.assertTrue(received.isEmpty());
+
+		transceiver.tagLossRate(0).reconnect();
+		initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+		Assert.assertEquals(1, received.size());
+	}
+
+	@Test
+	public void testResetDuringTransfer() throws InterruptedException {
+		NfcResponder responder = echoResponder(53);
+		final SimulatedNfcTransceiver transceiver = new SimulatedNfcTransceiver(responder, 5)
+				.latency(20, TimeUnit.MILLISECONDS);
+		final NfcInitiator initiator = initiator(TestUtils.getRandomBytes(5000));
+		initiator.setCompression(false);
+
+		Thread radio = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+			}
+		});
+		radio.start();
+		Thread.sleep(100);
+
+		// does not wait for the frame on the air
+		long start = System.nanoTime();
+		initiator.reset();
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(10));
+
+		radio.join(5000);
+		Assert.assertFalse(radio.isAlive());
+		Assert.assertTrue(received.isEmpty());
+		// 5000 bytes need about 100 frames
+		Assert.assertTrue(transceiver.frames() < 50);
+	}
+
+	@Test
+	public void testAsyncSameThread() {
+		NfcResponder responder = echoResponder(53);
+		SimulatedNfcTransceiver transceiver = new SimulatedNfcTransceiver(responder, 11);
+		byte[] message = TestUtils.getRandomBytes(100000);
+		NfcInitiator initiator = initiator(message);
+		initiator.setCompression(false);
+
+		// every response arrives before write returns, thousands of frames must not grow the stack
+		Executor sameThread = new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				command.run();
+			}
+		};
+		initiator.tagDiscoverHandler().tagDiscovered(new ExecutorNfcTransceiver(transceiver, sameThread), true, false);
+		Assert.assertTrue(failed.isEmpty());
+		Assert.assertEquals(1, received.size());
+		Assert.assertTrue(Arrays.equals(message, received.get(0)));
+	}
+
+	@Test
+	public void testHandoverDuringKeepAlive() throws InterruptedException {
+		final NfcResponder responder = echoResponder(245);
+		final SimulatedNfcTransceiver nfc = new SimulatedNfcTransceiver(responder, 13).maxLen(245);
+		final byte[] message = TestUtils.getRandomBytes(500);
+		final NfcInitiator initiator = initiator(message);
+
+		// the NFC transaction keeps the link alive after the message
+		final Thread radio = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				initiator.tagDiscoverHandler().tagDiscovered(nfc, true, true);
+			}
+		});
+		radio.start();
+		for (int i = 0; i < 100 && received.isEmpty(); i++) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(1, received.size());
+		Assert.assertTrue(radio.isAlive());
+
+		// the BLE link of the handover is discovered while the phone is still on the reader
+		final SimulatedNfcTransceiver ble = new SimulatedNfcTransceiver(responder, 14).maxLen(245);
+		final ExecutorService pool = Executors.newSingleThreadExecutor();
+		initiator.tagDiscoverHandler().tagDiscovered(new ExecutorNfcTransceiver(ble, pool), true, false);
+		radio.join(5000);
+		Assert.assertFalse(radio.isAlive());
+		for (int i = 0; i < 100 && ble.frames() == 0; i++) {
+			Thread.sleep(10);
+		}
+		pool.shutdown();
+		Assert.assertTrue(failed.isEmpty());
+		Assert.assertTrue(ble.frames() > 0);
+	}
+
+	@Test
+	public void testAsyncPool() throws InterruptedException {
+		// more links than threads, no thread waits for a frame on the air
+		final int links = 8;
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		List<byte[]> messages = new ArrayList<byte[]>();
+		long start = System.nanoTime();
+		for (int i = 0; i < links; i++) {
+			SimulatedNfcTransceiver transceiver = new SimulatedNfcTransceiver(echoResponder(245), i).maxLen(245)
+					.latency(5, TimeUnit.MILLISECONDS);
+			byte[] message = TestUtils.getRandomBytes(2000);
+			messages.add(message);
+			initiator(message).tagDiscoverHandler().tagDiscovered(new ExecutorNfcTransceiver(transceiver, pool), true, false);
+		}
+		// tagDiscovered returned right away
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(50));
+
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (received.size() < links && System.nanoTime() < deadline) {
+			Thread.sleep(10);
+		}
+		pool.shutdown();
+		Assert.assertTrue(failed.isEmpty());
+		Assert.assertEquals(links, received.size());
+		for (byte[] message : messages) {
+			boolean found = false;
+			synchronized (received) {
+				for (byte[] reply : received) {
+					found |= Arrays.equals(message, reply);
+				}
+			}
+			Assert.assertTrue(found);
+		}
+	}
+
+	@Test
+	public void testDeferredPolling() {
+		NfcResponder responder = echoResponder(245, 200);
+		SimulatedNfcTransceiver transceiver = new SimulatedNfcTransceiver(responder, 13).maxLen(245);
+		byte[] message = TestUtils.getRandomBytes(100);
+		NfcInitiator initiator = initiator(message);
+		final List<Integer> polls = new ArrayList<Integer>();
+		initiator.setPollingScheduler(new PollingScheduler().initialDelay(5, TimeUnit.MILLISECONDS)
+				.maxDelay(40, TimeUnit.MILLISECONDS).backoff(2).listener(new PollingScheduler.Listener() {
+					@Override
+					public void deferredResponse(int n, long waitedNanos) {
+						polls.add(n);
+					}
+				}));
+
+		initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+		Assert.assertTrue(failed.isEmpty());
+		Assert.assertEquals(1, received.size());
+		Assert.assertTrue(Arrays.equals(message, received.get(0)));
+		Assert.assertEquals(1, polls.size());
+		// 5, 10, 20, 40, 40, ... ms until 200 ms passed, not one poll per frame time
+		Assert.assertTrue(polls.get(0) >= 5 && polls.get(0) <= 10);
+		Assert.assertEquals(1, initiator.getPollingScheduler().deferredResponses());
+		Assert.assertEquals((long) polls.get(0), initiator.getPollingScheduler().polls());
+	}
+
+	@Test
+	public void testMessageDeadline() {
+		NfcResponder responder = echoResponder(53, 500);
+		SimulatedNfcTransceiver transceiver = new SimulatedNfcTransceiver(responder, 41);
+		NfcInitiator initiator = initiator(TestUtils.getRandomBytes(20));
+		initiator.setMessageTimeout(100, TimeUnit.MILLISECONDS);
+
+		long start = System.nanoTime();
+		initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+		Assert.assertTrue(received.isEmpty());
+		// both sides know which phase ran over
+		Assert.assertEquals(2, failed.size());
+		Assert.assertTrue(failed("Timeout: message ran over in POLLING"));
+		Assert.assertTrue(failed("Timeout: message of the other side ran over in POLLING"));
+	}
+
+	@Test
+	public void testResponderDeadline() {
+		NfcResponder responder = echoResponder(53, 500);
+		responder.setMessageTimeout(100, TimeUnit.MILLISECONDS);
+		SimulatedNfcTransceiver transceiver = new SimulatedNfcTransceiver(responder, 43);
+		NfcInitiator initiator = initiator(TestUtils.getRandomBytes(20));
+
+		long start = System.nanoTime();
+		initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(400));
+		Assert.assertTrue(received.isEmpty());
+		Assert.assertEquals(2, failed.size());
+		Assert.assertTrue(failed("Timeout: message ran over in POLLING"));
+		Assert.assertTrue(failed("Timeout: message of the other side ran over in POLLING"));
+	}
+
+	@Test
+	public void testPollingDelay() {
+		PollingScheduler scheduler = new PollingScheduler().initialDelay(1, TimeUnit.MILLISECONDS)
+				.backoff(2).maxDelay(10, TimeUnit.MILLISECONDS).maxRate(250);
+		// at most 250 polls per second, the time on the air counts
+		Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(4), scheduler.delay(0, 0));
+		Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(1), scheduler.delay(0, Long.MAX_VALUE));
+		Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(8), scheduler.delay(3, Long.MAX_VALUE));
+		Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(10), scheduler.delay(10, Long.MAX_VALUE));
+	}
+
+	@Test
+	public void testBatch() {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for (int i = 0; i < 20; i++) {
+			messages.add(TestUtils.getRandomBytes(20));
+		}
+		SimulatedNfcTransceiver single = new SimulatedNfcTransceiver(echoResponder(245), 17).maxLen(245);
+		initiator(messages).tagDiscoverHandler().tagDiscovered(single, true, false);
+		Assert.assertEquals(20, received.size());
+		received.clear();
+
+		// a batch of 10 messages of 22 bytes fits into a frame of 245 bytes
+		SimulatedNfcTransceiver batched = new SimulatedNfcTransceiver(echoResponder(245), 17).maxLen(245);
+		NfcInitiator initiator = initiator(messages);
+		initiator.setBatchSize(10);
+		initiator.tagDiscoverHandler().tagDiscovered(batched, true, false);
+		Assert.assertTrue(failed.isEmpty());
+		Assert.assertEquals(20, received.size());
+		for (int i = 0; i < 20; i++) {
+			Assert.assertTrue(Arrays.equals(messages.get(i), received.get(i)));
+		}
+		Assert.assertEquals(1 + 2, batched.frames());
+		Assert.assertTrue(batched.frames() < single.frames());
+	}
+
+	@Test
+	public void testBatchDeferred() {
+		List<byte[]> messages = new ArrayList<byte[]>();
+		for (int i = 0; i < 5; i++) {
+			messages.add(TestUtils.getRandomBytes(10));
+		}
+		SimulatedNfcTransceiver transceiver = new SimulatedNfcTransceiver(echoResponder(245, 50), 19).maxLen(245);
+		NfcInitiator initiator = initiator(messages);
+		initiator.setBatchSize(5);
+
+		// every response is deferred, the batch is answered when the last one is there
+		initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+		Assert.assertTrue(failed.isEmpty());
+		Assert.assertEquals(5, received.size());
+		for (int i = 0; i < 5; i++) {
+			Assert.assertTrue(Arrays.equals(messages.get(i), received.get(i)));
+		}
+		Assert.assertEquals(1, initiator.getPollingScheduler().deferredResponses());
+	}
+
+	@Test
+	public void testResume() {
+		byte[] message = TestUtils.getRandomBytes(5000);
+		SimulatedNfcTransceiver full = new SimulatedNfcTransceiver(echoResponder(53), 23);
+		NfcInitiator initiator = initiator(message);
+		initiator.setCompression(false);
+		initiator.tagDiscoverHandler().tagDiscovered(full, true, false);
+		received.clear();
+
+		// the tag is lost while sending and while receiving
+		for (int cut : new int[] { 60, 150 }) {
+			SimulatedNfcTransceiver transceiver = new SimulatedNfcTransceiver(echoResponder(53), 23);
+			initiator = initiator(message);
+			initiator.setCompression(false);
+			initiator.tagDiscoverHandler().tagDiscovered(lostAfter(transceiver, cut), true, false);
+			Assert.assertTrue(received.isEmpty());
+
+			initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+			Assert.assertTrue(failed.isEmpty());
+			Assert.assertEquals(1, received.size());
+			Assert.assertTrue(Arrays.equals(message, received.get(0)));
+			// one more handshake and a few frames, nothing is sent twice
+			Assert.assertTrue(transceiver.frames() <= full.frames() + 3);
+			received.clear();
+		}
+	}
+
+	@Test
+	public void testResumeOtherInitiator() {
+		NfcResponder responder = echoResponder(245);
+		byte[] message = TestUtils.getRandomBytes(5000);
+		SimulatedNfcTransceiver transceiver = new SimulatedNfcTransceiver(responder, 29).maxLen(245);
+		NfcInitiator initiator = initiator(message);
+		initiator.setCompression(false);
+		initiator.tagDiscoverHandler().tagDiscovered(lostAfter(transceiver, 10), true, false);
+
+		// another customer taps in between
+		byte[] other = TestUtils.getRandomBytes(1000);
+		NfcInitiator otherInitiator = initiator(other);
+		otherInitiator.setCompression(false);
+		otherInitiator.tagDiscoverHandler().tagDiscovered(new SimulatedNfcTransceiver(responder, 31).maxLen(245), 
+				true, false);
+		Assert.assertEquals(1, received.size());
+		Assert.assertTrue(Arrays.equals(other, received.get(0)));
+		received.clear();
+
+		// the first one comes back, with smaller frames
+		SimulatedNfcTransceiver handover = new SimulatedNfcTransceiver(responder, 37).maxLen(53);
+		initiator.tagDiscoverHandler().tagDiscovered(handover, true, false);
+		Assert.assertTrue(failed.isEmpty());
+		Assert.assertEquals(1, received.size());
+		Assert.assertTrue(Arrays.equals(message, received.get(0)));
+		// the 10 frames of 245 bytes are not sent again
+		Assert.assertTrue(handover.frames() < 2 * 5000 / 52 - 30);
+	}
+
+	@Test
+	public void testConcurrentPeers() throws InterruptedException {
+		final NfcResponder responder = echoResponder(245);
+		final List<byte[]> messages = new ArrayList<byte[]>();
+		final List<Thread> centrals = new ArrayList<Thread>();
+		for (int i = 0; i < 4; i++) {
+			final byte[] message = TestUtils.getRandomBytes(3000 + i);
+			final NfcInitiator initiator = initiator(message);
+			initiator.setCompression(false);
+			final NfcTransceiver transceiver = peer(responder, "central-" + i, 245);
+			messages.add(message);
+			centrals.add(new Thread(new Runnable() {
+				@Override
+				public void run() {
+					initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+				}
+			}));
+		}
+		// the frames of the centrals arrive interleaved at the same responder
+		for (Thread central : centrals) {
+			central.start();
+		}
+		for (Thread central : centrals) {
+			central.join(5000);
+		}
+		Assert.assertTrue(failed.isEmpty());
+		Assert.assertEquals(messages.size(), received.size());
+		for (byte[] message : messages) {
+			boolean found = false;
+			for (byte[] echo : received) {
+				found |= Arrays.equals(message, echo);
+			}
+			Assert.assertTrue(found);
+		}
+	}
+
+	@Test
+	public void testPeerHandoverSequence() {
+		NfcResponder responder = echoResponder(245);
+		responder.processIncomingData(new NfcMessage(Type.AID_3).first().bytes());
+		byte[] payload = TestUtils.getRandomBytes(100);
+		responder.processIncomingData(new NfcMessage(Type.SINGLE).sequenceNumber(0).payload(payload).bytes());
+
+		// another central connects, its frame does not continue the NFC link, and its MTU binds nothing
+		responder.setMtu("other", 20);
+		byte[] other = responder.processIncomingData("other",
+				new NfcMessage(Type.SINGLE).sequenceNumber(3).payload(payload).bytes());
+		Assert.assertEquals(Type.ERROR, NfcMessage.type(other));
+
+		// the initiator of the NFC link continues over BLE
+		responder.setMtu("handover", 182);
+		byte[] echo = responder.processIncomingData("handover",
+				new NfcMessage(Type.SINGLE).sequenceNumber(1).payload(payload).bytes());
+		Assert.assertEquals(Type.SINGLE, NfcMessage.type(echo));
+		Assert.assertTrue(Arrays.equals(payload, new NfcMessage(echo).payload()));
+	}
+
+	@Test
+	public void testRetransmitCached() {
+		NfcResponder responder = echoResponder(245);
+		responder.processIncomingData(new NfcMessage(Type.AID_3).first().bytes());
+		byte[] request = new NfcMessage(Type.SINGLE).sequenceNumber(0).payload(TestUtils.getRandomBytes(200)).bytes();
+		byte[] response = responder.processIncomingData(request);
+
+		// the reader did not get the answer and sends the frame again
+		byte[] repeated = responder.processIncomingData(request);
+		Assert.assertTrue(Arrays.equals(response, repeated));
+		ByteBuffer output = ByteBuffer.allocate(245);
+		Assert.assertEquals(response.length, responder.processIncomingData(request, 0, request.length, output));
+		Assert.assertTrue(Arrays.equals(response, Arrays.copyOf(output.array(), output.position())));
+
+		// the cached frame does not fit smaller frames, the answer is fragmented again
+		responder.setMtu(53);
+		repeated = responder.processIncomingData(request);
+		Assert.assertTrue(repeated.length <= 53);
+		Assert.assertEquals(Type.FRAGMENT, NfcMessage.type(repeated));
+		Assert.assertTrue(failed.isEmpty());
+	}
+
+	@Test
+	public void testStream() throws Exception {
+		// a loopback socket stands in for the L2CAP channel
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final NfcResponder responder = echoResponder(245);
+		final Thread responderThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final Socket socket = server.accept();
+					new StreamResponder(responder, "l2cap", socket.getInputStream(), socket.getOutputStream(),
+							StreamNfcTransceiver.DEFAULT_FRAME_LENGTH).run();
+					socket.close();
+				} catch (Exception e) {
+					failed.add(e.toString());
+				}
+			}
+		});
+		responderThread.start();
+		final Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+		final StreamNfcTransceiver transceiver = new StreamNfcTransceiver(socket.getInputStream(),
+				socket.getOutputStream(), socket, StreamNfcTransceiver.DEFAULT_FRAME_LENGTH);
+
+		final byte[] message = TestUtils.getRandomBytes(100000);
+		final NfcInitiator initiator = initiator(message);
+		initiator.setCompression(false);
+		// the handshake selects AID_1, the frame length of the stream is the smaller of both sides
+		initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+		transceiver.close();
+		responderThread.join(5000);
+		server.close();
+
+		Assert.assertFalse(responderThread.isAlive());
+		Assert.assertTrue(failed.isEmpty());
+		Assert.assertEquals(1, received.size());
+		Assert.assertTrue(Arrays.equals(message, received.get(0)));
+	}
+
+	@Test
+	public void testBleHandshakeWindow() throws Exception {
+		// the frames of a BLE link with an MTU of 185, over a loopback socket
+		final int maxLen = 182;
+		final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+		final NfcResponder responder = echoResponder(245);
+		final Thread responderThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					final Socket socket = server.accept();
+					new StreamResponder(responder, "central", socket.getInputStream(), socket.getOutputStream(),
+							maxLen).run();
+					socket.close();
+				} catch (Exception e) {
+					failed.add(e.toString());
+				}
+			}
+		});
+		responderThread.start();
+		final Socket socket = new Socket(server.getInetAddress(), server.getLocalPort());
+		final AtomicInteger unacknowledged = new AtomicInteger();
+		final StreamNfcTransceiver transceiver = new StreamNfcTransceiver(socket.getInputStream(),
+				socket.getOutputStream(), socket, maxLen) {
+			@Override
+			public void writeUnacknowledged(byte[] frame) throws Exception {
+				Assert.assertTrue(frame.length <= maxLen);
+				unacknowledged.incrementAndGet();
+				super.writeUnacknowledged(frame);
+			}
+		};
+
+		final byte[] message = TestUtils.getRandomBytes(20000);
+		final NfcInitiator initiator = initiator(message);
+		initiator.setCompression(false);
+		initiator.setWindowSize(8);
+		// the window is negotiated in the handshake, as the BLE links do
+		initiator.tagDiscoverHandler().tagDiscovered(transceiver, true, false);
+		transceiver.close();
+		responderThread.join(5000);
+		server.close();
+
+		Assert.assertFalse(responderThread.isAlive());
+		Assert.assertTrue(failed.isEmpty());
+		Assert.assertEquals(1, received.size());
+		Assert.assertTrue(Arrays.equals(message, received.get(0)));
+		// 20000 bytes need more than 100 fragments, 7 of 8 are not acknowledged
+		Assert.assertTrue(unacknowledged.get() > 80);
+	}
+
+	/**
+	 * Returns true if one side reported a failure containing the text.
+	 */
+	private boolean failed(final String text) {
+		synchronized (failed) {
+			for (String message : failed) {
+				if (message.contains(text)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Loses the tag after the given number of frames.
+	 */
+	private static NfcTransceiver lostAfter(final NfcTransceiver transceiver, final int frames) {
+		return new NfcTransceiver() {
+			private int written = 0;
+			@Override
+			public byte[] write(byte[] input) throws Exception {
+				return written++ < frames ? transceiver.write(input) : null;
+			}
+			@Override
+			public int maxLen() {
+				return transceiver.maxLen();
+			}
+			@Override
+			public void close() {
+				transceiver.close();
+			}
+		};
+	}
+
+	/**
+	 * Passes the frames to the session of a peer, as the GATT server does.
+	 */
+	private static NfcTransceiver peer(final NfcResponder responder, final Object peer, final int maxLen) {
+		return new NfcTransceiver() {
+			@Override
+			public byte[] write(byte[] input) throws Exception {
+				Thread.yield();
+				return responder.processIncomingData(peer, new NfcMessage(input)).bytes();
+			}
+			@Override
+			public int maxLen() {
+				return maxLen;
+			}
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	private NfcResponder echoResponder(int maxLen) {
+		return echoResponder(maxLen, 0);
+	}
+
+	private NfcResponder echoResponder(int maxLen, final long deferMillis) {
+		return new NfcResponder(new NfcResponseHandler() {
+			@Override
+			public byte[] handleMessageReceived(final byte[] message, final ResponseLater responseLater) {
+				if (deferMillis == 0) {
+					return message;
+				}
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							Thread.sleep(deferMillis);
+						} catch (InterruptedException e) {
+							return;
+						}
+						responseLater.response(message);
+					}
+				}).start();
+				return null;
+			}
+			@Override
+			public void handleFailed(String message) {
+				failed.add(message);
+			}
+			@Override
+			public void handleStatus(String message) {}
+			@Override
+			public byte[] getUUID() {
+				return new byte[16];
+			}
+			@Override
+			public void nfcTagLost() {}
+			@Override
+			public void btTagFound() {}
+			@Override
+			public void btTagLost() {}
+			@Override
+			public void nfcTagFound() {}
+		}, maxLen);
+	}
+
+	private NfcInitiator initiator(final byte[] message) {
+		return initiator(Collections.singletonList(message));
+	}
+
+	private NfcInitiator initiator(final List<byte[]> messages) {
+		return new NfcInitiator(new NfcInitiatorHandler() {
+			private int sent = 0;
+			@Override
+			public void handleMessageReceived(byte[] message) {
+				received.add(message);
+			}
+			@Override
+			public void handleFailed(String message) {
+				failed.add(message);
+			}
+			@Override
+			public void handleStatus(String message) {}
+			@Override
+			public boolean hasMoreMessages() {
+				return sent < messages.size();
+			}
+			@Override
+			public byte[] nextMessage() {
+				return messages.get(sent++);
+			}
+			@Override
+			public void setUUID(byte[] uuid, boolean first) {}
+			@Override
+			public void btTagFound(BTLEController btleController) {}
+			@Override
+			public void nfcTagLost() {}
+			@Override
+			public void nfcTagFound() {}
+			@Override
+			public void btTagLost() {}
+			@Override
+			public void protocolDone() {}
+		});
+	}
+}